@@ -0,0 +1,188 @@
+/*
+ * Copyright (c) 2018 Joerg Bayer
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.sg_o.app.miioMapServer;
+
+import com.google.protobuf.CodedOutputStream;
+import com.google.protobuf.WireFormat;
+import de.sg_o.proto.MapPackageColorProto;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * This class collects packed pixel coordinates grouped by their color without boxing either of them.
+ * The colors are kept in the order they were first seen.
+ */
+class ColorBuckets {
+    private static final int INITIAL_TABLE_SIZE = 16;
+    private static final int INITIAL_BUCKET_SIZE = 64;
+
+    private int[] table = new int[INITIAL_TABLE_SIZE];
+    private int[] colors = new int[INITIAL_TABLE_SIZE / 2];
+    private int[][] coordinates = new int[INITIAL_TABLE_SIZE / 2][];
+    private int[] sizes = new int[INITIAL_TABLE_SIZE / 2];
+    private int size = 0;
+
+    /**
+     * Add a coordinate to the bucket of a color.
+     * @param color The color of the pixel.
+     * @param coordinate The packed coordinate of the pixel.
+     */
+    void add(int color, int coordinate) {
+        int bucket = bucketOf(color);
+        int[] coords = coordinates[bucket];
+        int count = sizes[bucket];
+        if (count == coords.length) {
+            coords = Arrays.copyOf(coords, count * 2);
+            coordinates[bucket] = coords;
+        }
+        coords[count] = coordinate;
+        sizes[bucket] = count + 1;
+    }
+
+    /**
+     * @return The number of different colors.
+     */
+    int size() {
+        return size;
+    }
+
+    /**
+     * @param bucket The index of the bucket.
+     * @return The color of the bucket.
+     */
+    int getColor(int bucket) {
+        return colors[bucket];
+    }
+
+    /**
+     * @param bucket The index of the bucket.
+     * @return The number of coordinates in the bucket.
+     */
+    int getCount(int bucket) {
+        return sizes[bucket];
+    }
+
+    /**
+     * @param bucket The index of the bucket.
+     * @return The backing array of the bucket. Only the first {@link #getCount(int)} entries are valid.
+     */
+    int[] getCoordinates(int bucket) {
+        return coordinates[bucket];
+    }
+
+    /**
+     * Build one color message per bucket.
+     * @return The color messages in the order the colors were first seen.
+     */
+    List<MapPackageColorProto.MapPackageColor> toMapPackageColors() {
+        List<MapPackageColorProto.MapPackageColor> out = new ArrayList<>(size);
+        for (int i = 0; i < size; i++) {
+            out.add(toMapPackageColor(i));
+        }
+        return out;
+    }
+
+    /**
+     * Build the message of a single bucket.
+     * @param bucket The index of the bucket.
+     * @return The color message.
+     */
+    MapPackageColorProto.MapPackageColor toMapPackageColor(int bucket) {
+        return buildColor(colors[bucket], MapPackageColorProto.MapPackageColor.COORDINATES_FIELD_NUMBER, coordinates[bucket], sizes[bucket]);
+    }
+
+    /**
+     * Build a color message with a single packed field. The values are encoded as a packed field and parsed back, this way they never get boxed.
+     * @param color The color of the message.
+     * @param fieldNumber The number of the packed field to fill.
+     * @param values The values of the packed field.
+     * @param count The number of valid entries in values.
+     * @return The color message.
+     */
+    static MapPackageColorProto.MapPackageColor buildColor(int color, int fieldNumber, int[] values, int count) {
+        int dataSize = 0;
+        for (int i = 0; i < count; i++) {
+            dataSize += CodedOutputStream.computeInt32SizeNoTag(values[i]);
+        }
+        int total = CodedOutputStream.computeInt32Size(MapPackageColorProto.MapPackageColor.COLOR_FIELD_NUMBER, color);
+        if (count > 0) {
+            total += CodedOutputStream.computeTagSize(fieldNumber);
+            total += CodedOutputStream.computeUInt32SizeNoTag(dataSize) + dataSize;
+        }
+        byte[] encoded = new byte[total];
+        try {
+            CodedOutputStream out = CodedOutputStream.newInstance(encoded);
+            out.writeInt32(MapPackageColorProto.MapPackageColor.COLOR_FIELD_NUMBER, color);
+            if (count > 0) {
+                out.writeTag(fieldNumber, WireFormat.WIRETYPE_LENGTH_DELIMITED);
+                out.writeUInt32NoTag(dataSize);
+                for (int i = 0; i < count; i++) {
+                    out.writeInt32NoTag(values[i]);
+                }
+            }
+            out.checkNoSpaceLeft();
+            return MapPackageColorProto.MapPackageColor.parseFrom(encoded);
+        } catch (IOException e) {
+            throw new IllegalStateException("Encoding color failed", e);
+        }
+    }
+
+    private int bucketOf(int color) {
+        int mask = table.length - 1;
+        int slot = mix(color) & mask;
+        while (true) {
+            int entry = table[slot];
+            if (entry == 0) break;
+            if (colors[entry - 1] == color) return entry - 1;
+            slot = (slot + 1) & mask;
+        }
+        if (size == colors.length) {
+            grow();
+            return bucketOf(color);
+        }
+        int bucket = size++;
+        colors[bucket] = color;
+        coordinates[bucket] = new int[INITIAL_BUCKET_SIZE];
+        sizes[bucket] = 0;
+        table[slot] = bucket + 1;
+        return bucket;
+    }
+
+    private void grow() {
+        int capacity = colors.length * 2;
+        colors = Arrays.copyOf(colors, capacity);
+        coordinates = Arrays.copyOf(coordinates, capacity);
+        sizes = Arrays.copyOf(sizes, capacity);
+        table = new int[capacity * 2];
+        int mask = table.length - 1;
+        for (int i = 0; i < size; i++) {
+            int slot = mix(colors[i]) & mask;
+            while (table[slot] != 0) {
+                slot = (slot + 1) & mask;
+            }
+            table[slot] = i + 1;
+        }
+    }
+
+    private static int mix(int color) {
+        int h = color * 0x9E3779B9;
+        return h ^ (h >>> 16);
+    }
+}
@@ -0,0 +1,85 @@
+/*
+ * Copyright (c) 2018 Joerg Bayer
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.sg_o.app.miioMapServer;
+
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * This class keeps deflaters and inflaters for reuse. Each of them holds native memory that is only freed once it is ended, so creating one for every call wastes memory until the garbage collector runs.
+ * Every acquired instance has to be given back, instances that don't fit into the pool are ended.
+ */
+final class CompressorPool {
+    private static final int MAX_POOLED = 8;
+    private static final ConcurrentLinkedQueue<Deflater> DEFLATERS = new ConcurrentLinkedQueue<>();
+    private static final ConcurrentLinkedQueue<Inflater> INFLATERS = new ConcurrentLinkedQueue<>();
+    private static final AtomicInteger POOLED_DEFLATERS = new AtomicInteger();
+    private static final AtomicInteger POOLED_INFLATERS = new AtomicInteger();
+
+    private CompressorPool() {
+    }
+
+    /**
+     * @return A deflater in its initial state.
+     */
+    static Deflater acquireDeflater() {
+        Deflater d = DEFLATERS.poll();
+        if (d == null) return new Deflater();
+        POOLED_DEFLATERS.decrementAndGet();
+        return d;
+    }
+
+    /**
+     * Give a deflater back. It must not be used afterwards.
+     * @param d The deflater.
+     */
+    static void release(Deflater d) {
+        if (POOLED_DEFLATERS.incrementAndGet() > MAX_POOLED) {
+            POOLED_DEFLATERS.decrementAndGet();
+            d.end();
+            return;
+        }
+        d.reset();
+        DEFLATERS.add(d);
+    }
+
+    /**
+     * @return An inflater in its initial state.
+     */
+    static Inflater acquireInflater() {
+        Inflater i = INFLATERS.poll();
+        if (i == null) return new Inflater();
+        POOLED_INFLATERS.decrementAndGet();
+        return i;
+    }
+
+    /**
+     * Give an inflater back. It must not be used afterwards.
+     * @param i The inflater.
+     */
+    static void release(Inflater i) {
+        if (POOLED_INFLATERS.incrementAndGet() > MAX_POOLED) {
+            POOLED_INFLATERS.decrementAndGet();
+            i.end();
+            return;
+        }
+        i.reset();
+        INFLATERS.add(i);
+    }
+}
@@ -0,0 +1,246 @@
+/*
+ * Copyright (c) 2018 Joerg Bayer
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.sg_o.app.miioMapServer;
+
+import com.google.protobuf.InvalidProtocolBufferException;
+import de.sg_o.proto.MapRequestProto;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.logging.Logger;
+
+/**
+ * This class holds the state of a single client connection of the {@link Server}.
+ * All methods are called from the thread of the {@link EventLoop} the connection belongs to, only the request handler runs on a worker thread.
+ * An idle connection only keeps its channel and request handler, buffers are only held while a request or response is incomplete.
+ */
+class Connection {
+    private final static Logger LOGGER = Logger.getLogger(Connection.class.getName());
+    static final int MAX_REQUEST_SIZE = 65536;
+    private static final int MAX_GATHER = 64;
+    private static final int MAX_INPUT = MAX_REQUEST_SIZE + 5;
+
+    private final SocketChannel channel;
+    private final RequestHandler handler;
+    private SelectionKey key;
+    private byte[] input;
+    private int inputLength;
+    private final ArrayDeque<ByteBuffer> output = new ArrayDeque<>();
+    private final ArrayDeque<ResponseOutput> sent = new ArrayDeque<>();
+    private boolean busy;
+    private boolean closing;
+    private boolean inputShutdown;
+    private boolean closed;
+    private long lastActivity;
+
+    /**
+     * Create a new connection.
+     * @param channel The channel of the client.
+     * @param handler The handler answering the clients requests.
+     */
+    Connection(SocketChannel channel, RequestHandler handler) {
+        this.channel = channel;
+        this.handler = handler;
+    }
+
+    SocketChannel getChannel() {
+        return channel;
+    }
+
+    RequestHandler getHandler() {
+        return handler;
+    }
+
+    void setKey(SelectionKey key) {
+        this.key = key;
+    }
+
+    /**
+     * @return The time of the last read or write in ms.
+     */
+    long getLastActivity() {
+        return lastActivity;
+    }
+
+    void touch(long now) {
+        lastActivity = now;
+    }
+
+    /**
+     * @return True while a request of this connection is handled by a worker.
+     */
+    boolean isBusy() {
+        return busy;
+    }
+
+    void setBusy(boolean busy) {
+        this.busy = busy;
+    }
+
+    boolean isClosed() {
+        return closed;
+    }
+
+    /**
+     * Close the connection once all queued responses are sent.
+     */
+    void closeAfterWrite() {
+        closing = true;
+    }
+
+    /**
+     * Mark that the client won't send more requests. The requests received so far are still answered.
+     */
+    void shutdownInput() {
+        inputShutdown = true;
+    }
+
+    boolean isInputShutdown() {
+        return inputShutdown;
+    }
+
+    /**
+     * Append received bytes to the requests that weren't handled yet.
+     * @param data The buffer with the received bytes from its position to its limit.
+     */
+    void append(ByteBuffer data) {
+        int length = data.remaining();
+        if (input == null) {
+            input = new byte[Math.max(length, 64)];
+        } else if (inputLength + length > input.length) {
+            input = Arrays.copyOf(input, Math.max(inputLength + length, input.length * 2));
+        }
+        data.get(input, inputLength, length);
+        inputLength += length;
+    }
+
+    /**
+     * Take the next complete request from the received bytes.
+     * @return The request or null if no complete request was received yet.
+     * @throws IOException If the request is too large or invalid.
+     */
+    MapRequestProto.MapRequest nextRequest() throws IOException {
+        if (inputLength == 0) return null;
+        int size = 0;
+        int pos = 0;
+        while (true) {
+            if (pos >= inputLength) return null;
+            byte b = input[pos];
+            size |= (b & 0x7F) << (7 * pos);
+            pos++;
+            if ((b & 0x80) == 0) break;
+            if (pos == 5) throw new IOException("Invalid request size");
+        }
+        if (size < 0 || size > MAX_REQUEST_SIZE) throw new IOException("Request too large: " + size);
+        if (inputLength - pos < size) return null;
+        MapRequestProto.MapRequest request;
+        try {
+            request = MapRequestProto.MapRequest.parser().parseFrom(input, pos, size);
+        } catch (InvalidProtocolBufferException e) {
+            throw new IOException("Invalid request", e);
+        }
+        int used = pos + size;
+        inputLength -= used;
+        if (inputLength == 0) {
+            input = null;
+        } else {
+            System.arraycopy(input, used, input, 0, inputLength);
+        }
+        return request;
+    }
+
+    /**
+     * Queue a response to be sent.
+     * @param response The response.
+     */
+    void enqueue(ResponseOutput response) {
+        for (ByteBuffer b : response.toBuffers()) {
+            if (b.hasRemaining()) output.add(b);
+        }
+        sent.add(response);
+    }
+
+    /**
+     * Write as much of the queued responses as the channel accepts. All queued buffers are handed to the channel in a single gathering write.
+     * @return True if all queued responses were written.
+     * @throws IOException If writing failed.
+     */
+    boolean flush() throws IOException {
+        while (!output.isEmpty()) {
+            ByteBuffer[] buffers = output.toArray(new ByteBuffer[output.size()]);
+            int count = Math.min(buffers.length, MAX_GATHER);
+            channel.write(buffers, 0, count);
+            while (!output.isEmpty() && !output.peek().hasRemaining()) {
+                output.poll();
+            }
+            // The socket buffer is full, the rest is written once the channel is writable again.
+            if (buffers[count - 1].hasRemaining()) return false;
+        }
+        release();
+        if (closing) close();
+        return true;
+    }
+
+    /**
+     * @return True if responses are waiting to be sent.
+     */
+    boolean hasOutput() {
+        return !output.isEmpty();
+    }
+
+    /**
+     * Update the events the connection waits for. Requests are read ahead while a request is handled, but only up to a single request of {@link #MAX_REQUEST_SIZE} bytes and not while a response is waiting to be sent, so a client can't make the server buffer without bounds.
+     */
+    void updateInterest() {
+        if (closed || key == null || !key.isValid()) return;
+        int ops = 0;
+        if (!output.isEmpty()) {
+            ops |= SelectionKey.OP_WRITE;
+        } else if (!closing && !inputShutdown && inputLength < MAX_INPUT) {
+            ops |= SelectionKey.OP_READ;
+        }
+        key.interestOps(ops);
+    }
+
+    private void release() {
+        ResponseOutput r;
+        while ((r = sent.poll()) != null) {
+            r.release();
+        }
+    }
+
+    /**
+     * Close the connection immediately.
+     */
+    void close() {
+        if (closed) return;
+        closed = true;
+        input = null;
+        output.clear();
+        release();
+        if (key != null) key.cancel();
+        try {
+            channel.close();
+        } catch (IOException e) {
+            LOGGER.info("Couldn't close channel: " + e.toString());
+        }
+    }
+}
@@ -0,0 +1,150 @@
+/*
+ * Copyright (c) 2018 Joerg Bayer
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.sg_o.app.miioMapServer;
+
+import com.google.protobuf.CodedInputStream;
+import com.google.protobuf.CodedOutputStream;
+import com.google.protobuf.MessageLite;
+import com.google.protobuf.Parser;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.*;
+import java.util.logging.Logger;
+
+/**
+ * This class stores converted messages on disk, so they survive a restart.
+ * Every file starts with the modification time and size of the file the message was converted from. Outdated or damaged files are ignored and deleted.
+ * Files are written to a temporary file first and renamed afterwards, so a crash never leaves a partially written cache file behind.
+ */
+class DiskCache {
+    private final static Logger LOGGER = Logger.getLogger(DiskCache.class.getName());
+    private static final int MAGIC = 0x6D694D43;
+    private static final int FORMAT_VERSION = 1;
+    private static final int HEADER_SIZE = 4 + 4 + 8 + 8;
+    private static final String SUFFIX = ".cache";
+    private static final String TEMP_SUFFIX = ".tmp";
+
+    private final Path directory;
+
+    /**
+     * Create a new disk cache. Temporary files left behind by an earlier crash are removed.
+     * @param directory The directory to store the files in. It is created if it doesn't exist.
+     * @throws IOException If the directory could not be created.
+     */
+    DiskCache(File directory) throws IOException {
+        this.directory = directory.toPath();
+        Files.createDirectories(this.directory);
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(this.directory, "*" + TEMP_SUFFIX)) {
+            for (Path p : stream) {
+                LOGGER.info("Removing incomplete cache file " + p);
+                Files.deleteIfExists(p);
+            }
+        }
+    }
+
+    /**
+     * Load a message.
+     * @param name The name of the map the message belongs to.
+     * @param type The type of the message.
+     * @param source The file the message was converted from.
+     * @param parser The parser for the message.
+     * @param <T> The type of the message.
+     * @return The message or null if it isn't cached or the source file changed.
+     */
+    <T extends MessageLite> T load(String name, String type, File source, Parser<T> parser) {
+        Path file = directory.resolve(fileName(name, type));
+        if (!Files.isRegularFile(file)) return null;
+        try {
+            byte[] data = Files.readAllBytes(file);
+            ByteBuffer header = ByteBuffer.wrap(data);
+            if (data.length < HEADER_SIZE || header.getInt() != MAGIC || header.getInt() != FORMAT_VERSION) {
+                LOGGER.warning("Invalid cache file " + file);
+                Files.deleteIfExists(file);
+                return null;
+            }
+            if (header.getLong() != source.lastModified() || header.getLong() != source.length()) {
+                LOGGER.info("Cache file " + file + " is outdated");
+                Files.deleteIfExists(file);
+                return null;
+            }
+            T message = parser.parseFrom(CodedInputStream.newInstance(data, HEADER_SIZE, data.length - HEADER_SIZE));
+            LOGGER.info("Loaded " + type + " of " + name + " from cache");
+            return message;
+        } catch (IOException e) {
+            LOGGER.warning("Reading cache file " + file + " failed: " + e);
+            try {
+                Files.deleteIfExists(file);
+            } catch (IOException ignored) {
+            }
+            return null;
+        }
+    }
+
+    /**
+     * Store a message. Failures are logged and otherwise ignored.
+     * @param name The name of the map the message belongs to.
+     * @param type The type of the message.
+     * @param source The file the message was converted from.
+     * @param message The message to store.
+     */
+    void store(String name, String type, File source, MessageLite message) {
+        if (message == null) return;
+        Path file = directory.resolve(fileName(name, type));
+        Path temp = null;
+        try {
+            byte[] data = new byte[HEADER_SIZE + message.getSerializedSize()];
+            ByteBuffer header = ByteBuffer.wrap(data);
+            header.putInt(MAGIC);
+            header.putInt(FORMAT_VERSION);
+            header.putLong(source.lastModified());
+            header.putLong(source.length());
+            CodedOutputStream output = CodedOutputStream.newInstance(data, HEADER_SIZE, data.length - HEADER_SIZE);
+            message.writeTo(output);
+            output.checkNoSpaceLeft();
+
+            temp = Files.createTempFile(directory, fileName(name, type), TEMP_SUFFIX);
+            try (FileChannel channel = FileChannel.open(temp, StandardOpenOption.WRITE)) {
+                ByteBuffer buffer = ByteBuffer.wrap(data);
+                while (buffer.hasRemaining()) {
+                    channel.write(buffer);
+                }
+                channel.force(true);
+            }
+            try {
+                Files.move(temp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            } catch (AtomicMoveNotSupportedException e) {
+                Files.move(temp, file, StandardCopyOption.REPLACE_EXISTING);
+            }
+            LOGGER.info("Stored " + type + " of " + name + " in cache");
+        } catch (IOException e) {
+            LOGGER.warning("Writing cache file " + file + " failed: " + e);
+            if (temp != null) {
+                try {
+                    Files.deleteIfExists(temp);
+                } catch (IOException ignored) {
+                }
+            }
+        }
+    }
+
+    private static String fileName(String name, String type) {
+        return name.replaceAll("[^A-Za-z0-9._-]", "_") + "." + type + SUFFIX;
+    }
+}
@@ -0,0 +1,341 @@
+/*
+ * Copyright (c) 2018 Joerg Bayer
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.sg_o.app.miioMapServer;
+
+import de.sg_o.app.miio.base.Token;
+import de.sg_o.proto.MapRequestProto;
+
+import java.io.IOException;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.logging.Logger;
+
+/**
+ * This class serves the connections assigned to it on a single thread with a {@link Selector}.
+ * Requests are framed as they arrive and handed to a worker pool, the responses are written back on the loop thread.
+ * Connections are read from while a request is handled, so requests sent back to back are handled without waiting for a round trip.
+ * Connections that miss their read deadline are closed by a timer on the loop, unless they subscribed to the active map.
+ * New versions of the active map are pushed to the subscribed connections once they have no other responses pending.
+ */
+class EventLoop implements Runnable, ActiveMapListener {
+    private final static Logger LOGGER = Logger.getLogger(EventLoop.class.getName());
+    private static final int READ_BUFFER_SIZE = 16384;
+    private static final long MAX_TICK = 1000;
+    private static final int MAX_BATCH = 16;
+    // Large enough to hold a typical map response, so it is usually written without waiting for the channel.
+    private static final int SEND_BUFFER_SIZE = 262144;
+
+    private final Selector selector;
+    private final ExecutorService workers;
+    private final Maps mapHandler;
+    private final Token tk;
+    private final long idleTimeout;
+    private final ConcurrentLinkedQueue<Runnable> tasks = new ConcurrentLinkedQueue<>();
+    // Ordered by the last activity, so the idle check only looks at the connections that actually timed out.
+    private final LinkedHashMap<Connection, Connection> connections = new LinkedHashMap<>(16, 0.75f, true);
+    private final ByteBuffer readBuffer = ByteBuffer.allocateDirect(READ_BUFFER_SIZE);
+    private volatile boolean running;
+    private Thread thread;
+
+    /**
+     * Create a new event loop.
+     * @param workers The pool the requests are handled in.
+     * @param mapHandler The map handler.
+     * @param tk The devices token.
+     * @param idleTimeout The time in ms a connection may stay idle before it is closed. 0 to never close idle connections.
+     * @throws IOException If the selector could not be opened.
+     */
+    EventLoop(ExecutorService workers, Maps mapHandler, Token tk, long idleTimeout) throws IOException {
+        this.selector = Selector.open();
+        this.workers = workers;
+        this.mapHandler = mapHandler;
+        this.tk = tk;
+        this.idleTimeout = idleTimeout;
+    }
+
+    /**
+     * Start the loop in a new thread.
+     * @param name The name of the thread.
+     */
+    synchronized void start(String name) {
+        if (running) return;
+        running = true;
+        thread = new Thread(this, name);
+        thread.setDaemon(true);
+        thread.start();
+        mapHandler.addActiveMapListener(this);
+    }
+
+    /**
+     * Stop the loop and close all its connections.
+     */
+    synchronized void stop() {
+        mapHandler.removeActiveMapListener(this);
+        running = false;
+        selector.wakeup();
+    }
+
+    /**
+     * Hand a new connection to this loop. It is registered on the loop thread.
+     * @param channel The channel of the new connection.
+     */
+    void register(final SocketChannel channel) {
+        execute(new Runnable() {
+            @Override
+            public void run() {
+                Connection c = new Connection(channel, new RequestHandler(mapHandler, tk));
+                try {
+                    channel.configureBlocking(false);
+                    // Responses are written in one go, so there is nothing to gain from delaying small segments.
+                    channel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+                    channel.setOption(StandardSocketOptions.SO_SNDBUF, SEND_BUFFER_SIZE);
+                    c.setKey(channel.register(selector, SelectionKey.OP_READ, c));
+                } catch (IOException e) {
+                    LOGGER.warning("Couldn't register connection: " + e.toString());
+                    c.close();
+                    return;
+                }
+                c.touch(System.currentTimeMillis());
+                connections.put(c, c);
+                LOGGER.info("Connection established");
+            }
+        });
+    }
+
+    /**
+     * @return The number of open connections. Only exact when called on the loop thread.
+     */
+    int size() {
+        return connections.size();
+    }
+
+    @Override
+    public void activeMapChanged(int revision) {
+        execute(new Runnable() {
+            @Override
+            public void run() {
+                // Pushing may reorder the connections, so they are copied first.
+                for (Connection c : new ArrayList<>(connections.keySet())) {
+                    try {
+                        push(c);
+                    } catch (IOException e) {
+                        LOGGER.info("Connection failed: " + e.toString());
+                        close(c);
+                    }
+                }
+            }
+        });
+    }
+
+    private void execute(Runnable task) {
+        tasks.add(task);
+        selector.wakeup();
+    }
+
+    @Override
+    public void run() {
+        LOGGER.info("Event loop started");
+        while (running) {
+            try {
+                selector.select(tick());
+                runTasks();
+                Iterator<SelectionKey> it = selector.selectedKeys().iterator();
+                while (it.hasNext()) {
+                    SelectionKey key = it.next();
+                    it.remove();
+                    Connection c = (Connection) key.attachment();
+                    try {
+                        if (key.isValid() && key.isReadable()) read(c);
+                        if (key.isValid() && key.isWritable()) write(c);
+                    } catch (IOException e) {
+                        LOGGER.info("Connection failed: " + e.toString());
+                        close(c);
+                    }
+                }
+                closeIdle();
+            } catch (IOException e) {
+                LOGGER.warning("Selecting failed: " + e.toString());
+            }
+        }
+        runTasks();
+        for (Connection c : connections.keySet()) {
+            c.close();
+        }
+        connections.clear();
+        try {
+            selector.close();
+        } catch (IOException ignored) {
+        }
+        LOGGER.info("Event loop stopped");
+    }
+
+    private long tick() {
+        if (idleTimeout <= 0) return 0;
+        return Math.max(1, Math.min(idleTimeout, MAX_TICK));
+    }
+
+    private void runTasks() {
+        Runnable task;
+        while ((task = tasks.poll()) != null) {
+            task.run();
+        }
+    }
+
+    private void read(Connection c) throws IOException {
+        readBuffer.clear();
+        int read = c.getChannel().read(readBuffer);
+        if (read < 0) {
+            LOGGER.info("Connection closed by client");
+            c.shutdownInput();
+            write(c);
+            return;
+        }
+        if (read == 0) return;
+        touch(c);
+        readBuffer.flip();
+        c.append(readBuffer);
+        dispatch(c);
+    }
+
+    private void write(Connection c) throws IOException {
+        if (c.flush()) touch(c);
+        if (c.isClosed()) {
+            connections.remove(c);
+            return;
+        }
+        dispatch(c);
+        push(c);
+        if (c.isClosed()) {
+            connections.remove(c);
+            return;
+        }
+        if (c.isInputShutdown() && !c.isBusy() && !c.hasOutput()) close(c);
+    }
+
+    /**
+     * Send the newest version of the active map if the connection subscribed to it and has no other responses pending.
+     * Updates missed in the meantime are caught up here once the connection is idle again.
+     */
+    private void push(Connection c) throws IOException {
+        if (c.isBusy() || c.isClosed() || c.hasOutput()) return;
+        RequestHandler handler = c.getHandler();
+        if (!handler.hasUpdate()) return;
+        ResponseOutput response = new ResponseOutput();
+        handler.sendUpdate(response);
+        c.enqueue(response);
+        if (c.flush()) touch(c);
+        c.updateInterest();
+    }
+
+    /**
+     * Hand all received requests to a worker if the connection is ready for them.
+     * Pipelined requests are handled one after the other by the same worker and their responses are sent together in order.
+     */
+    private void dispatch(final Connection c) throws IOException {
+        if (!c.isBusy() && !c.isClosed() && !c.hasOutput()) {
+            final List<MapRequestProto.MapRequest> requests = new ArrayList<>();
+            MapRequestProto.MapRequest request;
+            while (requests.size() < MAX_BATCH && (request = c.nextRequest()) != null) {
+                requests.add(request);
+            }
+            if (!requests.isEmpty()) {
+                c.setBusy(true);
+                try {
+                    workers.execute(new Runnable() {
+                        @Override
+                        public void run() {
+                            handle(c, requests);
+                        }
+                    });
+                } catch (RejectedExecutionException e) {
+                    LOGGER.warning("Request rejected: " + e.toString());
+                    close(c);
+                    return;
+                }
+            }
+        }
+        c.updateInterest();
+    }
+
+    private void handle(final Connection c, List<MapRequestProto.MapRequest> requests) {
+        final ResponseOutput response = new ResponseOutput();
+        boolean failed = false;
+        try {
+            for (MapRequestProto.MapRequest request : requests) {
+                LOGGER.info("Got request");
+                c.getHandler().handle(request, response);
+                if (c.getHandler().isClosed()) break;
+            }
+        } catch (RuntimeException e) {
+            LOGGER.warning("Handling request failed: " + e.toString());
+            failed = true;
+        }
+        final boolean close = failed || c.getHandler().isClosed();
+        execute(new Runnable() {
+            @Override
+            public void run() {
+                if (c.isClosed()) {
+                    response.release();
+                    return;
+                }
+                c.setBusy(false);
+                c.enqueue(response);
+                if (close) c.closeAfterWrite();
+                try {
+                    write(c);
+                } catch (IOException e) {
+                    LOGGER.info("Connection failed: " + e.toString());
+                    close(c);
+                }
+            }
+        });
+    }
+
+    private void touch(Connection c) {
+        c.touch(System.currentTimeMillis());
+        connections.get(c);
+    }
+
+    private void close(Connection c) {
+        c.close();
+        connections.remove(c);
+    }
+
+    private void closeIdle() {
+        if (idleTimeout <= 0) return;
+        long now = System.currentTimeMillis();
+        Iterator<Connection> it = connections.keySet().iterator();
+        while (it.hasNext()) {
+            Connection c = it.next();
+            if (now - c.getLastActivity() < idleTimeout) break;
+            if (c.isBusy() || c.getHandler().isSubscribed()) continue;
+            LOGGER.warning("No message received in: " + idleTimeout + "ms");
+            c.close();
+            it.remove();
+        }
+    }
+}
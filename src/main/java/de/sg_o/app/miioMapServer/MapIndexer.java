@@ -0,0 +1,178 @@
+/*
+ * Copyright (c) 2018 Joerg Bayer
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.sg_o.app.miioMapServer;
+
+import java.io.IOException;
+import java.nio.file.*;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Logger;
+
+import static java.nio.file.StandardWatchEventKinds.*;
+
+/**
+ * This class keeps the map index of a {@link Maps} object up to date in the background.
+ * It watches the active map directory, the previous maps directory and every run directory in it for changes.
+ * If events get lost or the directories can not be watched, the directories are scanned periodically instead.
+ */
+class MapIndexer implements Runnable {
+    private final static Logger LOGGER = Logger.getLogger(MapIndexer.class.getName());
+    private static final long SCAN_INTERVAL = 60000;
+    private static final String SLAM_FILE = "SLAM_fprintf.log";
+
+    private final Maps maps;
+    private final Path activeMapDirectory;
+    private final Path previousMapsDirectory;
+    private volatile WatchService watcher;
+    private volatile boolean running;
+    private Thread thread;
+
+    /**
+     * Create a new indexer.
+     * @param maps The maps to keep up to date.
+     * @param activeMapDirectory The directory where the files for the active map can be found.
+     * @param previousMapsDirectory The directory where the directories for the older maps can be found.
+     */
+    MapIndexer(Maps maps, Path activeMapDirectory, Path previousMapsDirectory) {
+        this.maps = maps;
+        this.activeMapDirectory = activeMapDirectory;
+        this.previousMapsDirectory = previousMapsDirectory;
+    }
+
+    /**
+     * Start watching the directories in a background thread.
+     */
+    synchronized void start() {
+        if (running) return;
+        try {
+            watcher = FileSystems.getDefault().newWatchService();
+            activeMapDirectory.register(watcher, ENTRY_CREATE, ENTRY_DELETE, ENTRY_MODIFY);
+            previousMapsDirectory.register(watcher, ENTRY_CREATE, ENTRY_DELETE, ENTRY_MODIFY);
+            try (DirectoryStream<Path> stream = Files.newDirectoryStream(previousMapsDirectory)) {
+                for (Path p : stream) {
+                    registerRun(p);
+                }
+            }
+        } catch (IOException | UnsupportedOperationException e) {
+            LOGGER.warning("Unable to watch map directories, scanning every " + SCAN_INTERVAL + "ms instead: " + e);
+            closeWatcher();
+        }
+        running = true;
+        thread = new Thread(this, "MapIndexer");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * Stop watching the directories.
+     */
+    synchronized void stop() {
+        running = false;
+        if (thread != null) thread.interrupt();
+        thread = null;
+        closeWatcher();
+    }
+
+    /**
+     * @return True if the indexer is running.
+     */
+    boolean isRunning() {
+        return running;
+    }
+
+    @Override
+    public void run() {
+        LOGGER.info("Map indexer started");
+        while (running) {
+            try {
+                WatchService w = watcher;
+                if (w == null) {
+                    Thread.sleep(SCAN_INTERVAL);
+                    scan();
+                    continue;
+                }
+                WatchKey key = w.poll(SCAN_INTERVAL, TimeUnit.MILLISECONDS);
+                if (key == null) continue;
+                boolean active = false;
+                boolean previous = false;
+                while (key != null) {
+                    Path dir = (Path) key.watchable();
+                    for (WatchEvent<?> event : key.pollEvents()) {
+                        if (event.kind() == OVERFLOW) {
+                            LOGGER.info("Map directory events lost, scanning");
+                            active = true;
+                            previous = true;
+                            continue;
+                        }
+                        Path name = (Path) event.context();
+                        if (dir.equals(activeMapDirectory)) {
+                            active |= isActiveMapEvent(event.kind(), name.toString());
+                        } else if (dir.equals(previousMapsDirectory)) {
+                            if (event.kind() == ENTRY_CREATE) registerRun(dir.resolve(name));
+                            previous = true;
+                        } else {
+                            previous = true;
+                        }
+                    }
+                    if (!key.reset() && (dir.equals(activeMapDirectory) || dir.equals(previousMapsDirectory))) {
+                        LOGGER.warning("Map directory " + dir + " can no longer be watched, scanning every " + SCAN_INTERVAL + "ms instead");
+                        closeWatcher();
+                    }
+                    key = w.poll();
+                }
+                if (active) maps.updateActiveMap();
+                if (previous) maps.updatePreviousMaps();
+            } catch (InterruptedException e) {
+                LOGGER.fine("Map indexer interrupted");
+            } catch (ClosedWatchServiceException e) {
+                if (running) closeWatcher();
+            } catch (Exception e) {
+                LOGGER.warning("Updating the map index failed: " + e);
+            }
+        }
+        LOGGER.info("Map indexer stopped");
+    }
+
+    private static boolean isActiveMapEvent(WatchEvent.Kind<?> kind, String name) {
+        if (name.startsWith("navmap") && name.endsWith(".ppm")) return true;
+        // The slam log is followed by SlamTail, only its creation and removal change the index.
+        return name.equals(SLAM_FILE) && kind != ENTRY_MODIFY;
+    }
+
+    private void scan() {
+        maps.updateActiveMap();
+        maps.updatePreviousMaps();
+    }
+
+    private void registerRun(Path run) {
+        WatchService w = watcher;
+        if (w == null || !Files.isDirectory(run)) return;
+        try {
+            run.register(w, ENTRY_CREATE, ENTRY_DELETE, ENTRY_MODIFY);
+        } catch (IOException | ClosedWatchServiceException e) {
+            LOGGER.warning("Unable to watch run directory " + run + ": " + e);
+        }
+    }
+
+    private synchronized void closeWatcher() {
+        if (watcher == null) return;
+        try {
+            watcher.close();
+        } catch (IOException ignored) {
+        }
+        watcher = null;
+    }
+}
@@ -0,0 +1,144 @@
+/*
+ * Copyright (c) 2018 Joerg Bayer
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.sg_o.app.miioMapServer;
+
+import java.util.Arrays;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * This class scales a map up by an integer factor and renders a window of the result.
+ * Each source row is expanded once, filling runs of the same color at a time, and then copied for the remaining output rows.
+ * Large images are rendered in bands of rows on a shared fork join pool.
+ */
+final class MapRenderer {
+    // Below this number of output pixels splitting the work costs more than it saves.
+    private static final int PARALLEL_THRESHOLD = 1 << 20;
+    private static final int MIN_BAND_ROWS = 16;
+    private static final ForkJoinPool POOL = new ForkJoinPool(Runtime.getRuntime().availableProcessors());
+
+    private MapRenderer() {
+    }
+
+    /**
+     * Render a window of a scaled up map. Pixels of the window outside of the map are 0.
+     * @param source The map.
+     * @param sourceWidth The width of the map.
+     * @param sourceHeight The height of the map.
+     * @param overSample The factor to scale the map by.
+     * @param window The window in scaled coordinates (x, y, width, height).
+     * @param target An array to render into. It is used if it has exactly the size of the window, otherwise a new one is allocated. May be null.
+     * @return The window with a width of window[2].
+     */
+    static int[] render(PalettedMap source, int sourceWidth, int sourceHeight, int overSample, int[] window, int[] target) {
+        int size = window[2] * window[3];
+        int[] out = (target != null && target.length == size) ? target : new int[size];
+        Band all = new Band(source, sourceWidth, sourceHeight, overSample, window, out, 0, window[3], 0);
+        if (size >= PARALLEL_THRESHOLD && window[3] >= 2 * MIN_BAND_ROWS && POOL.getParallelism() > 1) {
+            all.band = Math.max(MIN_BAND_ROWS, window[3] / (POOL.getParallelism() * 4));
+            POOL.invoke(all);
+        } else {
+            all.renderRows();
+        }
+        return out;
+    }
+
+    private static class Band extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+
+        private final PalettedMap source;
+        private final int sourceWidth;
+        private final int sourceHeight;
+        private final int overSample;
+        private final int[] window;
+        private final int[] out;
+        private final int from;
+        private final int to;
+        private int band;
+
+        Band(PalettedMap source, int sourceWidth, int sourceHeight, int overSample, int[] window, int[] out, int from, int to, int band) {
+            this.source = source;
+            this.sourceWidth = sourceWidth;
+            this.sourceHeight = sourceHeight;
+            this.overSample = overSample;
+            this.window = window;
+            this.out = out;
+            this.from = from;
+            this.to = to;
+            this.band = band;
+        }
+
+        @Override
+        protected void compute() {
+            if (to - from <= band) {
+                renderRows();
+                return;
+            }
+            int middle = (from + to) >>> 1;
+            invokeAll(new Band(source, sourceWidth, sourceHeight, overSample, window, out, from, middle, band),
+                    new Band(source, sourceWidth, sourceHeight, overSample, window, out, middle, to, band));
+        }
+
+        /**
+         * Render the rows of the window from "from" to "to". Output rows of the same source row are copied from the first one.
+         */
+        void renderRows() {
+            int width = window[2];
+            int lastSourceRow = Integer.MIN_VALUE;
+            for (int y = from; y < to; y++) {
+                int row = y * width;
+                int scaledRow = window[1] + y;
+                int sourceRow = scaledRow < 0 ? -1 : scaledRow / overSample;
+                if (sourceRow == lastSourceRow) {
+                    System.arraycopy(out, row - width, out, row, width);
+                    continue;
+                }
+                lastSourceRow = sourceRow;
+                if (sourceRow < 0 || sourceRow >= sourceHeight) {
+                    Arrays.fill(out, row, row + width, 0);
+                    continue;
+                }
+                expandRow(sourceRow * sourceWidth, row);
+            }
+        }
+
+        private void expandRow(int src, int row) {
+            int x = window[0];
+            int end = x + window[2];
+            int pos = row;
+            if (x < 0) {
+                int e = Math.min(end, 0);
+                Arrays.fill(out, pos, pos + (e - x), 0);
+                pos += e - x;
+                x = e;
+            }
+            int mapEnd = Math.min(end, sourceWidth * overSample);
+            int sourceEnd = (mapEnd + overSample - 1) / overSample;
+            while (x < mapEnd) {
+                int sx = x / overSample;
+                int color = source.get(src + sx);
+                int sxEnd = sx + 1;
+                while (sxEnd < sourceEnd && source.get(src + sxEnd) == color) sxEnd++;
+                int e = Math.min(sxEnd * overSample, mapEnd);
+                Arrays.fill(out, pos, pos + (e - x), color);
+                pos += e - x;
+                x = e;
+            }
+            if (x < end) Arrays.fill(out, pos, pos + (end - x), 0);
+        }
+    }
+}
@@ -1,37 +1,68 @@
 package de.sg_o.app.miioMapServer;
 
+import com.google.protobuf.MessageLite;
 import de.sg_o.app.miio.util.ByteArray;
 import de.sg_o.proto.MapPackageProto;
 import de.sg_o.proto.MapSlamProto;
 
 import javax.crypto.Cipher;
+import javax.crypto.CipherInputStream;
 import javax.crypto.spec.SecretKeySpec;
 import java.io.*;
-import java.util.Arrays;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.security.GeneralSecurityException;
+import java.util.Collections;
 import java.util.LinkedHashMap;
+import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicReferenceArray;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 import java.util.zip.GZIPInputStream;
 
 /**
  * This class handles the parsing of the maps stored on the device.
+ * The current state is kept in immutable snapshots that are replaced as a whole on every update, so reading it never blocks.
  */
 public class Maps {
     private final static Logger LOGGER = Logger.getLogger(Maps.class.getName());
 
+    private final static int TOLERANCE_STEPS = 4;
+    private final static int MAX_SIMPLIFIED_PATHS = 16;
+    private final static long DEFAULT_CACHE_SIZE = 32L * 1024 * 1024;
+
+    private final static int STREAM_BUFFER_SIZE = 65536;
+
     private final static SecretKeySpec decryptionKey = new SecretKeySpec(ByteArray.hexToBytes("526f434b52304230404245494a494e47"), "AES");
+    private final static ThreadLocal<Cipher> DECRYPTION_CIPHER = new ThreadLocal<Cipher>() {
+        @Override
+        protected Cipher initialValue() {
+            try {
+                return Cipher.getInstance("AES/ECB/NoPadding");
+            } catch (GeneralSecurityException e) {
+                throw new IllegalStateException("AES is not available", e);
+            }
+        }
+    };
 
     private final File activeMapDirectory;
     private final File previousMapsDirectory;
 
-    private MapPackageProto.MapPackage activeMap;
-    private File activeMapSlam;
-    private MapPackageProto.MapPackage lastMap;
-    private MapSlamProto.MapSlam lastPath;
-    private int lastMapNumber = 0;
-    private long activeMapLastModified = 0;
-    private LinkedHashMap<String, File[]> previousMaps = new LinkedHashMap<>();
+    private final Object activeUpdateLock = new Object();
+    private final Object previousUpdateLock = new Object();
+    private volatile ActiveState active = ActiveState.EMPTY;
+    private volatile PreviousState previous = PreviousState.EMPTY;
+    private int activeRevision = 0;
+    private final CopyOnWriteArrayList<ActiveMapListener> activeMapListeners = new CopyOnWriteArrayList<>();
+    private final MessageCache cache = new MessageCache(DEFAULT_CACHE_SIZE);
+    private final SingleFlight<MessageLite> conversions = new SingleFlight<>();
+    private DiskCache diskCache;
+    private volatile MapIndexer indexer;
 
 
     /**
@@ -42,6 +73,18 @@ public class Maps {
      * @throws IOException When the directories are invalid.
      */
     public Maps(File activeMapDirectory, File previousMapsDirectory, Level logLevel) throws IOException {
+        this(activeMapDirectory, previousMapsDirectory, null, logLevel);
+    }
+
+    /**
+     * Create a new Maps object.
+     * @param activeMapDirectory The directory where the files for the active map can be found.
+     * @param previousMapsDirectory The directory where the directories for the older maps can be found.
+     * @param cacheDirectory The directory converted old maps and paths are stored in, so they survive a restart. Null to disable.
+     * @param logLevel The log level.
+     * @throws IOException When the directories are invalid.
+     */
+    public Maps(File activeMapDirectory, File previousMapsDirectory, File cacheDirectory, Level logLevel) throws IOException {
         if (logLevel != null) {
             LOGGER.setLevel(logLevel);
         }
@@ -52,6 +95,13 @@ public class Maps {
         LOGGER.info("Map directories fine");
         this.activeMapDirectory = activeMapDirectory;
         this.previousMapsDirectory = previousMapsDirectory;
+        if (cacheDirectory != null) {
+            try {
+                this.diskCache = new DiskCache(cacheDirectory);
+            } catch (IOException e) {
+                LOGGER.warning("Unable to use cache directory " + cacheDirectory + ": " + e);
+            }
+        }
         LOGGER.info("Generating active map");
         generateActiveMap();
         LOGGER.info("Finished generating active map");
@@ -61,102 +111,132 @@ public class Maps {
     }
 
     private void generateActiveMap() {
-        File mapFile = null;
-        File slamFile = null;
-        if (activeMapDirectory == null) {
-            LOGGER.warning("Active map directory not set");
-            activeMap = null;
-            return;
-        }
-        File[] files = activeMapDirectory.listFiles();
-        if (files == null) {
-            LOGGER.warning("Unable to list files in active map directory");
-            activeMap = null;
-            return;
-        }
-        LOGGER.info("Going through files to find active map and slam");
-        for (File f : files) {
-            if (f.isDirectory()) continue;
-            LOGGER.fine("Active map directory file: " + f.getName());
-            if (f.getName().startsWith("navmap") && f.getName().endsWith(".ppm")) {
-                LOGGER.info("Found navmap");
-                mapFile = f;
+        synchronized (activeUpdateLock) {
+            File mapFile = null;
+            File slamFile = null;
+            if (activeMapDirectory == null) {
+                LOGGER.warning("Active map directory not set");
+                active = ActiveState.EMPTY;
+                return;
             }
-            if (f.getName().equals("SLAM_fprintf.log")) {
-                LOGGER.info("Found SLAM");
-                slamFile = f;
+            File[] files = activeMapDirectory.listFiles();
+            if (files == null) {
+                LOGGER.warning("Unable to list files in active map directory");
+                active = ActiveState.EMPTY;
+                return;
+            }
+            LOGGER.info("Going through files to find active map and slam");
+            for (File f : files) {
+                if (f.isDirectory()) continue;
+                LOGGER.fine("Active map directory file: " + f.getName());
+                if (f.getName().startsWith("navmap") && f.getName().endsWith(".ppm")) {
+                    LOGGER.info("Found navmap");
+                    mapFile = f;
+                }
+                if (f.getName().equals("SLAM_fprintf.log")) {
+                    LOGGER.info("Found SLAM");
+                    slamFile = f;
+                }
+            }
+            if (mapFile == null || slamFile == null) {
+                LOGGER.info("No valid active map found");
+                active = ActiveState.EMPTY;
+                return;
+            }
+            ActiveState current = active;
+            long lastModified = mapFile.lastModified();
+            if (current.lastModified == lastModified && slamFile.equals(current.slamFile)) {
+                LOGGER.info("Map file doesn't need updating");
+                return;
             }
-        }
-        if (mapFile == null || slamFile == null) {
-            LOGGER.info("No valid active map found");
-            activeMap = null;
-            return;
-        }
-        if (activeMapLastModified == mapFile.lastModified()) {
-            LOGGER.info("Map file doesn't need updating");
-            return;
-        }
 
-        try {
-            synchronized(this) {
+            try {
                 LOGGER.info("Creating active de.sg_o.app.miioMapServer.VacuumMap");
-                activeMap = VacuumMap.directToMapPackage(new BufferedReader(new FileReader(mapFile)));
-                activeMapSlam = slamFile;
+                MapPackageProto.MapPackage map = VacuumMap.directToMapPackage(mapFile.toPath());
+                SlamTail tail = current.tail;
+                if (tail == null || !tail.isFor(slamFile.toPath())) {
+                    LOGGER.info("Following new slam file");
+                    tail = new SlamTail(slamFile.toPath());
+                }
+                int revision = ++activeRevision;
+                map = map.toBuilder().setRevision(revision).build();
+                byte[] delta = null;
+                // The changes are only computed if someone listens for them, but then only once for all of them.
+                if (!activeMapListeners.isEmpty() && current.map != null && current.revision == revision - 1) {
+                    delta = MessageCache.toDelimited(VacuumMap.toDeltaPackage(current.map, map));
+                }
+                active = new ActiveState(map, slamFile, tail, lastModified, revision, delta);
                 LOGGER.info("Created active de.sg_o.app.miioMapServer.VacuumMap");
-                activeMapLastModified = mapFile.lastModified();
+            } catch (IOException e) {
+                LOGGER.warning("Unable to open active map files");
+                active = ActiveState.EMPTY;
+                return;
+            }
+            for (ActiveMapListener l : activeMapListeners) {
+                l.activeMapChanged(active.revision);
             }
-        } catch (IOException e) {
-            LOGGER.warning("Unable to open active map files");
-            activeMap = null;
         }
     }
 
-    private synchronized void generatePreviousMaps() {
-        if (previousMapsDirectory == null) {
-            LOGGER.warning("Previous maps directory not set");
-            previousMaps = new LinkedHashMap<>();
-            return;
-        }
-        File[] files = previousMapsDirectory.listFiles();
-        if (files == null) {
-            LOGGER.warning("Unable to list files in previous maps directory");
-            previousMaps = new LinkedHashMap<>();
-            return;
-        }
-        for (File f : files) {
-            if (!f.isDirectory()) continue;
-            LOGGER.fine("Previous map directory: " + f.getName());
-            extractMap(f);
-        }
-        LOGGER.info("Checking for the latest previous map");
-        String latestMapName = null;
-        for (String s : previousMaps.keySet()) {
-            LOGGER.fine("Checking previous map: " + s);
-            String[] split = s.split("\\.");
-            if (split.length < 1) {
-                LOGGER.info("The directory name could not be parsed: " + s);
-                continue;
+    private void generatePreviousMaps() {
+        synchronized (previousUpdateLock) {
+            if (previousMapsDirectory == null) {
+                LOGGER.warning("Previous maps directory not set");
+                previous = PreviousState.EMPTY;
+                return;
             }
-            try {
-                int i = Integer.valueOf(split[0]);
-                if (i > lastMapNumber){
-                    LOGGER.fine("Found newer map" + i);
-                    lastMapNumber = i;
-                    latestMapName = s;
+            File[] files = previousMapsDirectory.listFiles();
+            if (files == null) {
+                LOGGER.warning("Unable to list files in previous maps directory");
+                previous = PreviousState.EMPTY;
+                return;
+            }
+            PreviousState current = previous;
+            LinkedHashMap<String, OldMapFiles> previousMaps = new LinkedHashMap<>(current.maps);
+            for (File f : files) {
+                if (!f.isDirectory()) continue;
+                LOGGER.fine("Previous map directory: " + f.getName());
+                extractMap(f, previousMaps);
+            }
+            LOGGER.info("Checking for the latest previous map");
+            String latestMapName = null;
+            int lastMapNumber = current.lastMapNumber;
+            for (String s : previousMaps.keySet()) {
+                LOGGER.fine("Checking previous map: " + s);
+                String[] split = s.split("\\.");
+                if (split.length < 1) {
+                    LOGGER.info("The directory name could not be parsed: " + s);
+                    continue;
+                }
+                try {
+                    int i = Integer.valueOf(split[0]);
+                    if (i > lastMapNumber){
+                        LOGGER.fine("Found newer map" + i);
+                        lastMapNumber = i;
+                        latestMapName = s;
+                    }
+                }catch (Exception e){
+                    LOGGER.info("The directory name could not be parsed: " + s + ": " + e.toString());
                 }
-            }catch (Exception e){
-                LOGGER.info("The directory name could not be parsed: " + s + ": " + e.toString());
             }
-        }
-        if (latestMapName != null){
-            LOGGER.info("Generating latest old vacuumMap");
-            lastMap = getOldMap(latestMapName);
-            lastPath = getOldPath(latestMapName);
-            LOGGER.info("Generated latest old vacuumMap");
+            if (previousMaps.size() != current.maps.size()) {
+                previous = new PreviousState(previousMaps, current.lastMapNumber, current.lastMapName, current.lastMap, current.lastPath);
+            }
+            if (latestMapName != null){
+                LOGGER.info("Generating latest old vacuumMap");
+                MapPackageProto.MapPackage lastMap = getOldMap(latestMapName);
+                MapSlamProto.MapSlam lastPath = getOldPath(latestMapName);
+                if (lastMap == null || lastPath == null) {
+                    LOGGER.info("Latest old vacuumMap could not be generated, retrying with the next update");
+                    return;
+                }
+                previous = new PreviousState(previousMaps, lastMapNumber, latestMapName, lastMap, lastPath);
+                LOGGER.info("Generated latest old vacuumMap");
+            }
         }
     }
 
-    private void extractMap(File folder){
+    private void extractMap(File folder, Map<String, OldMapFiles> previousMaps){
         File mapFile = null;
         File slamFile = null;
         if (folder == null) {
@@ -187,15 +267,8 @@ public class Maps {
             LOGGER.info("No valid previous map found");
             return;
         }
-        synchronized(this) {
-            LOGGER.info("Preparing storing of map name and files");
-            File[] mapFiles = new File[2];
-            mapFiles[0] = mapFile;
-            mapFiles[1] = slamFile;
-            LOGGER.info("Storing of map name and files");
-            previousMaps.put(folder.getName(), mapFiles);
-            LOGGER.info("Stored of map name and files");
-        }
+        LOGGER.info("Storing of map name and files");
+        previousMaps.put(folder.getName(), new OldMapFiles(mapFile, slamFile));
     }
 
     /**
@@ -204,44 +277,129 @@ public class Maps {
      * @return The old map or null if no map was found.
      */
     public MapPackageProto.MapPackage getOldMap(String name) {
-        if (name == null) {
-            LOGGER.warning("No old map file provided to parse");
-            return null;
-        }
-        File[] map = previousMaps.get(name);
-        if (map == null) {
-            LOGGER.warning("Old map " + name + " not found");
-            return null;
-        }
-        if (map.length != 2) {
-            LOGGER.warning("Old map entry not of correct length");
-            return null;
+        return getOldMap(name, 0);
+    }
+
+    /**
+     * Get a old map in a specific format.
+     * Decoded maps are cached until the map file changes.
+     * @param name The maps name.
+     * @param version The format version of the map message. 2 for the run length encoded format, everything else for the default format.
+     * @return The old map or null if no map was found.
+     */
+    public MapPackageProto.MapPackage getOldMap(String name, int version) {
+        return getOldMap(name, version, 0);
+    }
+
+    /**
+     * Get a old map in a specific format and resolution.
+     * Decoded and reduced maps are cached until the map file changes.
+     * @param name The maps name.
+     * @param version The format version of the map message. 2 for the run length encoded format, everything else for the default format.
+     * @param level The level of the reduced resolution. See {@link VacuumMap#toDownsampledPackage(MapPackageProto.MapPackage, int)}.
+     * @return The old map or null if no map was found.
+     */
+    public MapPackageProto.MapPackage getOldMap(String name, int version, int level) {
+        if (version != 2) version = 0;
+        level = toLevel(level);
+        String key = oldMapKey(name, version, level);
+        if (key == null) return null;
+        MapPackageProto.MapPackage pack = (MapPackageProto.MapPackage) cache.get(key);
+        if (pack != null) {
+            LOGGER.info("Old map " + name + " found in cache");
+            return pack;
         }
-        LOGGER.info("Decompressing map file");
-        BufferedReader mapReader;
-        synchronized (this) {
-            boolean encrypted = false;
-            try {
-                RandomAccessFile fileCheck = new RandomAccessFile(map[1], "r");
-                int rd = fileCheck.read();
-                if (rd != 31) encrypted = true;
-                rd = fileCheck.read();
-                if (rd != 139) encrypted = true;
-                fileCheck.close();
-            } catch (IOException ignored) {
+        return loadOldMap(name, version, level, key);
+    }
+
+    /**
+     * Get the old map another format is derived from. Unlike {@link #getOldMap(String, int, int)} this doesn't count as a cache hit or miss, so a request is only counted once.
+     */
+    private MapPackageProto.MapPackage getBaseOldMap(String name, int version, int level) {
+        String key = oldMapKey(name, version, level);
+        if (key == null) return null;
+        MapPackageProto.MapPackage pack = (MapPackageProto.MapPackage) cache.peek(key);
+        if (pack != null) return pack;
+        return loadOldMap(name, version, level, key);
+    }
+
+    private MapPackageProto.MapPackage loadOldMap(String name, int version, int level, String key) {
+        final String n = name;
+        final int v = version;
+        final int l = level;
+        final String k = key;
+        return (MapPackageProto.MapPackage) conversions.run(key, new Callable<MessageLite>() {
+            @Override
+            public MessageLite call() {
+                return convertOldMap(n, v, l, k);
+            }
+        });
+    }
+
+    private MapPackageProto.MapPackage convertOldMap(String name, int version, int level, String key) {
+        MapPackageProto.MapPackage pack = (MapPackageProto.MapPackage) cache.peek(key);
+        if (pack != null) return pack;
+        if (version == 2) {
+            pack = VacuumMap.toRunLengthPackage(getBaseOldMap(name, 0, level));
+        } else if (level > 0) {
+            pack = VacuumMap.toDownsampledPackage(getBaseOldMap(name, 0, 0), level);
+        } else {
+            OldMapFiles map = findOldMap(name);
+            if (map == null) return null;
+            if (diskCache != null) pack = diskCache.load(name, "map", map.map, MapPackageProto.MapPackage.parser());
+            if (pack == null) {
+                pack = decodeOldMap(map);
+                if (diskCache != null) diskCache.store(name, "map", map.map, pack);
             }
-            mapReader = unzipFile(map[0], encrypted);
-        }
-        LOGGER.info("Done decompressing");
-        if (mapReader == null) {
-            LOGGER.warning("Decompression failed");
-            return null;
         }
-        LOGGER.info("Generating old map");
-        try {
-            return VacuumMap.directToMapPackage(mapReader);
-        } catch (IOException e) {
-            LOGGER.warning("Unable to open old map file");
+        cache.put(key, pack);
+        return pack;
+    }
+
+    /**
+     * Get a old map in the length delimited wire format. The bytes are cached next to the decoded map.
+     * @param name The maps name.
+     * @param version The format version of the map message. 2 for the run length encoded format, everything else for the default format.
+     * @return The old map or null if no map was found.
+     */
+    public byte[] getOldMapBytes(String name, int version) {
+        return getOldMapBytes(name, version, 0);
+    }
+
+    /**
+     * Get a old map with a reduced resolution in the length delimited wire format. The bytes are cached next to the map.
+     * @param name The maps name.
+     * @param version The format version of the map message. 2 for the run length encoded format, everything else for the default format.
+     * @param level The level of the reduced resolution. See {@link VacuumMap#toDownsampledPackage(MapPackageProto.MapPackage, int)}.
+     * @return The old map or null if no map was found.
+     */
+    public byte[] getOldMapBytes(String name, int version, int level) {
+        if (version != 2) version = 0;
+        level = toLevel(level);
+        MapPackageProto.MapPackage pack = getOldMap(name, version, level);
+        if (pack == null) return null;
+        byte[] wire = cache.getDelimited(oldMapKey(name, version, level));
+        if (wire != null) return wire;
+        return MessageCache.toDelimited(pack);
+    }
+
+    private String oldMapKey(String name, int version, int level) {
+        OldMapFiles map = findOldMap(name);
+        if (map == null) return null;
+        String variant = level == 0 ? Integer.toString(version) : version + ":" + level;
+        return cacheKey("map", name, variant, map.map);
+    }
+
+    private static int toLevel(int level) {
+        return Math.min(Math.max(level, 0), VacuumMap.MAX_LEVEL);
+    }
+
+    private MapPackageProto.MapPackage decodeOldMap(OldMapFiles map) {
+        LOGGER.info("Decoding map file " + map.map);
+        try (InputStream in = openCompressed(map.map, map.isMapEncrypted())) {
+            return VacuumMap.directToMapPackage(in);
+        } catch (IOException | GeneralSecurityException e) {
+            LOGGER.warning("Unable to decode old map file: " + e);
             return null;
         }
     }
@@ -252,143 +410,395 @@ public class Maps {
      * @return The old maps path or null if no map was found.
      */
     public MapSlamProto.MapSlam getOldPath(String name){
+        return getOldPath(name, 0);
+    }
+
+    /**
+     * Get a old maps path.
+     * @param name The maps name.
+     * @param version The format version of the path message. 1 for the compact delta encoded format, everything else for the default format.
+     * @return The old maps path or null if no map was found.
+     */
+    public MapSlamProto.MapSlam getOldPath(String name, int version){
+        return getOldPath(name, version, 0);
+    }
+
+    /**
+     * Get a old maps path.
+     * Decoded paths are cached for every format and tolerance until the slam file changes.
+     * @param name The maps name.
+     * @param version The format version of the path message. 1 for the compact delta encoded format, everything else for the default format.
+     * @param tolerance The maximum distance in map pixels a point may have from the simplified path. It is rounded to a quarter of a pixel. 0 to get every point.
+     * @return The old maps path or null if no map was found.
+     */
+    public MapSlamProto.MapSlam getOldPath(String name, int version, float tolerance){
+        if (version != 1) version = 0;
+        int bucket = toleranceBucket(tolerance);
+        String key = oldPathKey(name, version, bucket);
+        if (key == null) return null;
+        MapSlamProto.MapSlam slam = (MapSlamProto.MapSlam) cache.get(key);
+        if (slam != null) {
+            LOGGER.info("Old path " + name + " found in cache");
+            return slam;
+        }
+        return loadOldPath(name, version, bucket, key);
+    }
+
+    /**
+     * Get the old path another format is derived from. Unlike {@link #getOldPath(String, int, float)} this doesn't count as a cache hit or miss, so a request is only counted once.
+     */
+    private MapSlamProto.MapSlam getBaseOldPath(String name, int version, int bucket) {
+        String key = oldPathKey(name, version, bucket);
+        if (key == null) return null;
+        MapSlamProto.MapSlam slam = (MapSlamProto.MapSlam) cache.peek(key);
+        if (slam != null) return slam;
+        return loadOldPath(name, version, bucket, key);
+    }
+
+    private MapSlamProto.MapSlam loadOldPath(String name, int version, int bucket, String key) {
+        final String n = name;
+        final int v = version;
+        final int b = bucket;
+        final String k = key;
+        return (MapSlamProto.MapSlam) conversions.run(key, new Callable<MessageLite>() {
+            @Override
+            public MessageLite call() {
+                return convertOldPath(n, v, b, k);
+            }
+        });
+    }
+
+    private MapSlamProto.MapSlam convertOldPath(String name, int version, int bucket, String key) {
+        MapSlamProto.MapSlam slam = (MapSlamProto.MapSlam) cache.peek(key);
+        if (slam != null) return slam;
+        if (bucket > 0) {
+            slam = VacuumMap.simplifyPath(getBaseOldPath(name, version, 0), bucket / (float) TOLERANCE_STEPS);
+        } else if (version == 1) {
+            slam = VacuumMap.toCompactPath(getBaseOldPath(name, 0, 0));
+        } else {
+            OldMapFiles map = findOldMap(name);
+            if (map == null) return null;
+            if (diskCache != null) slam = diskCache.load(name, "slam", map.slam, MapSlamProto.MapSlam.parser());
+            if (slam == null) {
+                slam = decodeOldPath(map);
+                if (diskCache != null) diskCache.store(name, "slam", map.slam, slam);
+            }
+        }
+        cache.put(key, slam);
+        return slam;
+    }
+
+    /**
+     * Get a old maps path in the length delimited wire format. The bytes are cached next to the decoded path.
+     * @param name The maps name.
+     * @param version The format version of the path message. 1 for the compact delta encoded format, everything else for the default format.
+     * @param tolerance The maximum distance in map pixels a point may have from the simplified path. It is rounded to a quarter of a pixel. 0 to get every point.
+     * @return The old maps path or null if no map was found.
+     */
+    public byte[] getOldPathBytes(String name, int version, float tolerance) {
+        if (version != 1) version = 0;
+        MapSlamProto.MapSlam slam = getOldPath(name, version, tolerance);
+        if (slam == null) return null;
+        byte[] wire = cache.getDelimited(oldPathKey(name, version, toleranceBucket(tolerance)));
+        if (wire != null) return wire;
+        return MessageCache.toDelimited(slam);
+    }
+
+    private String oldPathKey(String name, int version, int bucket) {
+        OldMapFiles map = findOldMap(name);
+        if (map == null) return null;
+        return cacheKey("slam", name, version + ":" + bucket, map.slam);
+    }
+
+    private OldMapFiles findOldMap(String name) {
         if (name == null) {
             LOGGER.warning("No old map file provided to parse");
             return null;
         }
-        File[] map = previousMaps.get(name);
+        OldMapFiles map = previous.maps.get(name);
         if (map == null) {
             LOGGER.warning("Old map " + name + " not found");
             return null;
         }
-        if (map.length != 2) {
-            LOGGER.warning("Old map entry not of correct length");
-            return null;
-        }
-        LOGGER.info("Decompressing SLAM file");
-        BufferedReader slamReader;
-        synchronized (this) {
-            boolean encrypted = false;
-            try {
-                RandomAccessFile fileCheck = new RandomAccessFile(map[1], "r");
-                int rd = fileCheck.read();
-                if (rd != 31) encrypted = true;
-                rd = fileCheck.read();
-                if (rd != 139) encrypted = true;
-                fileCheck.close();
-            } catch (IOException ignored) {
-            }
-            slamReader = unzipFile(map[1], encrypted);
-        }
-        LOGGER.info("Done decompressing");
-        if (slamReader == null) {
-            LOGGER.warning("Decompression failed");
-            return null;
-        }
-        LOGGER.info("Generating old map");
-        try {
-            return VacuumMap.directToPath(slamReader);
-        } catch (IOException e) {
-            LOGGER.warning("Unable to open old path file");
-            return null;
-        }
+        return map;
+    }
+
+    private static String cacheKey(String type, String name, String variant, File file) {
+        return type + "/" + name + "/" + variant + "/" + file.lastModified() + "/" + file.length();
     }
 
-    private synchronized BufferedReader unzipFile(File compressed, boolean encrypted) {
-        if (compressed == null) {
-            LOGGER.warning("File for extraction not set");
+    private MapSlamProto.MapSlam decodeOldPath(OldMapFiles map) {
+        LOGGER.info("Decoding SLAM file " + map.slam);
+        try (InputStream in = openCompressed(map.slam, map.isSlamEncrypted())) {
+            return VacuumMap.directToPath(in, 0, 0);
+        } catch (IOException | GeneralSecurityException e) {
+            LOGGER.warning("Unable to decode old path file: " + e);
             return null;
         }
-        GZIPInputStream gin;
-        if (encrypted) {
-            try {
-                LOGGER.info("Reading file to array");
-                FileInputStream inputStream = new FileInputStream(compressed);
-                byte[] inputBytes = new byte[(int) compressed.length()];
-                if (inputStream.read(inputBytes) != inputBytes.length) return null;
-                LOGGER.info("Decrypting file");
-                Cipher cipher = Cipher.getInstance("AES/ECB/NoPadding");
+    }
+
+    /**
+     * Open a stream that decrypts and decompresses a file while it is read. Nothing but the buffers of the streams is held in memory.
+     * @param compressed The gz file to open.
+     * @param encrypted True if the file is encrypted with the device key.
+     * @return The decompressed stream.
+     * @throws IOException If the file could not be opened or is no gz file.
+     * @throws GeneralSecurityException If the cipher could not be initialized.
+     */
+    private static InputStream openCompressed(File compressed, boolean encrypted) throws IOException, GeneralSecurityException {
+        InputStream in = Channels.newInputStream(FileChannel.open(compressed.toPath(), StandardOpenOption.READ));
+        try {
+            if (encrypted) {
+                Cipher cipher = DECRYPTION_CIPHER.get();
                 cipher.init(Cipher.DECRYPT_MODE, decryptionKey);
-                byte[] outputBytes = cipher.doFinal(inputBytes);
-                LOGGER.info("Generating GZIPInputStream");
-                gin = new GZIPInputStream(new ByteArrayInputStream(outputBytes));
-            } catch (Exception e) {
-                LOGGER.info("Decryption failed: " + e.toString());
-                return null;
-            }
-        } else {
-            try {
-                LOGGER.info("Generating GZIPInputStream");
-                gin = new GZIPInputStream(new FileInputStream(compressed));
-            } catch (IOException e) {
-                LOGGER.warning("GZIPInputStream could not be created");
-                return null;
+                in = new CipherInputStream(new BufferedInputStream(in, STREAM_BUFFER_SIZE), cipher);
             }
+            return new GZIPInputStream(in, STREAM_BUFFER_SIZE);
+        } catch (IOException | GeneralSecurityException | RuntimeException e) {
+            in.close();
+            throw e;
         }
-        LOGGER.fine("Creating small buffer for decompression");
-        byte[] buf = new byte[1024];
-        try {
-            int len;
-            LOGGER.fine("Creating big buffer for decompression");
-            byte[] all = new byte[4194304];
-            int i = 0;
-            LOGGER.info("Starting decompression");
-            while ((len = gin.read(buf)) > 0) {
-                LOGGER.fine("Decompression round " + (i + 1));
-                LOGGER.fine("Decompressed " + len + "bytes. Copping to to big buffer");
-                System.arraycopy(buf, 0, all, i, len);
-                i += len;
-            }
-            LOGGER.info("Creating decompressed InputStream");
-            InputStream is = new ByteArrayInputStream(all, 0, i);
-            LOGGER.info("Creating uncompressed BufferedReader");
-            return new BufferedReader(new InputStreamReader(is));
+    }
+
+    /**
+     * Check if a file is encrypted. Unencrypted files start with the gz magic number.
+     * @param file The file to check.
+     * @return True if the file does not start with the gz magic number.
+     */
+    private static boolean isEncrypted(File file) {
+        try (InputStream in = new FileInputStream(file)) {
+            return in.read() != 0x1f || in.read() != 0x8b;
         } catch (IOException e) {
-            LOGGER.warning("Decompression failed: " + Arrays.toString(e.getStackTrace()));
-            return null;
+            LOGGER.warning("Unable to check if " + file + " is encrypted: " + e);
+            return false;
         }
     }
 
     /**
      * @return The active map or null if it isn't available.
      */
-    public synchronized MapPackageProto.MapPackage getActiveMap() {
-        return activeMap;
+    public MapPackageProto.MapPackage getActiveMap() {
+        return active.map;
+    }
+
+    /**
+     * @param version The format version of the map message. 2 for the run length encoded format, everything else for the default format.
+     * @return The active map or null if it isn't available.
+     */
+    public MapPackageProto.MapPackage getActiveMap(int version) {
+        return active.getMap(version);
+    }
+
+    /**
+     * @param version The format version of the map message. 2 for the run length encoded format, everything else for the default format.
+     * @return The active map in the length delimited wire format or null if it isn't available.
+     */
+    public byte[] getActiveMapBytes(int version) {
+        return active.getBytes(version);
+    }
+
+    /**
+     * @param version The format version of the map message. 2 for the run length encoded format, everything else for the default format.
+     * @param level The level of the reduced resolution. See {@link VacuumMap#toDownsampledPackage(MapPackageProto.MapPackage, int)}.
+     * @return The active map with a reduced resolution or null if it isn't available. Each level is created once per version of the map.
+     */
+    public MapPackageProto.MapPackage getActiveMap(int version, int level) {
+        return active.getMap(version, toLevel(level));
+    }
+
+    /**
+     * @param version The format version of the map message. 2 for the run length encoded format, everything else for the default format.
+     * @param level The level of the reduced resolution. See {@link VacuumMap#toDownsampledPackage(MapPackageProto.MapPackage, int)}.
+     * @return The active map with a reduced resolution in the length delimited wire format or null if it isn't available.
+     */
+    public byte[] getActiveMapBytes(int version, int level) {
+        return active.getBytes(version, toLevel(level));
+    }
+
+    /**
+     * @return The revision of the active map. It is increased every time a new version of the map is found, 0 if no map is available.
+     */
+    public int getActiveRevision() {
+        return active.revision;
+    }
+
+    /**
+     * Get what a client needs to bring its copy of the active map up to date.
+     * @param knownRevision The revision of the map the client has.
+     * @param version The format version of the map message, if the whole map has to be sent.
+     * @return The changed pixels if the client has the preceding revision, the whole map otherwise.
+     */
+    ActiveMapUpdate getActiveMapUpdate(int knownRevision, int version) {
+        ActiveState current = active;
+        if (current.delta != null && knownRevision == current.revision - 1) {
+            return new ActiveMapUpdate(current.revision, current.delta);
+        }
+        return new ActiveMapUpdate(current.revision, current.getBytes(version));
+    }
+
+    /**
+     * Get notified when a new version of the active map is available.
+     * @param listener The listener. It is called on the thread that updated the map and must not block.
+     */
+    void addActiveMapListener(ActiveMapListener listener) {
+        activeMapListeners.addIfAbsent(listener);
+    }
+
+    void removeActiveMapListener(ActiveMapListener listener) {
+        activeMapListeners.remove(listener);
     }
 
     /**
      * @return The latest of the old maps or null if it isn't available.
      */
-    public synchronized MapPackageProto.MapPackage getLastMap() {
-        return lastMap;
+    public MapPackageProto.MapPackage getLastMap() {
+        return previous.lastMap;
+    }
+
+    /**
+     * @param version The format version of the map message. 2 for the run length encoded format, everything else for the default format.
+     * @return The latest of the old maps or null if it isn't available.
+     */
+    public MapPackageProto.MapPackage getLastMap(int version) {
+        return previous.getLastMap(version);
+    }
+
+    /**
+     * @param version The format version of the map message. 2 for the run length encoded format, everything else for the default format.
+     * @return The latest of the old maps in the length delimited wire format or null if it isn't available.
+     */
+    public byte[] getLastMapBytes(int version) {
+        return getLastMapBytes(version, 0);
+    }
+
+    /**
+     * @param version The format version of the map message. 2 for the run length encoded format, everything else for the default format.
+     * @param level The level of the reduced resolution. See {@link VacuumMap#toDownsampledPackage(MapPackageProto.MapPackage, int)}.
+     * @return The latest of the old maps with a reduced resolution in the length delimited wire format or null if it isn't available.
+     */
+    public byte[] getLastMapBytes(int version, int level) {
+        PreviousState p = previous;
+        if (p.lastMap == null) return null;
+        return getOldMapBytes(p.lastMapName, version, level);
+    }
+
+    /**
+     * @return The latest of the old maps path or null if it isn't available.
+     */
+    public MapSlamProto.MapSlam getLastPath() {
+        return previous.lastPath;
+    }
+
+    /**
+     * @param version The format version of the path message. 1 for the compact delta encoded format, everything else for the default format.
+     * @return The latest of the old maps path or null if it isn't available.
+     */
+    public MapSlamProto.MapSlam getLastPath(int version) {
+        return previous.getLastPath(version);
     }
 
     /**
+     * @param version The format version of the path message. 1 for the compact delta encoded format, everything else for the default format.
+     * @param tolerance The maximum distance in map pixels a point may have from the simplified path. It is rounded to a quarter of a pixel. 0 to get every point.
      * @return The latest of the old maps path or null if it isn't available.
      */
-    public synchronized MapSlamProto.MapSlam getLastPath() {
-        return lastPath;
+    public MapSlamProto.MapSlam getLastPath(int version, float tolerance) {
+        PreviousState p = previous;
+        if (toleranceBucket(tolerance) == 0 || p.lastPath == null) return p.getLastPath(version);
+        return getOldPath(p.lastMapName, version, tolerance);
+    }
+
+    /**
+     * @param version The format version of the path message. 1 for the compact delta encoded format, everything else for the default format.
+     * @param tolerance The maximum distance in map pixels a point may have from the simplified path. It is rounded to a quarter of a pixel. 0 to get every point.
+     * @return The latest of the old maps path in the length delimited wire format or null if it isn't available.
+     */
+    public byte[] getLastPathBytes(int version, float tolerance) {
+        PreviousState p = previous;
+        if (p.lastPath == null) return null;
+        return getOldPathBytes(p.lastMapName, version, tolerance);
+    }
+
+    private static int toleranceBucket(float tolerance) {
+        if (!(tolerance > 0)) return 0;
+        return Math.max(1, Math.round(tolerance * TOLERANCE_STEPS));
+    }
+
+    /**
+     * @param bytes The maximum number of bytes the cached old maps and paths may retain.
+     */
+    public void setCacheSize(long bytes) {
+        cache.setMaxBytes(bytes);
+    }
+
+    /**
+     * @return The maximum number of bytes the cached old maps and paths may retain.
+     */
+    public long getCacheSize() {
+        return cache.getMaxBytes();
+    }
+
+    /**
+     * @return The estimated number of bytes the cached old maps and paths retain.
+     */
+    public long getCachedBytes() {
+        return cache.getBytes();
+    }
+
+    /**
+     * @return The number of old map and path requests that were served from the cache.
+     */
+    public long getCacheHits() {
+        return cache.getHits();
+    }
+
+    /**
+     * @return The number of old map and path requests that had to be decoded.
+     */
+    public long getCacheMisses() {
+        return cache.getMisses();
+    }
+
+    /**
+     * @return The number of old map and path conversions that were run.
+     */
+    public long getConversions() {
+        return conversions.getStarted();
+    }
+
+    /**
+     * @return The number of old map and path requests that waited for the same conversion started by another request instead of running their own.
+     */
+    public long getSharedConversions() {
+        return conversions.getShared();
+    }
+
+    /**
+     * @return The number of old maps and paths that were dropped from the cache to stay within its size.
+     */
+    public long getCacheEvictions() {
+        return cache.getEvictions();
     }
 
     /**
      * @return All names of the old maps.
      */
-    public synchronized Set<String> getPreviousMaps() {
-        return previousMaps.keySet();
+    public Set<String> getPreviousMaps() {
+        return previous.maps.keySet();
     }
 
     /**
      * @return True if a active map is available.
      */
-    public synchronized boolean hasActiveMap() {
-        return !(activeMap == null);
+    public boolean hasActiveMap() {
+        return !(active.map == null);
     }
 
     /**
      * @return The number of old maps.
      */
-    public synchronized int numberOfPreviousMaps() {
-        return previousMaps.size();
+    public int numberOfPreviousMaps() {
+        return previous.maps.size();
     }
 
     /**
@@ -400,27 +810,50 @@ public class Maps {
 
     /**
      * Get the active maps path from a certain start position.
+     * Only the lines appended to the slam log since the last call are parsed.
      * @param start The position to start to read from;
      * @return The path from that start point or null if the path could not be read.
      */
     public MapSlamProto.MapSlam getActivePathFrom(int start) {
-        if (activeMapSlam == null) {
+        return getActivePathFrom(start, 0);
+    }
+
+    /**
+     * Get the active maps path from a certain start position.
+     * Only the lines appended to the slam log since the last call are parsed.
+     * @param start The position to start to read from;
+     * @param version The format version of the path message. 1 for the compact delta encoded format, everything else for the default format.
+     * @return The path from that start point or null if the path could not be read.
+     */
+    public MapSlamProto.MapSlam getActivePathFrom(int start, int version) {
+        return getActivePathFrom(start, version, 0);
+    }
+
+    /**
+     * Get the active maps path from a certain start position.
+     * Only the lines appended to the slam log since the last call are parsed.
+     * @param start The position to start to read from;
+     * @param version The format version of the path message. 1 for the compact delta encoded format, everything else for the default format.
+     * @param tolerance The maximum distance in map pixels a point may have from the simplified path. It is rounded to a quarter of a pixel. 0 to get every point.
+     * @return The path from that start point or null if the path could not be read.
+     */
+    public MapSlamProto.MapSlam getActivePathFrom(int start, int version, float tolerance) {
+        ActiveState a = active;
+        if (a.slamFile == null) {
             LOGGER.info("No slam file set");
             return null;
         }
-        if (!activeMapSlam.exists()) {
+        if (!a.slamFile.exists()) {
             LOGGER.info("Slam file does not exist");
             return null;
         }
-        if (activeMap == null) {
+        if (a.map == null) {
             LOGGER.info("Active map not set");
             return null;
         }
         try {
-            synchronized(this) {
-                LOGGER.info("Appending slam");
-                return VacuumMap.directToPath(new BufferedReader(new FileReader(activeMapSlam)), start);
-            }
+            LOGGER.info("Appending slam");
+            return a.getPathFrom(start, version, toleranceBucket(tolerance));
         } catch (IOException e) {
             LOGGER.warning("Appending slam failed");
             return null;
@@ -433,4 +866,262 @@ public class Maps {
     public void updatePreviousMaps() {
         generatePreviousMaps();
     }
+
+    /**
+     * Keep the active and old maps up to date in the background. The map directories are watched for changes, so they don't have to be scanned for every request.
+     */
+    public void startIndexer() {
+        MapIndexer idx = new MapIndexer(this, activeMapDirectory.toPath(), previousMapsDirectory.toPath());
+        synchronized (this) {
+            if (indexer != null) return;
+            indexer = idx;
+        }
+        idx.start();
+        LOGGER.info("Started map indexer");
+    }
+
+    /**
+     * Stop updating the maps in the background.
+     */
+    public void stopIndexer() {
+        MapIndexer idx;
+        synchronized (this) {
+            idx = indexer;
+            indexer = null;
+        }
+        if (idx != null) idx.stop();
+    }
+
+    /**
+     * @return True if the maps are kept up to date in the background and don't need to be updated before a request.
+     */
+    public boolean isIndexed() {
+        MapIndexer idx = indexer;
+        return idx != null && idx.isRunning();
+    }
+
+    /**
+     * An immutable snapshot of the active map. Other formats of the map are created once on first use.
+     */
+    private static final class ActiveState {
+        static final ActiveState EMPTY = new ActiveState(null, null, null, 0, 0, null);
+
+        final MapPackageProto.MapPackage map;
+        final File slamFile;
+        final SlamTail tail;
+        final long lastModified;
+        final int revision;
+        // The changes to the preceding revision in the length delimited wire format, null if they weren't computed.
+        final byte[] delta;
+        private volatile MapPackageProto.MapPackage runLength;
+        private volatile byte[] bytes;
+        private volatile byte[] runLengthBytes;
+        // The reduced maps and their wire formats, indexed by format and level.
+        // They have their own lock, so building one doesn't hold up the full resolution formats.
+        private final AtomicReferenceArray<MapPackageProto.MapPackage> levels = new AtomicReferenceArray<>(2 * (VacuumMap.MAX_LEVEL + 1));
+        private final AtomicReferenceArray<byte[]> levelBytes = new AtomicReferenceArray<>(2 * (VacuumMap.MAX_LEVEL + 1));
+        private final Object levelLock = new Object();
+        // The latest simplified path of the tail by format and tolerance bucket. Clients poll with the same start, so one entry each is enough.
+        private final ConcurrentHashMap<String, SimplifiedPath> simplified = new ConcurrentHashMap<>();
+
+        ActiveState(MapPackageProto.MapPackage map, File slamFile, SlamTail tail, long lastModified, int revision, byte[] delta) {
+            this.map = map;
+            this.slamFile = slamFile;
+            this.tail = tail;
+            this.lastModified = lastModified;
+            this.revision = revision;
+            this.delta = delta;
+        }
+
+        MapPackageProto.MapPackage getMap(int version) {
+            if (version != 2 || map == null) return map;
+            MapPackageProto.MapPackage r = runLength;
+            if (r != null) return r;
+            synchronized (this) {
+                if (runLength == null) runLength = VacuumMap.toRunLengthPackage(map);
+                return runLength;
+            }
+        }
+
+        MapPackageProto.MapPackage getMap(int version, int level) {
+            if (level == 0 || map == null) return getMap(version);
+            int slot = slot(version, level);
+            MapPackageProto.MapPackage m = levels.get(slot);
+            if (m != null) return m;
+            synchronized (levelLock) {
+                m = levels.get(slot);
+                if (m == null) {
+                    m = version == 2 ? VacuumMap.toRunLengthPackage(getMap(0, level)) : VacuumMap.toDownsampledPackage(map, level);
+                    levels.set(slot, m);
+                }
+                return m;
+            }
+        }
+
+        byte[] getBytes(int version, int level) {
+            if (level == 0 || map == null) return getBytes(version);
+            int slot = slot(version, level);
+            byte[] b = levelBytes.get(slot);
+            if (b != null) return b;
+            synchronized (levelLock) {
+                b = levelBytes.get(slot);
+                if (b == null) {
+                    b = MessageCache.toDelimited(getMap(version, level));
+                    levelBytes.set(slot, b);
+                }
+                return b;
+            }
+        }
+
+        /**
+         * Get the path of the tail. Simplified paths are reused until the tail changes.
+         */
+        MapSlamProto.MapSlam getPathFrom(int start, int version, int bucket) throws IOException {
+            if (bucket == 0) return tail.getPathFrom(start, version, 0);
+            tail.update();
+            long revision = tail.getRevision();
+            String key = version + ":" + bucket;
+            SimplifiedPath s = simplified.get(key);
+            if (s != null && s.revision == revision && s.start == start) return s.path;
+            // The tail may have grown in the meantime. The entry then looks older than it is and is replaced by the next request.
+            MapSlamProto.MapSlam path = tail.getPathFrom(start, version, bucket / (float) TOLERANCE_STEPS);
+            // Clients pick the tolerance, so the number of entries is limited.
+            if (simplified.size() >= MAX_SIMPLIFIED_PATHS) simplified.clear();
+            simplified.put(key, new SimplifiedPath(revision, start, path));
+            return path;
+        }
+
+        private static int slot(int version, int level) {
+            return (version == 2 ? VacuumMap.MAX_LEVEL + 1 : 0) + level;
+        }
+
+        byte[] getBytes(int version) {
+            if (map == null) return null;
+            if (version == 2) {
+                byte[] b = runLengthBytes;
+                if (b != null) return b;
+                synchronized (this) {
+                    if (runLengthBytes == null) runLengthBytes = MessageCache.toDelimited(getMap(2));
+                    return runLengthBytes;
+                }
+            }
+            byte[] b = bytes;
+            if (b != null) return b;
+            synchronized (this) {
+                if (bytes == null) bytes = MessageCache.toDelimited(map);
+                return bytes;
+            }
+        }
+    }
+
+    private static final class SimplifiedPath {
+        final long revision;
+        final int start;
+        final MapSlamProto.MapSlam path;
+
+        SimplifiedPath(long revision, int start, MapSlamProto.MapSlam path) {
+            this.revision = revision;
+            this.start = start;
+            this.path = path;
+        }
+    }
+
+    /**
+     * The data sent to a client to update its copy of the active map.
+     */
+    static final class ActiveMapUpdate {
+        final int revision;
+        final byte[] bytes;
+
+        ActiveMapUpdate(int revision, byte[] bytes) {
+            this.revision = revision;
+            this.bytes = bytes;
+        }
+    }
+
+    /**
+     * The files of an old map. Whether a file is encrypted is checked on its first use and again only after the file changed.
+     */
+    private static final class OldMapFiles {
+        final File map;
+        final File slam;
+        private volatile EncryptionCheck mapCheck;
+        private volatile EncryptionCheck slamCheck;
+
+        OldMapFiles(File map, File slam) {
+            this.map = map;
+            this.slam = slam;
+        }
+
+        boolean isMapEncrypted() {
+            EncryptionCheck c = mapCheck;
+            if (c == null || !c.isFor(map)) mapCheck = c = new EncryptionCheck(map);
+            return c.encrypted;
+        }
+
+        boolean isSlamEncrypted() {
+            EncryptionCheck c = slamCheck;
+            if (c == null || !c.isFor(slam)) slamCheck = c = new EncryptionCheck(slam);
+            return c.encrypted;
+        }
+    }
+
+    private static final class EncryptionCheck {
+        final long lastModified;
+        final long length;
+        final boolean encrypted;
+
+        EncryptionCheck(File file) {
+            this.lastModified = file.lastModified();
+            this.length = file.length();
+            this.encrypted = isEncrypted(file);
+        }
+
+        boolean isFor(File file) {
+            return file.lastModified() == lastModified && file.length() == length;
+        }
+    }
+
+    /**
+     * An immutable snapshot of the old maps and the latest of them. Other formats of the latest map are created once on first use.
+     */
+    private static final class PreviousState {
+        static final PreviousState EMPTY = new PreviousState(new LinkedHashMap<String, OldMapFiles>(), 0, null, null, null);
+
+        final Map<String, OldMapFiles> maps;
+        final int lastMapNumber;
+        final String lastMapName;
+        final MapPackageProto.MapPackage lastMap;
+        final MapSlamProto.MapSlam lastPath;
+        private volatile MapPackageProto.MapPackage lastMapRunLength;
+        private volatile MapSlamProto.MapSlam lastPathCompact;
+
+        PreviousState(LinkedHashMap<String, OldMapFiles> maps, int lastMapNumber, String lastMapName, MapPackageProto.MapPackage lastMap, MapSlamProto.MapSlam lastPath) {
+            this.maps = Collections.unmodifiableMap(maps);
+            this.lastMapNumber = lastMapNumber;
+            this.lastMapName = lastMapName;
+            this.lastMap = lastMap;
+            this.lastPath = lastPath;
+        }
+
+        MapPackageProto.MapPackage getLastMap(int version) {
+            if (version != 2 || lastMap == null) return lastMap;
+            MapPackageProto.MapPackage r = lastMapRunLength;
+            if (r != null) return r;
+            synchronized (this) {
+                if (lastMapRunLength == null) lastMapRunLength = VacuumMap.toRunLengthPackage(lastMap);
+                return lastMapRunLength;
+            }
+        }
+
+        MapSlamProto.MapSlam getLastPath(int version) {
+            if (version != 1 || lastPath == null) return lastPath;
+            MapSlamProto.MapSlam c = lastPathCompact;
+            if (c != null) return c;
+            synchronized (this) {
+                if (lastPathCompact == null) lastPathCompact = VacuumMap.toCompactPath(lastPath);
+                return lastPathCompact;
+            }
+        }
+    }
 }
@@ -0,0 +1,212 @@
+/*
+ * Copyright (c) 2018 Joerg Bayer
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.sg_o.app.miioMapServer;
+
+import com.google.protobuf.CodedOutputStream;
+import com.google.protobuf.MessageLite;
+
+import java.io.IOException;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.logging.Logger;
+
+/**
+ * This class caches decoded messages in least recently used order. It is bounded by the estimated number of bytes the messages retain on the heap.
+ * The length delimited wire format of a message is created on first use and kept next to it.
+ */
+class MessageCache {
+    private final static Logger LOGGER = Logger.getLogger(MessageCache.class.getName());
+    private static final int ENTRY_OVERHEAD = 128;
+
+    private final LinkedHashMap<String, Entry> entries = new LinkedHashMap<>(16, 0.75f, true);
+    private long maxBytes;
+    private long bytes;
+    private long hits;
+    private long misses;
+    private long evictions;
+
+    /**
+     * Create a new cache.
+     * @param maxBytes The maximum number of bytes the cached messages may retain.
+     */
+    MessageCache(long maxBytes) {
+        this.maxBytes = maxBytes;
+    }
+
+    /**
+     * @param key The key of the message.
+     * @return The cached message or null if it isn't cached.
+     */
+    synchronized MessageLite get(String key) {
+        Entry e = entries.get(key);
+        if (e == null) {
+            misses++;
+            return null;
+        }
+        hits++;
+        return e.message;
+    }
+
+    /**
+     * Look up a message without counting a hit or a miss and without changing the order of eviction.
+     * @param key The key of the message.
+     * @return The cached message or null if it isn't cached.
+     */
+    synchronized MessageLite peek(String key) {
+        Entry e = entries.get(key);
+        return e == null ? null : e.message;
+    }
+
+    /**
+     * Add a message to the cache. The least recently used messages are evicted until the cache fits into its bounds again.
+     * Messages that are larger than the whole cache are not stored.
+     * @param key The key of the message.
+     * @param message The message to store.
+     */
+    synchronized void put(String key, MessageLite message) {
+        if (message == null) return;
+        Entry e = new Entry(message);
+        Entry old = entries.remove(key);
+        if (old != null) bytes -= old.size;
+        if (e.size > maxBytes) {
+            LOGGER.info("Message too large to cache: " + key);
+            return;
+        }
+        entries.put(key, e);
+        bytes += e.size;
+        trim();
+    }
+
+    /**
+     * Get the length delimited wire format of a cached message. It is created on the first call and counts towards the size of the cache.
+     * @param key The key of the message.
+     * @return The wire format or null if the message isn't cached.
+     */
+    synchronized byte[] getDelimited(String key) {
+        Entry e = entries.get(key);
+        if (e == null) return null;
+        if (e.delimited == null) {
+            e.delimited = toDelimited(e.message);
+            e.size += e.delimited.length;
+            bytes += e.delimited.length;
+            trim();
+        }
+        return e.delimited;
+    }
+
+    /**
+     * Serialize a message the same way {@link MessageLite#writeDelimitedTo(java.io.OutputStream)} does.
+     * @param message The message to serialize.
+     * @return The size of the message as varint followed by the message or null if the message is null.
+     */
+    static byte[] toDelimited(MessageLite message) {
+        if (message == null) return null;
+        int size = message.getSerializedSize();
+        byte[] out = new byte[CodedOutputStream.computeUInt32SizeNoTag(size) + size];
+        CodedOutputStream output = CodedOutputStream.newInstance(out);
+        try {
+            output.writeUInt32NoTag(size);
+            message.writeTo(output);
+        } catch (IOException e) {
+            throw new IllegalStateException("Serializing to a byte array failed", e);
+        }
+        output.checkNoSpaceLeft();
+        return out;
+    }
+
+    /**
+     * Remove all messages.
+     */
+    synchronized void clear() {
+        entries.clear();
+        bytes = 0;
+    }
+
+    /**
+     * @param maxBytes The maximum number of bytes the cached messages may retain.
+     */
+    synchronized void setMaxBytes(long maxBytes) {
+        this.maxBytes = maxBytes;
+        trim();
+    }
+
+    /**
+     * @return The maximum number of bytes the cached messages may retain.
+     */
+    synchronized long getMaxBytes() {
+        return maxBytes;
+    }
+
+    /**
+     * @return The estimated number of bytes the cached messages retain.
+     */
+    synchronized long getBytes() {
+        return bytes;
+    }
+
+    /**
+     * @return The number of cached messages.
+     */
+    synchronized int size() {
+        return entries.size();
+    }
+
+    /**
+     * @return The number of lookups that found a message.
+     */
+    synchronized long getHits() {
+        return hits;
+    }
+
+    /**
+     * @return The number of lookups that didn't find a message.
+     */
+    synchronized long getMisses() {
+        return misses;
+    }
+
+    /**
+     * @return The number of messages that were evicted to stay within the bounds.
+     */
+    synchronized long getEvictions() {
+        return evictions;
+    }
+
+    private void trim() {
+        Iterator<Map.Entry<String, Entry>> it = entries.entrySet().iterator();
+        while (bytes > maxBytes && it.hasNext()) {
+            Map.Entry<String, Entry> eldest = it.next();
+            LOGGER.fine("Evicting " + eldest.getKey());
+            bytes -= eldest.getValue().size;
+            it.remove();
+            evictions++;
+        }
+    }
+
+    private static class Entry {
+        private final MessageLite message;
+        private byte[] delimited;
+        private long size;
+
+        Entry(MessageLite message) {
+            this.message = message;
+            // Decoded repeated fields take roughly twice the space of their wire format.
+            this.size = (2L * message.getSerializedSize()) + ENTRY_OVERHEAD;
+        }
+    }
+}
@@ -0,0 +1,240 @@
+/*
+ * Copyright (c) 2018 Joerg Bayer
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.sg_o.app.miioMapServer;
+
+import java.util.AbstractList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.RandomAccess;
+
+/**
+ * This class stores the points of a path in a single growable float array with interleaved x and y coordinates.
+ */
+class PackedPath {
+    private static final int INITIAL_CAPACITY = 256;
+
+    private float[] points;
+    private int size;
+
+    /**
+     * Create an empty path.
+     */
+    PackedPath() {
+        this(INITIAL_CAPACITY);
+    }
+
+    /**
+     * Create an empty path.
+     * @param capacity The number of points to reserve space for.
+     */
+    PackedPath(int capacity) {
+        if (capacity < 1) capacity = 1;
+        this.points = new float[capacity * 2];
+        this.size = 0;
+    }
+
+    /**
+     * Create a path from interleaved coordinates.
+     * @param packed The interleaved coordinates (x0, y0, x1, y1, ...). The array is used directly.
+     */
+    PackedPath(float[] packed) {
+        if (packed == null) packed = new float[0];
+        if ((packed.length % 2) != 0) packed = Arrays.copyOf(packed, packed.length - 1);
+        this.points = packed;
+        this.size = packed.length / 2;
+    }
+
+    /**
+     * Create a path from a list of points.
+     * @param list The points (x, y) to copy.
+     * @return The new path.
+     */
+    static PackedPath fromList(List<float[]> list) {
+        PackedPath path = new PackedPath(list.size());
+        for (float[] p : list) {
+            path.add(p[0], p[1]);
+        }
+        return path;
+    }
+
+    /**
+     * Append a point.
+     * @param x The x coordinate.
+     * @param y The y coordinate.
+     */
+    void add(float x, float y) {
+        ensureCapacity(size + 1);
+        points[size * 2] = x;
+        points[(size * 2) + 1] = y;
+        size++;
+    }
+
+    /**
+     * Append points from another path.
+     * @param other The path to copy from.
+     * @param start The index of the first point to copy.
+     */
+    void addAll(PackedPath other, int start) {
+        if (start < 0) start = 0;
+        int count = other.size - start;
+        if (count <= 0) return;
+        ensureCapacity(size + count);
+        System.arraycopy(other.points, start * 2, points, size * 2, count * 2);
+        size += count;
+    }
+
+    /**
+     * Remove all points.
+     */
+    void clear() {
+        size = 0;
+    }
+
+    /**
+     * @return The number of points.
+     */
+    int size() {
+        return size;
+    }
+
+    /**
+     * @param index The index of the point.
+     * @return The x coordinate of the point.
+     */
+    float getX(int index) {
+        if (index >= size) throw new IndexOutOfBoundsException("Index: " + index + ", Size: " + size);
+        return points[index * 2];
+    }
+
+    /**
+     * @param index The index of the point.
+     * @return The y coordinate of the point.
+     */
+    float getY(int index) {
+        if (index >= size) throw new IndexOutOfBoundsException("Index: " + index + ", Size: " + size);
+        return points[(index * 2) + 1];
+    }
+
+    /**
+     * @return A copy of the interleaved coordinates, trimmed to the number of points.
+     */
+    float[] toArray() {
+        return Arrays.copyOf(points, size * 2);
+    }
+
+    /**
+     * Create a scaled and translated copy of this path.
+     * @param offsetX Added to every x coordinate before scaling.
+     * @param offsetY Added to every y coordinate before scaling.
+     * @param scale The factor to scale with.
+     * @return The new path.
+     */
+    PackedPath transform(float offsetX, float offsetY, float scale) {
+        float[] out = new float[size * 2];
+        for (int i = 0; i < size; i++) {
+            out[i * 2] = (points[i * 2] + offsetX) * scale;
+            out[(i * 2) + 1] = (points[(i * 2) + 1] + offsetY) * scale;
+        }
+        return new PackedPath(out);
+    }
+
+    /**
+     * Simplify this path with the Douglas-Peucker algorithm. The first and the last point are always kept.
+     * The segments are processed with an explicit stack, so long paths can not overflow the call stack.
+     * @param tolerance The maximum distance a dropped point may have from the simplified path.
+     * @return The simplified path or this path if nothing could be dropped.
+     */
+    PackedPath simplify(float tolerance) {
+        if (size < 3 || !(tolerance > 0)) return this;
+        double toleranceSquared = (double) tolerance * tolerance;
+        boolean[] keep = new boolean[size];
+        keep[0] = true;
+        keep[size - 1] = true;
+        int kept = 2;
+        int[] stack = new int[64];
+        int stackSize = 0;
+        stack[stackSize++] = 0;
+        stack[stackSize++] = size - 1;
+        while (stackSize > 0) {
+            int last = stack[--stackSize];
+            int first = stack[--stackSize];
+            double ax = points[first * 2];
+            double ay = points[(first * 2) + 1];
+            double dx = points[last * 2] - ax;
+            double dy = points[(last * 2) + 1] - ay;
+            double lengthSquared = (dx * dx) + (dy * dy);
+            double maxDistance = -1;
+            int index = -1;
+            for (int i = first + 1; i < last; i++) {
+                double px = points[i * 2] - ax;
+                double py = points[(i * 2) + 1] - ay;
+                double distance;
+                if (lengthSquared == 0) {
+                    distance = (px * px) + (py * py);
+                } else {
+                    double t = Math.max(0, Math.min(1, ((px * dx) + (py * dy)) / lengthSquared));
+                    double ex = px - (t * dx);
+                    double ey = py - (t * dy);
+                    distance = (ex * ex) + (ey * ey);
+                }
+                if (distance > maxDistance) {
+                    maxDistance = distance;
+                    index = i;
+                }
+            }
+            if (index < 0 || maxDistance <= toleranceSquared) continue;
+            keep[index] = true;
+            kept++;
+            if (stackSize + 4 > stack.length) stack = Arrays.copyOf(stack, stack.length * 2);
+            stack[stackSize++] = first;
+            stack[stackSize++] = index;
+            stack[stackSize++] = index;
+            stack[stackSize++] = last;
+        }
+        if (kept == size) return this;
+        PackedPath simplified = new PackedPath(kept);
+        for (int i = 0; i < size; i++) {
+            if (keep[i]) simplified.add(points[i * 2], points[(i * 2) + 1]);
+        }
+        return simplified;
+    }
+
+    /**
+     * @return A read only list view of this path. Every access creates a new (x, y) array.
+     */
+    List<float[]> asList() {
+        return new ListView();
+    }
+
+    private void ensureCapacity(int capacity) {
+        if (capacity * 2 <= points.length) return;
+        int newLength = Math.max(points.length * 2, capacity * 2);
+        points = Arrays.copyOf(points, newLength);
+    }
+
+    private class ListView extends AbstractList<float[]> implements RandomAccess {
+        @Override
+        public float[] get(int index) {
+            return new float[]{getX(index), getY(index)};
+        }
+
+        @Override
+        public int size() {
+            return size;
+        }
+    }
+}
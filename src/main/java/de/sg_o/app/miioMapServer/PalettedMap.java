@@ -0,0 +1,218 @@
+/*
+ * Copyright (c) 2018 Joerg Bayer
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.sg_o.app.miioMapServer;
+
+import java.util.Arrays;
+
+/**
+ * This class stores the pixels of a map as indices into a small palette, one byte per pixel instead of an int.
+ * Maps only contain a handful of colors. If a map has more colors than fit into a byte, the colors are stored directly instead.
+ */
+class PalettedMap {
+    static final int MAX_PALETTE_SIZE = 256;
+    private static final int INITIAL_PALETTE_SIZE = 16;
+
+    private final int size;
+    private int[] palette;
+    private int colors;
+    private byte[] indices;
+    // Only used once the palette is full.
+    private int[] pixels;
+    private int lastIndex;
+
+    /**
+     * Create a map with all pixels set to one color.
+     * @param size The number of pixels.
+     * @param color The color of all pixels.
+     */
+    PalettedMap(int size, int color) {
+        this.size = size;
+        this.palette = new int[INITIAL_PALETTE_SIZE];
+        this.palette[0] = color;
+        this.colors = 1;
+        this.indices = new byte[size];
+    }
+
+    /**
+     * Create a map from a palette and the indices of the pixels.
+     * @param palette The colors. The array is used directly.
+     * @param indices The index into the palette of each pixel. The array is used directly.
+     * @throws IllegalArgumentException If the palette is too large or an index is not in the palette.
+     */
+    PalettedMap(int[] palette, byte[] indices) {
+        if (palette.length < 1 || palette.length > MAX_PALETTE_SIZE) throw new IllegalArgumentException("Invalid palette size: " + palette.length);
+        for (byte b : indices) {
+            if ((b & 0xFF) >= palette.length) throw new IllegalArgumentException("Index not in palette: " + (b & 0xFF));
+        }
+        this.size = indices.length;
+        this.palette = palette;
+        this.colors = palette.length;
+        this.indices = indices;
+    }
+
+    /**
+     * Create a map from colors. The colors are converted to a palette if possible.
+     * @param pixels The colors of the pixels.
+     * @return The new map.
+     */
+    static PalettedMap fromArray(int[] pixels) {
+        PalettedMap map = new PalettedMap(pixels.length, pixels.length > 0 ? pixels[0] : 0);
+        for (int i = 0; i < pixels.length; i++) {
+            map.set(i, pixels[i]);
+        }
+        return map;
+    }
+
+    /**
+     * @return The number of pixels.
+     */
+    int size() {
+        return size;
+    }
+
+    /**
+     * @return True if the pixels are stored as indices into the palette.
+     */
+    boolean isPaletted() {
+        return pixels == null;
+    }
+
+    /**
+     * @return A copy of the palette or null if the colors are stored directly.
+     */
+    int[] getPalette() {
+        if (pixels != null) return null;
+        return Arrays.copyOf(palette, colors);
+    }
+
+    /**
+     * @return The index into the palette of each pixel or null if the colors are stored directly. This is the stored array, it must not be changed.
+     */
+    byte[] getIndices() {
+        return indices;
+    }
+
+    int get(int index) {
+        int[] p = pixels;
+        if (p != null) return p[index];
+        return palette[indices[index] & 0xFF];
+    }
+
+    void set(int index, int color) {
+        if (pixels != null) {
+            pixels[index] = color;
+            return;
+        }
+        int i = indexOf(color);
+        if (i < 0) {
+            expand();
+            pixels[index] = color;
+            return;
+        }
+        indices[index] = (byte) i;
+    }
+
+    /**
+     * Set a range of pixels to one color.
+     * @param from The first pixel.
+     * @param to The pixel after the last one.
+     * @param color The color.
+     */
+    void fill(int from, int to, int color) {
+        if (pixels != null) {
+            Arrays.fill(pixels, from, to, color);
+            return;
+        }
+        int i = indexOf(color);
+        if (i < 0) {
+            expand();
+            Arrays.fill(pixels, from, to, color);
+            return;
+        }
+        Arrays.fill(indices, from, to, (byte) i);
+    }
+
+    /**
+     * @return The colors of all pixels in a new array.
+     */
+    int[] toArray() {
+        return toArray(null);
+    }
+
+    /**
+     * @param target An array to copy into. It is used if it has exactly the size of the map, otherwise a new one is allocated. May be null.
+     * @return The colors of all pixels.
+     */
+    int[] toArray(int[] target) {
+        int[] out = (target != null && target.length == size) ? target : new int[size];
+        if (pixels != null) {
+            System.arraycopy(pixels, 0, out, 0, size);
+            return out;
+        }
+        for (int i = 0; i < size; i++) {
+            out[i] = palette[indices[i] & 0xFF];
+        }
+        return out;
+    }
+
+    private int indexOf(int color) {
+        // Pixels are usually set in runs of the same color.
+        if (palette[lastIndex] == color) return lastIndex;
+        for (int i = 0; i < colors; i++) {
+            if (palette[i] == color) {
+                lastIndex = i;
+                return i;
+            }
+        }
+        if (colors == MAX_PALETTE_SIZE) return -1;
+        if (colors == palette.length) palette = Arrays.copyOf(palette, Math.min(palette.length * 2, MAX_PALETTE_SIZE));
+        palette[colors] = color;
+        lastIndex = colors;
+        return colors++;
+    }
+
+    private void expand() {
+        pixels = toArray();
+        indices = null;
+        palette = null;
+        colors = 0;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) return true;
+        if (o == null || getClass() != o.getClass()) return false;
+        PalettedMap other = (PalettedMap) o;
+        if (size != other.size) return false;
+        if (pixels == null && other.pixels == null && colors == other.colors && Arrays.equals(getPalette(), other.getPalette())) {
+            return Arrays.equals(indices, other.indices);
+        }
+        for (int i = 0; i < size; i++) {
+            if (get(i) != other.get(i)) return false;
+        }
+        return true;
+    }
+
+    @Override
+    public int hashCode() {
+        int result = size;
+        for (int i = 0; i < size; i += 4099) {
+            result = (31 * result) + get(i);
+        }
+        return result;
+    }
+}
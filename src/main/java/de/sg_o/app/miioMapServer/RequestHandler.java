@@ -0,0 +1,353 @@
+/*
+ * Copyright (c) 2018 Joerg Bayer
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.sg_o.app.miioMapServer;
+
+import de.sg_o.app.miio.base.Token;
+import de.sg_o.app.miio.util.ByteArray;
+import de.sg_o.proto.*;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.logging.Logger;
+
+/**
+ * This class answers the requests of a single client. It keeps the authentication state of the client, but knows nothing about how the requests are received.
+ */
+class RequestHandler {
+    private final static Logger LOGGER = Logger.getLogger(RequestHandler.class.getName());
+
+    private final Maps mapHandler;
+    private final Token tk;
+    private boolean authenticated = false;
+    private boolean closed = false;
+    private boolean subscribed = false;
+    private int subscribedVersion = 0;
+    private int revision = 0;
+
+    /**
+     * Create a new request handler.
+     * @param mapHandler The map handler.
+     * @param tk The devices token.
+     */
+    RequestHandler(Maps mapHandler, Token tk) {
+        this.mapHandler = mapHandler;
+        this.tk = tk;
+    }
+
+    /**
+     * @return True if the connection to the client should be closed once the responses are sent.
+     */
+    boolean isClosed() {
+        return closed;
+    }
+
+    /**
+     * @return True if the client subscribed to the active map.
+     */
+    boolean isSubscribed() {
+        return subscribed;
+    }
+
+    /**
+     * @return True if the client subscribed to the active map and a newer version than the one it got is available.
+     */
+    boolean hasUpdate() {
+        return subscribed && !closed && mapHandler.getActiveRevision() > revision;
+    }
+
+    /**
+     * Write the changes of the active map since the version the client got. If the client missed a version the whole map is written instead.
+     * @param output The output to write the update to.
+     */
+    void sendUpdate(ResponseOutput output) {
+        if (output == null) return;
+        Maps.ActiveMapUpdate update = mapHandler.getActiveMapUpdate(revision, subscribedVersion);
+        if (update.bytes == null) return;
+        LOGGER.info("Sending active map update: " + update.revision);
+        output.write(update.bytes);
+        revision = update.revision;
+    }
+
+    /**
+     * Handle a request and write the response.
+     * @param req The request.
+     * @param output The output to write the response to.
+     */
+    void handle(MapRequestProto.MapRequest req, ResponseOutput output){
+        if (req == null) return;
+        if (output == null) return;
+        LOGGER.info("Parsing Code");
+        MapRequestProto.MapRequest.RequestCode code = req.getCode();
+        switch (code){
+            case MAP_INFO:
+                LOGGER.info("MAP_INFO detected");
+                sendInfo(output);
+                break;
+            case GET_ACTIVE_MAP:
+                LOGGER.info("GET_ACTIVE_MAP detected");
+                sendActiveMap(req.getMapVersion(), req.getLevel(), output);
+                break;
+            case GET_PREVIOUS_MAP:
+                LOGGER.info("GET_PREVIOUS_MAP detected");
+                sendPreviousMap(req.getMapVersion(), req.getLevel(), output);
+                break;
+            case GET_OLD_MAP:
+                LOGGER.info("GET_OLD_MAP detected");
+                sendOldMap(req.getOpt(), req.getMapVersion(), req.getLevel(), output);
+                break;
+            case GET_ACTIVE_MAP_SLAM:
+                LOGGER.info("GET_ACTIVE_MAP_SLAM detected");
+                sendActiveMapSlam(req.getOptInt(), req.getSlamVersion(), req.getTolerance(), output);
+                break;
+            case GET_PREVIOUS_MAP_SLAM:
+                LOGGER.info("GET_PREVIOUS_MAP_SLAM detected");
+                sendPreviousMapSlam(req.getSlamVersion(), req.getTolerance(), output);
+                break;
+            case GET_OLD_MAP_SLAM:
+                LOGGER.info("GET_OLD_MAP_SLAM detected");
+                sendOldMapSlam(req.getOpt(), req.getSlamVersion(), req.getTolerance(), output);
+                break;
+            case AUTHENTICATE:
+                LOGGER.info("AUTHENTICATE detected");
+                authenticate(req.getOpt(), output);
+                break;
+            case SUBSCRIBE_ACTIVE_MAP:
+                LOGGER.info("SUBSCRIBE_ACTIVE_MAP detected");
+                subscribeActiveMap(req.getMapVersion(), output);
+                break;
+            case END_COMMUNICATION:
+                close();
+                break;
+        }
+    }
+
+    private void authenticate(String auth, ResponseOutput output) {
+        if (output == null) {
+            LOGGER.warning("Output null");
+            return;
+        }
+        MapRequestProto.MapRequest.Builder resp = MapRequestProto.MapRequest.newBuilder();
+        if (auth == null) {
+            LOGGER.warning("No encrypted auth message received");
+            resp.setOpt(ByteArray.bytesToHex(tk.encrypt("error".getBytes(StandardCharsets.US_ASCII))));
+            output.writeDelimited(resp.build());
+            close();
+            return;
+        }
+        LOGGER.info("Decoding auth message");
+        byte[] msg = tk.decrypt(ByteArray.hexToBytes(auth));
+        LOGGER.info("Decoded auth message");
+        authenticated = Arrays.equals(new byte[]{104, 101, 108, 108, 111}, msg);
+        LOGGER.info("Compared auth message");
+        resp.setCode(MapRequestProto.MapRequest.RequestCode.AUTHENTICATE);
+        if (authenticated) {
+            LOGGER.info("Authentication success");
+            resp.setOpt(ByteArray.bytesToHex(tk.encrypt("ok".getBytes(StandardCharsets.US_ASCII))));
+            output.writeDelimited(resp.build());
+        } else {
+            LOGGER.info("Authentication failed");
+            resp.setOpt(ByteArray.bytesToHex(tk.encrypt("error".getBytes(StandardCharsets.US_ASCII))));
+            output.writeDelimited(resp.build());
+            close();
+        }
+    }
+
+    private void sendInfo(ResponseOutput output) {
+        if (output == null) {
+            LOGGER.warning("Output null");
+            return;
+        }
+        LOGGER.info("Updating active map");
+        if (!mapHandler.isIndexed()) mapHandler.updateActiveMap();
+        LOGGER.info("Updating previous maps");
+        if (!mapHandler.isIndexed()) mapHandler.updatePreviousMaps();
+        MapInfoProto.MapInfo.Builder builder = MapInfoProto.MapInfo.newBuilder();
+        if (authenticated) {
+            LOGGER.info("Adding information");
+            builder.setActiveMapAvailable(mapHandler.hasActiveMap());
+            builder.addAllOldMaps(mapHandler.getPreviousMaps());
+            builder.setError(constructError(MapErrorProto.MapError.ErrorCode.NONE, ""));
+        } else {
+            LOGGER.warning("Not authenticated");
+            builder.setActiveMapAvailable(false);
+            builder.setError(constructError(MapErrorProto.MapError.ErrorCode.NOT_AUTHENTICATED, ""));
+        }
+        LOGGER.info("Sending info");
+        output.writeDelimited(builder.build());
+    }
+
+    private void sendActiveMap(int version, int level, ResponseOutput output) {
+        if (output == null) {
+            LOGGER.warning("Output null");
+            return;
+        }
+        LOGGER.info("Updating active map");
+        if (!mapHandler.isIndexed()) mapHandler.updateActiveMap();
+        LOGGER.info("Sending active map");
+        sendMap(mapHandler.getActiveMapBytes(version, level), output, MapErrorProto.MapError.ErrorCode.MAP_NOT_AVAILABLE);
+    }
+
+    private void subscribeActiveMap(int version, ResponseOutput output) {
+        if (output == null) {
+            LOGGER.warning("Output null");
+            return;
+        }
+        LOGGER.info("Updating active map");
+        if (!mapHandler.isIndexed()) mapHandler.updateActiveMap();
+        if (!authenticated) {
+            sendMap(null, output, MapErrorProto.MapError.ErrorCode.MAP_NOT_AVAILABLE);
+            return;
+        }
+        LOGGER.info("Subscribing to active map");
+        // The first response is the whole map, every later version is pushed as the changes to the one before.
+        Maps.ActiveMapUpdate update = mapHandler.getActiveMapUpdate(0, version);
+        subscribed = true;
+        subscribedVersion = version;
+        revision = update.revision;
+        sendMap(update.bytes, output, MapErrorProto.MapError.ErrorCode.MAP_NOT_AVAILABLE);
+    }
+
+    private void sendActiveMapSlam(int start, int version, float tolerance, ResponseOutput output) {
+        if (output == null) {
+            LOGGER.warning("Output null");
+            return;
+        }
+        LOGGER.info("Sending active map slam");
+        sendSlam(MessageCache.toDelimited(mapHandler.getActivePathFrom(start, version, tolerance)), output, MapErrorProto.MapError.ErrorCode.MAP_NOT_AVAILABLE);
+    }
+
+    private void sendPreviousMap(int version, int level, ResponseOutput output) {
+        if (output == null) {
+            LOGGER.warning("Output null");
+            return;
+        }
+        LOGGER.info("Updating previous map");
+        if (!mapHandler.isIndexed()) mapHandler.updatePreviousMaps();
+        LOGGER.info("Sending previous map");
+        sendMap(mapHandler.getLastMapBytes(version, level), output, MapErrorProto.MapError.ErrorCode.MAP_NOT_AVAILABLE);
+    }
+
+    private void sendPreviousMapSlam(int version, float tolerance, ResponseOutput output) {
+        if (output == null) {
+            LOGGER.warning("Output null");
+            return;
+        }
+        LOGGER.info("Updating previous map");
+        if (!mapHandler.isIndexed()) mapHandler.updatePreviousMaps();
+        LOGGER.info("Sending previous map slam");
+        sendSlam(mapHandler.getLastPathBytes(version, tolerance), output, MapErrorProto.MapError.ErrorCode.MAP_NOT_AVAILABLE);
+    }
+
+    private void sendOldMap(String name, int version, int level, ResponseOutput output) {
+        if (output == null) {
+            LOGGER.warning("Output null");
+            return;
+        }
+        if (name == null) {
+            MapPackageProto.MapPackage.Builder builder = MapPackageProto.MapPackage.newBuilder();
+            LOGGER.warning("Name not provided");
+            builder.setError(constructError(MapErrorProto.MapError.ErrorCode.COMMUNICATION_ERROR, ""));
+            output.writeDelimited(builder.build());
+            return;
+        }
+        LOGGER.info("Sending old map: " + name);
+        sendMap(mapHandler.getOldMapBytes(name, version, level), output, MapErrorProto.MapError.ErrorCode.MAP_NOT_FOUND);
+    }
+
+    private void sendOldMapSlam(String name, int version, float tolerance, ResponseOutput output) {
+        if (output == null) {
+            LOGGER.warning("Output null");
+            return;
+        }
+        if (name == null) {
+            MapPackageProto.MapPackage.Builder builder = MapPackageProto.MapPackage.newBuilder();
+            LOGGER.warning("Name not provided");
+            builder.setError(constructError(MapErrorProto.MapError.ErrorCode.COMMUNICATION_ERROR, ""));
+            output.writeDelimited(builder.build());
+            return;
+        }
+        LOGGER.info("Sending old map slam: " + name);
+        sendSlam(mapHandler.getOldPathBytes(name, version, tolerance), output, MapErrorProto.MapError.ErrorCode.MAP_NOT_FOUND);
+    }
+
+    private void sendMap(byte[] map, ResponseOutput output, MapErrorProto.MapError.ErrorCode applicableError) {
+        if (output == null) {
+            LOGGER.warning("Output null");
+            return;
+        }
+        MapPackageProto.MapPackage.Builder builder = MapPackageProto.MapPackage.newBuilder();
+        if (authenticated) {
+            if (map == null) {
+                LOGGER.warning("Map null");
+                builder.setError(constructError(applicableError, "Map null"));
+            } else {
+                LOGGER.info("Sending map package");
+                output.write(map);
+                return;
+            }
+        } else {
+            LOGGER.warning("Not authenticated");
+            builder.setError(constructError(MapErrorProto.MapError.ErrorCode.NOT_AUTHENTICATED, ""));
+        }
+        LOGGER.info("Sending map message");
+        output.writeDelimited(builder.build());
+    }
+
+    private void sendSlam(byte[] map, ResponseOutput output, MapErrorProto.MapError.ErrorCode applicableError) {
+        if (output == null) {
+            LOGGER.warning("Output null");
+            return;
+        }
+        MapSlamProto.MapSlam.Builder builder = MapSlamProto.MapSlam.newBuilder();
+        if (authenticated) {
+            if (map == null) {
+                LOGGER.warning("Map null");
+                builder.setError(constructError(applicableError, "Map null"));
+            } else {
+                LOGGER.info("Sending map slam");
+                output.write(map);
+                return;
+            }
+        } else {
+            LOGGER.warning("Not authenticated");
+            builder.setError(constructError(MapErrorProto.MapError.ErrorCode.NOT_AUTHENTICATED, ""));
+        }
+        LOGGER.info("Sending map slam message");
+        output.writeDelimited(builder.build());
+    }
+
+    private MapErrorProto.MapError constructError(MapErrorProto.MapError.ErrorCode code, String opt){
+        LOGGER.info("Constructing error message");
+        MapErrorProto.MapError.Builder error = MapErrorProto.MapError.newBuilder();
+        if (code == null) {
+            LOGGER.warning("Code null");
+            code = MapErrorProto.MapError.ErrorCode.UNKNOWN;
+        }
+        error.setCode(code);
+        if (opt != null) {
+            LOGGER.info("No opt string provided");
+            error.setOpt(opt);
+        }
+        LOGGER.info("Building error message");
+        return error.build();
+    }
+
+    private void close() {
+        LOGGER.info("Closing connection");
+        closed = true;
+    }
+}
@@ -0,0 +1,146 @@
+/*
+ * Copyright (c) 2018 Joerg Bayer
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.sg_o.app.miioMapServer;
+
+import com.google.protobuf.CodedOutputStream;
+import com.google.protobuf.MessageLite;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * This class collects the responses to the requests of a client, so they can be sent with a single gathering write.
+ * Messages are encoded directly into buffers taken from a shared pool. The cached wire formats of the maps are sent as they are, without copying them.
+ * The pooled buffers have to be given back with {@link #release()} once the responses were sent.
+ */
+class ResponseOutput {
+    private static final int POOLED_BUFFER_SIZE = 16384;
+    private static final int MAX_POOLED_BUFFERS = 64;
+    private static final ConcurrentLinkedQueue<ByteBuffer> POOL = new ConcurrentLinkedQueue<>();
+    private static final AtomicInteger POOLED = new AtomicInteger();
+    private static final AtomicInteger IN_USE = new AtomicInteger();
+
+    private final List<ByteBuffer> buffers = new ArrayList<>();
+    private final List<ByteBuffer> pooled = new ArrayList<>();
+    private ByteBuffer current;
+
+    /**
+     * Add a message in the length delimited wire format. It is encoded into a buffer sized from its serialized size.
+     * @param message The message.
+     */
+    void writeDelimited(MessageLite message) {
+        int size = message.getSerializedSize();
+        int total = CodedOutputStream.computeUInt32SizeNoTag(size) + size;
+        ByteBuffer target;
+        if (total > POOLED_BUFFER_SIZE) {
+            target = ByteBuffer.allocate(total);
+            buffers.add(target);
+        } else {
+            if (current == null || current.remaining() < total) {
+                current = acquire();
+                pooled.add(current);
+                buffers.add(current);
+            }
+            target = current;
+        }
+        // The encoded message is written into the backing array, the buffers position is moved afterwards.
+        CodedOutputStream output = CodedOutputStream.newInstance(target.array(), target.arrayOffset() + target.position(), total);
+        try {
+            output.writeUInt32NoTag(size);
+            message.writeTo(output);
+        } catch (IOException e) {
+            throw new IllegalStateException("Serializing to a byte array failed", e);
+        }
+        output.checkNoSpaceLeft();
+        target.position(target.position() + total);
+    }
+
+    /**
+     * Add data that already is in the wire format. The array is sent as it is and must not be changed afterwards.
+     * @param wire The data.
+     */
+    void write(byte[] wire) {
+        if (wire == null || wire.length == 0) return;
+        current = null;
+        // Like the encoded buffers the position marks the end of the data.
+        ByteBuffer b = ByteBuffer.wrap(wire);
+        b.position(wire.length);
+        buffers.add(b);
+    }
+
+    /**
+     * @return The collected data, ready to be written. Every call returns new buffers over the same data.
+     */
+    ByteBuffer[] toBuffers() {
+        ByteBuffer[] out = new ByteBuffer[buffers.size()];
+        for (int i = 0; i < out.length; i++) {
+            ByteBuffer b = buffers.get(i).duplicate();
+            b.flip();
+            out[i] = b;
+        }
+        return out;
+    }
+
+    /**
+     * Write the collected data to a stream.
+     * @param out The stream.
+     * @throws IOException If writing failed.
+     */
+    void writeTo(OutputStream out) throws IOException {
+        for (ByteBuffer b : toBuffers()) {
+            out.write(b.array(), b.arrayOffset() + b.position(), b.remaining());
+        }
+    }
+
+    /**
+     * Give the pooled buffers back. The collected data must not be used afterwards.
+     */
+    void release() {
+        for (ByteBuffer b : pooled) {
+            IN_USE.decrementAndGet();
+            if (POOLED.incrementAndGet() > MAX_POOLED_BUFFERS) {
+                POOLED.decrementAndGet();
+                continue;
+            }
+            b.clear();
+            POOL.add(b);
+        }
+        pooled.clear();
+        buffers.clear();
+        current = null;
+    }
+
+    /**
+     * @return The number of pooled buffers currently taken by responses that weren't released yet.
+     */
+    static int buffersInUse() {
+        return IN_USE.get();
+    }
+
+    private static ByteBuffer acquire() {
+        IN_USE.incrementAndGet();
+        ByteBuffer b = POOL.poll();
+        if (b == null) return ByteBuffer.allocate(POOLED_BUFFER_SIZE);
+        POOLED.decrementAndGet();
+        return b;
+    }
+}
@@ -20,6 +20,7 @@ public class Run {
         LOG_FILE("l", "Specify the file the log should be written to."),
         LOG_LEVEL("d", "Specify the log level. warning; info; fine; finer; finest; all; off"),
         TOKEN("t", "Specify the path to the file where the token is stored in"),
+        CACHE_DIR("k", "Specify the directory converted old maps are cached in. Leave empty to disable the cache."),
         VERSION("v", "Print the version of this program"),
         HELP("h", "Prints this help");
 
@@ -65,6 +66,7 @@ public class Run {
         File oldMap = new File("/mnt/data/rockrobo/rrlog");
         File log = new File("/mnt/data/server/logs/mapServer.log");
         File token = new File("/mnt/data/miio/device.token");
+        File cache = new File("/mnt/data/server/cache");
         if (!log.getParentFile().exists()){
             //noinspection ResultOfMethodCallIgnored
             log.getParentFile().mkdirs();
@@ -82,6 +84,13 @@ public class Run {
                 }
             }
             if (e.getKey().equals(Args.TOKEN)) token = new File(e.getValue());
+            if (e.getKey().equals(Args.CACHE_DIR)) {
+                if (e.getValue().equals("")) {
+                    cache = null;
+                } else {
+                    cache = new File(e.getValue());
+                }
+            }
             if (e.getKey().equals(Args.VERSION)) {
                 printVersion();
                 return;
@@ -92,7 +101,7 @@ public class Run {
                 return;
             }
         }
-        Server s0 = new Server(currentMap, oldMap, 54331, TIMEOUT, NUMBER_OF_NO_MESSAGE, token, lv, log);
+        Server s0 = new Server(currentMap, oldMap, cache, 54331, TIMEOUT, NUMBER_OF_NO_MESSAGE, token, lv, log);
         s0.run();
     }
 
@@ -6,17 +6,31 @@ import java.io.BufferedReader;
 import java.io.File;
 import java.io.FileReader;
 import java.io.IOException;
-import java.net.ServerSocket;
-import java.net.Socket;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.logging.*;
 
 public class Server extends Thread{
     private final static Logger LOGGER = Logger.getLogger(Server.class.getName());
 
+    private static final int MAX_EVENT_LOOPS = 4;
+    private static final int RECEIVE_BUFFER_SIZE = 65536;
+
     private Maps mapHandler;
     private final int port;
-    private boolean running;
+    private volatile boolean running;
     private Token tk;
+    private Selector selector;
+    private int localPort = -1;
+    private boolean terminated;
 
     private int timeout;
     private int noMessage;
@@ -34,6 +48,23 @@ public class Server extends Thread{
      * @throws IOException If the directories are invalid, If the log file is invalid or if the token is invalid.
      */
     public Server(File activeMapDirectory, File previousMapsDirectory, int port, int timeout, int noMessage, File tokenFile, Level logLevel, File logFile) throws IOException {
+        this(activeMapDirectory, previousMapsDirectory, null, port, timeout, noMessage, tokenFile, logLevel, logFile);
+    }
+
+    /**
+     * Create a new server.
+     * @param activeMapDirectory The directory where the active maps are stored.
+     * @param previousMapsDirectory The directory where the directories of old maps can be found.
+     * @param cacheDirectory The directory converted old maps are stored in. If null nothing is stored on disk.
+     * @param port The port to start the server at. 0 to pick a free port, see {@link #getLocalPort()}.
+     * @param noMessage The number of times the socket may timeout before closing the connection.
+     * @param timeout The time in ms allowed to receive a message. A connection is closed after it was idle for (noMessage + 1) * timeout ms, 0 to keep idle connections open.
+     * @param tokenFile The token of the device.
+     * @param logLevel The log level.
+     * @param logFile The file where to store the logs. If null the logs will be output to the console.
+     * @throws IOException If the directories are invalid, If the log file is invalid or if the token is invalid.
+     */
+    public Server(File activeMapDirectory, File previousMapsDirectory, File cacheDirectory, int port, int timeout, int noMessage, File tokenFile, Level logLevel, File logFile) throws IOException {
         if (logFile != null) {
             Logger globalLogger =  LOGGER.getParent();
             Handler[] handlers = globalLogger.getHandlers();
@@ -51,7 +82,7 @@ public class Server extends Thread{
         LOGGER.info("Server Creation");
         this.port = port;
         LOGGER.info("Creating map handler");
-        this.mapHandler = new Maps(activeMapDirectory, previousMapsDirectory, LOGGER.getLevel());
+        this.mapHandler = new Maps(activeMapDirectory, previousMapsDirectory, cacheDirectory, LOGGER.getLevel());
         LOGGER.info("Created map handler");
         LOGGER.info("Getting token");
         Token tk = getToken(tokenFile);
@@ -94,44 +125,116 @@ public class Server extends Thread{
     }
 
     /**
-     * Run the server.
+     * Run the server. Connections are accepted on this thread and spread over the event loops, requests are handled in the worker pool.
      */
     @Override
     public void run() {
         LOGGER.info("Starting server");
-        running = true;
-        while (running){
-            ServerSocket serverSocket;
-            try {
-                LOGGER.info("Creating server socket");
-                serverSocket = new ServerSocket(port);
-                LOGGER.info("Created server socket" + serverSocket.toString());
-            } catch (Exception e) {
-                LOGGER.warning("Couldn't create socket: " + e.toString());
-                return;
+        mapHandler.startIndexer();
+        ServerSocketChannel serverChannel;
+        Selector selector;
+        try {
+            LOGGER.info("Creating server socket");
+            serverChannel = ServerSocketChannel.open();
+            // Accepted sockets inherit the receive buffer, it has to be set before binding to take effect on the window size.
+            serverChannel.setOption(StandardSocketOptions.SO_RCVBUF, RECEIVE_BUFFER_SIZE);
+            serverChannel.bind(new InetSocketAddress(port));
+            serverChannel.configureBlocking(false);
+            selector = Selector.open();
+            serverChannel.register(selector, SelectionKey.OP_ACCEPT);
+            LOGGER.info("Created server socket" + serverChannel.toString());
+        } catch (Exception e) {
+            LOGGER.warning("Couldn't create socket: " + e.toString());
+            mapHandler.stopIndexer();
+            return;
+        }
+        int threads = Runtime.getRuntime().availableProcessors();
+        ExecutorService workers = Executors.newFixedThreadPool(threads, new ThreadFactory() {
+            private final AtomicInteger count = new AtomicInteger();
+
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread t = new Thread(r, "MapServerWorker-" + count.incrementAndGet());
+                t.setDaemon(true);
+                return t;
+            }
+        });
+        EventLoop[] loops = new EventLoop[Math.max(1, Math.min(MAX_EVENT_LOOPS, threads / 2))];
+        long idleTimeout = (long) timeout * (noMessage + 1);
+        try {
+            for (int i = 0; i < loops.length; i++) {
+                loops[i] = new EventLoop(workers, mapHandler, tk, idleTimeout);
+                loops[i].start("MapServerLoop-" + (i + 1));
             }
-            while (running) {
-                LOGGER.fine("Run loop start");
-                try {
-                    Socket socket = serverSocket.accept();
-                    if (socket == null){
-                        LOGGER.warning("Connection null");
-                        continue;
-                    }
-                    LOGGER.info("Connection established");
-                    new Thread(new ServerThread(socket, mapHandler, tk, noMessage, timeout, LOGGER.getLevel())).start();
-                } catch (IOException ignore) {
+        } catch (IOException e) {
+            LOGGER.warning("Couldn't create event loop: " + e.toString());
+            shutdown(serverChannel, selector, loops, workers);
+            return;
+        }
+        synchronized (this) {
+            this.selector = selector;
+            this.localPort = serverChannel.socket().getLocalPort();
+            running = !terminated;
+        }
+        int next = 0;
+        while (running) {
+            LOGGER.fine("Run loop start");
+            try {
+                selector.select();
+                selector.selectedKeys().clear();
+                SocketChannel channel;
+                while ((channel = serverChannel.accept()) != null) {
+                    LOGGER.info("Connection accepted");
+                    loops[next].register(channel);
+                    next = (next + 1) % loops.length;
                 }
-
+            } catch (IOException e) {
+                LOGGER.warning("Couldn't accept connection: " + e.toString());
             }
         }
+        shutdown(serverChannel, selector, loops, workers);
+        LOGGER.info("Server stopped");
+    }
+
+    private void shutdown(ServerSocketChannel serverChannel, Selector selector, EventLoop[] loops, ExecutorService workers) {
+        for (EventLoop loop : loops) {
+            if (loop != null) loop.stop();
+        }
+        workers.shutdown();
+        mapHandler.stopIndexer();
+        try {
+            selector.close();
+            serverChannel.close();
+        } catch (IOException e) {
+            LOGGER.info("Couldn't close server socket: " + e.toString());
+        }
+        synchronized (this) {
+            this.selector = null;
+            this.localPort = -1;
+        }
+    }
+
+    /**
+     * @return The port the server accepts connections on or -1 if it isn't running.
+     */
+    public synchronized int getLocalPort() {
+        return localPort;
+    }
+
+    /**
+     * @return The number of pooled response buffers that weren't given back yet. The pool is shared by all servers, so this counts the responses of every server that are being built or sent.
+     */
+    public static int getResponseBuffersInUse() {
+        return ResponseOutput.buffersInUse();
     }
 
     /**
      * Stop the server.
      */
-    public void terminate() {
+    public synchronized void terminate() {
         LOGGER.info("Terminating server");
+        terminated = true;
         running = false;
+        if (selector != null) selector.wakeup();
     }
 }
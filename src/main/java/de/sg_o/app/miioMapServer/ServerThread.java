@@ -1,29 +1,29 @@
 package de.sg_o.app.miioMapServer;
 
 import de.sg_o.app.miio.base.Token;
-import de.sg_o.app.miio.util.ByteArray;
-import de.sg_o.proto.*;
+import de.sg_o.proto.MapRequestProto;
 
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
 import java.net.Socket;
 import java.net.SocketTimeoutException;
-import java.util.Arrays;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
 /**
- * The ServerThread class handles a single clients requests.
+ * The ServerThread class handles a single clients requests on a blocking socket.
+ * @deprecated {@link Server} handles all clients on a few threads with non blocking channels and no longer uses this class.
  */
+@Deprecated
 @SuppressWarnings("WeakerAccess")
 public class ServerThread extends Thread {
     private final static Logger LOGGER = Logger.getLogger(ServerThread.class.getName());
 
     private Socket socket;
-    private Maps mapHandler;
-    private Token tk;
-    private boolean authenticated = false;
+    private RequestHandler handler;
     private int noMessage;
     private int timeout;
     private int currentMessage = 0;
@@ -53,17 +53,17 @@ public class ServerThread extends Thread {
             LOGGER.warning("Map handler null");
             throw new IOException();
         }
-        this.mapHandler = mapHandler;
         if (tk == null) {
             LOGGER.warning("Token null");
             throw new IOException("No token provided");
         }
-        this.tk = tk;
+        this.handler = new RequestHandler(mapHandler, tk);
         if (noMessage < 0) noMessage = 0;
         this.noMessage = noMessage;
         if (timeout < 0) timeout = 0;
         this.timeout = timeout;
         this.socket.setSoTimeout(timeout);
+        this.socket.setTcpNoDelay(true);
     }
 
     /**
@@ -75,9 +75,9 @@ public class ServerThread extends Thread {
         OutputStream outputStream;
         try {
             LOGGER.info("Getting input stream");
-            inputStream = socket.getInputStream();
+            inputStream = new BufferedInputStream(socket.getInputStream());
             LOGGER.info("Getting output stream");
-            outputStream = socket.getOutputStream();
+            outputStream = new BufferedOutputStream(socket.getOutputStream());
             LOGGER.info("Got all streams");
         } catch (IOException e) {
             LOGGER.warning("Error getting streams: " + e.toString());
@@ -88,10 +88,22 @@ public class ServerThread extends Thread {
         while (socket.isConnected()) {
             try {
                 request = MapRequestProto.MapRequest.parseDelimitedFrom(inputStream);
-                if (request != null) {
-                    LOGGER.info("Got request");
-                    currentMessage = 0;
-                    sendResponse(request, outputStream);
+                if (request == null) {
+                    LOGGER.info("Connection closed by client");
+                    forceClose();
+                    break;
+                }
+                LOGGER.info("Got request");
+                currentMessage = 0;
+                ResponseOutput response = new ResponseOutput();
+                handler.handle(request, response);
+                response.writeTo(outputStream);
+                response.release();
+                // Pipelined requests are answered first, the responses are sent together.
+                if (handler.isClosed() || inputStream.available() == 0) outputStream.flush();
+                if (handler.isClosed()) {
+                    forceClose();
+                    break;
                 }
             } catch (SocketTimeoutException st){
                 currentMessage++;
@@ -105,286 +117,10 @@ public class ServerThread extends Thread {
                 forceClose();
                 break;
             }
-            try {
-                Thread.sleep(250);
-            } catch (InterruptedException ignore) {
-            }
         }
         LOGGER.info("ServerThread ended: " + socket.toString());
     }
 
-    private void sendResponse(MapRequestProto.MapRequest req, OutputStream output){
-        if (req == null) return;
-        if (output == null) return;
-        LOGGER.info("Parsing Code");
-        MapRequestProto.MapRequest.RequestCode code = req.getCode();
-        switch (code){
-            case MAP_INFO:
-                LOGGER.info("MAP_INFO detected");
-                sendInfo(output);
-                break;
-            case GET_ACTIVE_MAP:
-                LOGGER.info("GET_ACTIVE_MAP detected");
-                sendActiveMap(output);
-                break;
-            case GET_PREVIOUS_MAP:
-                LOGGER.info("GET_PREVIOUS_MAP detected");
-                sendPreviousMap(output);
-                break;
-            case GET_OLD_MAP:
-                LOGGER.info("GET_OLD_MAP detected");
-                sendOldMap(req.getOpt(), output);
-                break;
-            case GET_ACTIVE_MAP_SLAM:
-                LOGGER.info("GET_ACTIVE_MAP_SLAM detected");
-                sendActiveMapSlam(req.getOptInt(), output);
-                break;
-            case GET_PREVIOUS_MAP_SLAM:
-                LOGGER.info("GET_PREVIOUS_MAP_SLAM detected");
-                sendPreviousMapSlam(output);
-                break;
-            case GET_OLD_MAP_SLAM:
-                LOGGER.info("GET_OLD_MAP_SLAM detected");
-                sendOldMapSlam(req.getOpt(), output);
-                break;
-            case AUTHENTICATE:
-                LOGGER.info("AUTHENTICATE detected");
-                authenticate(req.getOpt(), output);
-                break;
-            case END_COMMUNICATION:
-                forceClose();
-                break;
-        }
-    }
-
-    private void authenticate(String auth, OutputStream output) {
-        if (output == null) {
-            LOGGER.warning("OutputStream null");
-            return;
-        }
-        MapRequestProto.MapRequest.Builder resp = MapRequestProto.MapRequest.newBuilder();
-        if (auth == null) {
-            try {
-                LOGGER.warning("No encrypted auth message received");
-                resp.setOpt(ByteArray.bytesToHex(tk.encrypt("error".getBytes("ASCII"))));
-                resp.build().writeDelimitedTo(output);
-                forceClose();
-                return;
-            } catch (IOException e) {
-                forceClose();
-            }
-        }
-        LOGGER.info("Decoding auth message");
-        byte[] msg = tk.decrypt(ByteArray.hexToBytes(auth));
-        LOGGER.info("Decoded auth message");
-        authenticated = Arrays.equals(new byte[]{104, 101, 108, 108, 111}, msg);
-        LOGGER.info("Compared auth message");
-        resp.setCode(MapRequestProto.MapRequest.RequestCode.AUTHENTICATE);
-        try {
-            if (authenticated) {
-                LOGGER.info("Authentication success");
-                resp.setOpt(ByteArray.bytesToHex(tk.encrypt("ok".getBytes("ASCII"))));
-                resp.build().writeDelimitedTo(output);
-            } else {
-                LOGGER.info("Authentication failed");
-                resp.setOpt(ByteArray.bytesToHex(tk.encrypt("error".getBytes("ASCII"))));
-                resp.build().writeDelimitedTo(output);
-                forceClose();
-            }
-        } catch (IOException e) {
-            LOGGER.warning("Couldn't send authentication response");
-            forceClose();
-        }
-    }
-
-    private void sendInfo(OutputStream output) {
-        if (output == null) {
-            LOGGER.warning("OutputStream null");
-            return;
-        }
-        LOGGER.info("Updating active map");
-        mapHandler.updateActiveMap();
-        LOGGER.info("Updating previous maps");
-        mapHandler.updatePreviousMaps();
-        MapInfoProto.MapInfo.Builder builder = MapInfoProto.MapInfo.newBuilder();
-        if (authenticated) {
-            LOGGER.info("Adding information");
-            builder.setActiveMapAvailable(mapHandler.hasActiveMap());
-            builder.addAllOldMaps(mapHandler.getPreviousMaps());
-            builder.setError(constructError(MapErrorProto.MapError.ErrorCode.NONE, ""));
-        } else {
-            LOGGER.warning("Not authenticated");
-            builder.setActiveMapAvailable(false);
-            builder.setError(constructError(MapErrorProto.MapError.ErrorCode.NOT_AUTHENTICATED, ""));
-        }
-        try {
-            LOGGER.info("Sending info");
-            builder.build().writeDelimitedTo(output);
-        } catch (IOException ignore) {
-            LOGGER.warning("Couldn't send information");
-        }
-    }
-
-    private void sendActiveMap(OutputStream output) {
-        if (output == null) {
-            LOGGER.warning("OutputStream null");
-            return;
-        }
-        LOGGER.info("Updating active map");
-        mapHandler.updateActiveMap();
-        LOGGER.info("Sending active map");
-        sendMap(mapHandler.getActiveMap(), output, MapErrorProto.MapError.ErrorCode.MAP_NOT_AVAILABLE);
-    }
-
-    private void sendActiveMapSlam(int start, OutputStream output) {
-        if (output == null) {
-            LOGGER.warning("OutputStream null");
-            return;
-        }
-        LOGGER.info("Sending active map slam");
-        sendSlam(mapHandler.getActivePathFrom(start), output, MapErrorProto.MapError.ErrorCode.MAP_NOT_AVAILABLE);
-    }
-
-    private void sendPreviousMap(OutputStream output) {
-        if (output == null) {
-            LOGGER.warning("OutputStream null");
-            return;
-        }
-        LOGGER.info("Updating previous map");
-        mapHandler.updatePreviousMaps();
-        LOGGER.info("Sending previous map");
-        sendMap(mapHandler.getLastMap(), output, MapErrorProto.MapError.ErrorCode.MAP_NOT_AVAILABLE);
-    }
-
-    private void sendPreviousMapSlam(OutputStream output) {
-        if (output == null) {
-            LOGGER.warning("OutputStream null");
-            return;
-        }
-        LOGGER.info("Updating previous map");
-        mapHandler.updatePreviousMaps();
-        LOGGER.info("Sending previous map slam");
-        sendSlam(mapHandler.getLastPath(), output, MapErrorProto.MapError.ErrorCode.MAP_NOT_AVAILABLE);
-    }
-
-    private void sendOldMap(String name, OutputStream output) {
-        if (output == null) {
-            LOGGER.warning("OutputStream null");
-            return;
-        }
-        if (name == null) {
-            MapPackageProto.MapPackage.Builder builder = MapPackageProto.MapPackage.newBuilder();
-            LOGGER.warning("Name not provided");
-            builder.setError(constructError(MapErrorProto.MapError.ErrorCode.COMMUNICATION_ERROR, ""));
-            try {
-                builder.build().writeDelimitedTo(output);
-            } catch (IOException ignore) {
-                LOGGER.warning("Couldn't send error message");
-            }
-            return;
-        }
-        LOGGER.info("Sending old map: " + name);
-        sendMap(mapHandler.getOldMap(name), output, MapErrorProto.MapError.ErrorCode.MAP_NOT_FOUND);
-    }
-
-    private void sendOldMapSlam(String name, OutputStream output) {
-        if (output == null) {
-            LOGGER.warning("OutputStream null");
-            return;
-        }
-        if (name == null) {
-            MapPackageProto.MapPackage.Builder builder = MapPackageProto.MapPackage.newBuilder();
-            LOGGER.warning("Name not provided");
-            builder.setError(constructError(MapErrorProto.MapError.ErrorCode.COMMUNICATION_ERROR, ""));
-            try {
-                builder.build().writeDelimitedTo(output);
-            } catch (IOException ignore) {
-                LOGGER.warning("Couldn't send error message");
-            }
-            return;
-        }
-        LOGGER.info("Sending old map slam: " + name);
-        sendSlam(mapHandler.getOldPath(name), output, MapErrorProto.MapError.ErrorCode.MAP_NOT_FOUND);
-    }
-
-    private void sendMap(MapPackageProto.MapPackage map, OutputStream output, MapErrorProto.MapError.ErrorCode applicableError) {
-        if (output == null) {
-            LOGGER.warning("OutputStream null");
-            return;
-        }
-        MapPackageProto.MapPackage.Builder builder = MapPackageProto.MapPackage.newBuilder();
-        if (authenticated) {
-            if (map == null) {
-                LOGGER.warning("Map null");
-                builder.setError(constructError(applicableError, "Map null"));
-            } else {
-                LOGGER.info("Generating map package and sending");
-                try {
-                    map.writeDelimitedTo(output);
-                    return;
-                } catch (IOException ignore) {
-                    LOGGER.warning("Couldn't send map message");
-                }
-            }
-        } else {
-            LOGGER.warning("Not authenticated");
-            builder.setError(constructError(MapErrorProto.MapError.ErrorCode.NOT_AUTHENTICATED, ""));
-        }
-        try {
-            LOGGER.info("Sending map message");
-            builder.build().writeDelimitedTo(output);
-        } catch (IOException ignore) {
-            LOGGER.warning("Couldn't send map message");
-        }
-    }
-
-    private void sendSlam(MapSlamProto.MapSlam map, OutputStream output, MapErrorProto.MapError.ErrorCode applicableError) {
-        if (output == null) {
-            LOGGER.warning("OutputStream null");
-            return;
-        }
-        MapSlamProto.MapSlam.Builder builder = MapSlamProto.MapSlam.newBuilder();
-        if (authenticated) {
-            if (map == null) {
-                LOGGER.warning("Map null");
-                builder.setError(constructError(applicableError, "Map null"));
-            } else {
-                LOGGER.info("Generating map slam and sending");
-                try {
-                    map.writeDelimitedTo(output);
-                    return;
-                } catch (IOException ignore) {
-                    LOGGER.warning("Couldn't send map slam message");
-                }
-            }
-        } else {
-            LOGGER.warning("Not authenticated");
-            builder.setError(constructError(MapErrorProto.MapError.ErrorCode.NOT_AUTHENTICATED, ""));
-        }
-        try {
-            LOGGER.info("Sending map slam message");
-            builder.build().writeDelimitedTo(output);
-        } catch (IOException ignore) {
-            LOGGER.warning("Couldn't send map slam message");
-        }
-    }
-
-    private MapErrorProto.MapError constructError(MapErrorProto.MapError.ErrorCode code, String opt){
-        LOGGER.info("Constructing error message");
-        MapErrorProto.MapError.Builder error = MapErrorProto.MapError.newBuilder();
-        if (code == null) {
-            LOGGER.warning("Code null");
-            code = MapErrorProto.MapError.ErrorCode.UNKNOWN;
-        }
-        error.setCode(code);
-        if (opt != null) {
-            LOGGER.info("No opt string provided");
-            error.setOpt(opt);
-        }
-        LOGGER.info("Building error message");
-        return error.build();
-    }
-
     private void forceClose(){
         try {
             LOGGER.info("Closing socket");
@@ -0,0 +1,84 @@
+/*
+ * Copyright (c) 2018 Joerg Bayer
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.sg_o.app.miioMapServer;
+
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Logger;
+
+/**
+ * This class makes sure a task for a key only runs once at a time. Callers that ask for a key while its task is running wait for that task and share its result.
+ * Results and failures are only shared while the task is running, the next call for the key starts a new task.
+ * @param <V> The type of the results.
+ */
+class SingleFlight<V> {
+    private final static Logger LOGGER = Logger.getLogger(SingleFlight.class.getName());
+
+    private final ConcurrentHashMap<String, FutureTask<V>> running = new ConcurrentHashMap<>();
+    private final AtomicLong started = new AtomicLong();
+    private final AtomicLong shared = new AtomicLong();
+
+    /**
+     * Run a task or wait for the task that is already running for the key.
+     * Unchecked exceptions thrown by the task are rethrown to every caller that waited for it.
+     * @param key The key of the task.
+     * @param task The task to run if none is running for the key.
+     * @return The result of the task or null if the thread was interrupted while waiting.
+     */
+    V run(String key, Callable<V> task) {
+        FutureTask<V> future = new FutureTask<>(task);
+        FutureTask<V> existing = running.putIfAbsent(key, future);
+        if (existing == null) {
+            started.incrementAndGet();
+            try {
+                future.run();
+            } finally {
+                running.remove(key, future);
+            }
+            existing = future;
+        } else {
+            LOGGER.fine("Waiting for running task " + key);
+            shared.incrementAndGet();
+        }
+        try {
+            return existing.get();
+        } catch (InterruptedException e) {
+            LOGGER.warning("Interrupted while waiting for " + key);
+            Thread.currentThread().interrupt();
+            return null;
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof RuntimeException) throw (RuntimeException) cause;
+            if (cause instanceof Error) throw (Error) cause;
+            throw new IllegalStateException(cause);
+        }
+    }
+
+    /**
+     * @return The number of tasks that were run.
+     */
+    long getStarted() {
+        return started.get();
+    }
+
+    /**
+     * @return The number of calls that waited for a task started by another call.
+     */
+    long getShared() {
+        return shared.get();
+    }
+}
@@ -0,0 +1,252 @@
+/*
+ * Copyright (c) 2018 Joerg Bayer
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.sg_o.app.miioMapServer;
+
+import java.nio.charset.StandardCharsets;
+import java.util.logging.Logger;
+
+/**
+ * This class parses the lines of a slam log one at a time. It tracks the lock state and drops points that moved less than a pixel.
+ * Lines are tokenized in a single pass without creating intermediate Strings.
+ */
+class SlamParser {
+    private final static Logger LOGGER = Logger.getLogger(SlamParser.class.getName());
+
+    /**
+     * The line did not change the path.
+     */
+    static final int NONE = 0;
+    /**
+     * The line reset the path. All previous points should be dropped.
+     */
+    static final int RESET = 1;
+    /**
+     * The line added a new point to the path. It can be read with {@link #getX()} and {@link #getY()}.
+     */
+    static final int POINT = 2;
+
+    private static final float[] POWERS_OF_TEN = {1e0f, 1e1f, 1e2f, 1e3f, 1e4f, 1e5f, 1e6f, 1e7f, 1e8f, 1e9f, 1e10f};
+    private static final int MAX_EXACT_MANTISSA = 1 << 24;
+    private static final int MAX_TOKENS = 6;
+
+    private final int[] tokenStart = new int[MAX_TOKENS];
+    private final int[] tokenEnd = new int[MAX_TOKENS];
+    private final ByteChars bytes = new ByteChars();
+    private boolean slamLocked;
+    private float oldX = 100000;
+    private float oldY = 100000;
+    private float x;
+    private float y;
+
+    /**
+     * Create a new parser.
+     * @param slamLocked The initial lock state.
+     */
+    SlamParser(boolean slamLocked) {
+        this.slamLocked = slamLocked;
+    }
+
+    /**
+     * @return True if the slam is currently locked.
+     */
+    boolean isSlamLocked() {
+        return slamLocked;
+    }
+
+    /**
+     * @return The x coordinate of the last point.
+     */
+    float getX() {
+        return x;
+    }
+
+    /**
+     * @return The y coordinate of the last point.
+     */
+    float getY() {
+        return y;
+    }
+
+    /**
+     * Parse a line stored in a byte array.
+     * @param data The array containing the line.
+     * @param start The index of the first byte of the line.
+     * @param end The index after the last byte of the line, without the line break.
+     * @return {@link #NONE}, {@link #RESET} or {@link #POINT}.
+     */
+    int parseLine(byte[] data, int start, int end) {
+        bytes.set(data, start, end);
+        return parseLine(bytes);
+    }
+
+    /**
+     * Parse a single line.
+     * @param line The line without the line break.
+     * @return {@link #NONE}, {@link #RESET} or {@link #POINT}.
+     */
+    int parseLine(CharSequence line) {
+        int tokens = tokenize(line);
+        if (tokens < 2) return NONE;
+        int keywordStart = tokenStart[1];
+        int keywordEnd = tokenEnd[1];
+        if (regionEquals(line, keywordStart, keywordEnd, "reset")) {
+            LOGGER.fine("Reset");
+            oldX = 100000;
+            oldY = 100000;
+            return RESET;
+        }
+        if (regionEquals(line, keywordStart, keywordEnd, "lock")) {
+            LOGGER.fine("Lock");
+            slamLocked = true;
+            return NONE;
+        }
+        if (regionEquals(line, keywordStart, keywordEnd, "unlock")) {
+            LOGGER.fine("Unlock");
+            slamLocked = false;
+            return NONE;
+        }
+        if (slamLocked) return NONE;
+        if (!regionEquals(line, keywordStart, keywordEnd, "estimate")) return NONE;
+        if (tokens != 5) {
+            LOGGER.info("Estimate of wrong length");
+            return NONE;
+        }
+        float newX;
+        float newY;
+        try {
+            newX = parseFloat(line, tokenStart[2], tokenEnd[2]) * (20.0f);
+            newY = parseFloat(line, tokenStart[3], tokenEnd[3]) * (-20.0f);
+        } catch (NumberFormatException e) {
+            LOGGER.warning("Parsing coordinates failed: " + e);
+            return NONE;
+        }
+        if ((Math.abs(newX - oldX) > 1.0f) || (Math.abs(newY - oldY) > 1.0f)) {
+            oldX = newX;
+            oldY = newY;
+            x = newX;
+            y = newY;
+            return POINT;
+        }
+        return NONE;
+    }
+
+    /**
+     * Split the line at whitespace the same way {@code line.split("\\s+")} would, but only remember the bounds of the first tokens.
+     * @param line The line to split.
+     * @return The number of tokens. Only counted up to {@link #MAX_TOKENS}.
+     */
+    private int tokenize(CharSequence line) {
+        int length = line.length();
+        if (length == 0) return 1;
+        int tokens = 0;
+        int i = 0;
+        if (isWhitespace(line.charAt(0))) {
+            tokenStart[0] = 0;
+            tokenEnd[0] = 0;
+            tokens++;
+        }
+        while (tokens < MAX_TOKENS) {
+            while (i < length && isWhitespace(line.charAt(i))) i++;
+            if (i >= length) break;
+            tokenStart[tokens] = i;
+            while (i < length && !isWhitespace(line.charAt(i))) i++;
+            tokenEnd[tokens] = i;
+            tokens++;
+        }
+        return tokens;
+    }
+
+    private static boolean isWhitespace(char c) {
+        return c == ' ' || c == '\t' || c == '\n' || c == '\r' || c == '\f' || c == 0x0B;
+    }
+
+    private static boolean regionEquals(CharSequence line, int start, int end, String keyword) {
+        if (end - start != keyword.length()) return false;
+        for (int i = 0; i < keyword.length(); i++) {
+            if (line.charAt(start + i) != keyword.charAt(i)) return false;
+        }
+        return true;
+    }
+
+    /**
+     * Parse a plain decimal number. The result is exact as long as the mantissa fits into a float, anything else is handed to {@link Float#parseFloat(String)}.
+     */
+    private static float parseFloat(CharSequence line, int start, int end) {
+        int i = start;
+        boolean negative = false;
+        char c = line.charAt(i);
+        if (c == '-' || c == '+') {
+            negative = c == '-';
+            i++;
+        }
+        int mantissa = 0;
+        int fraction = 0;
+        boolean digits = false;
+        boolean dot = false;
+        for (; i < end; i++) {
+            c = line.charAt(i);
+            if (c >= '0' && c <= '9') {
+                mantissa = (mantissa * 10) + (c - '0');
+                if (mantissa >= MAX_EXACT_MANTISSA) return Float.parseFloat(line.subSequence(start, end).toString());
+                if (dot) fraction++;
+                digits = true;
+            } else if (c == '.' && !dot) {
+                dot = true;
+            } else {
+                return Float.parseFloat(line.subSequence(start, end).toString());
+            }
+        }
+        if (!digits || fraction >= POWERS_OF_TEN.length) return Float.parseFloat(line.subSequence(start, end).toString());
+        float value = ((float) mantissa) / POWERS_OF_TEN[fraction];
+        return negative ? -value : value;
+    }
+
+    /**
+     * A reusable view of a part of a byte array as characters.
+     */
+    private static class ByteChars implements CharSequence {
+        private byte[] data;
+        private int start;
+        private int length;
+
+        void set(byte[] data, int start, int end) {
+            this.data = data;
+            this.start = start;
+            this.length = end - start;
+        }
+
+        @Override
+        public int length() {
+            return length;
+        }
+
+        @Override
+        public char charAt(int index) {
+            return (char) (data[start + index] & 0xFF);
+        }
+
+        @Override
+        public CharSequence subSequence(int start, int end) {
+            return new String(data, this.start + start, end - start, StandardCharsets.ISO_8859_1);
+        }
+
+        @Override
+        public String toString() {
+            return new String(data, start, length, StandardCharsets.ISO_8859_1);
+        }
+    }
+}
@@ -0,0 +1,169 @@
+/*
+ * Copyright (c) 2018 Joerg Bayer
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.sg_o.app.miioMapServer;
+
+import de.sg_o.proto.MapErrorProto;
+import de.sg_o.proto.MapSlamProto;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.logging.Logger;
+
+/**
+ * This class follows a slam log that is still being written to. Every update only parses the bytes appended since the last one.
+ * Truncation and replacement of the file are detected and cause the log to be parsed again from the start.
+ */
+class SlamTail {
+    private final static Logger LOGGER = Logger.getLogger(SlamTail.class.getName());
+    private static final int BUFFER_SIZE = 65536;
+
+    private final Path file;
+    private ByteBuffer buffer = ByteBuffer.allocate(BUFFER_SIZE);
+    private Object fileKey;
+    private long offset;
+    private SlamParser parser;
+    private PackedPath points;
+    // Changed whenever the parsed points change, so results derived from them can be reused until then.
+    private long revision;
+
+    /**
+     * Create a new slam tail.
+     * @param file The slam log to follow.
+     */
+    SlamTail(Path file) {
+        this.file = file;
+        reset();
+    }
+
+    /**
+     * @param file The file to check.
+     * @return True if this tail follows the provided file.
+     */
+    boolean isFor(Path file) {
+        return this.file.equals(file);
+    }
+
+    private void reset() {
+        fileKey = null;
+        offset = 0;
+        parser = new SlamParser(true);
+        points = new PackedPath(1024);
+        revision++;
+    }
+
+    /**
+     * Parse everything appended to the log since the last update. A trailing incomplete line is left for the next update.
+     * @throws IOException If the log could not be read.
+     */
+    synchronized void update() throws IOException {
+        BasicFileAttributes attributes = Files.readAttributes(file, BasicFileAttributes.class);
+        Object key = attributes.fileKey();
+        if (attributes.size() < offset || (fileKey != null && key != null && !fileKey.equals(key))) {
+            LOGGER.info("Slam log was truncated or replaced, starting over");
+            reset();
+        }
+        fileKey = key;
+        if (attributes.size() == offset) return;
+        long before = offset;
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            channel.position(offset);
+            buffer.clear();
+            while (true) {
+                int read = channel.read(buffer);
+                byte[] data = buffer.array();
+                int end = buffer.position();
+                int start = 0;
+                for (int i = 0; i < end; i++) {
+                    if (data[i] != '\n') continue;
+                    int lineEnd = i;
+                    if (lineEnd > start && data[lineEnd - 1] == '\r') lineEnd--;
+                    switch (parser.parseLine(data, start, lineEnd)) {
+                        case SlamParser.RESET:
+                            points.clear();
+                            break;
+                        case SlamParser.POINT:
+                            points.add(parser.getX(), parser.getY());
+                            break;
+                    }
+                    offset += (i + 1) - start;
+                    start = i + 1;
+                }
+                buffer.position(start);
+                buffer.limit(end);
+                buffer.compact();
+                if (read < 0) break;
+                if (!buffer.hasRemaining()) {
+                    LOGGER.fine("Growing slam line buffer");
+                    ByteBuffer grown = ByteBuffer.allocate(buffer.capacity() * 2);
+                    buffer.flip();
+                    grown.put(buffer);
+                    buffer = grown;
+                }
+            }
+        }
+        if (offset != before) revision++;
+    }
+
+    /**
+     * @return A number that changes whenever the parsed points change. It never repeats.
+     */
+    synchronized long getRevision() {
+        return revision;
+    }
+
+    /**
+     * @return The number of points parsed so far.
+     */
+    synchronized int size() {
+        return points.size();
+    }
+
+    /**
+     * Update the log and get the path from a certain start position.
+     * @param start The position to start to read from.
+     * @param version The format version of the path message. 1 for the compact delta encoded format, everything else for the default format.
+     * @param tolerance The maximum distance in map pixels a point may have from the simplified path. 0 to get every point.
+     * @return The path from that start point.
+     * @throws IOException If the log could not be read.
+     */
+    synchronized MapSlamProto.MapSlam getPathFrom(int start, int version, float tolerance) throws IOException {
+        update();
+        MapErrorProto.MapError.Builder err = MapErrorProto.MapError.newBuilder();
+        MapSlamProto.MapSlam.Builder mapSlam = MapSlamProto.MapSlam.newBuilder();
+        if (start > points.size()) {
+            LOGGER.warning("Path out of range");
+            err.setCode(MapErrorProto.MapError.ErrorCode.SLAM_OUT_OF_RANGE);
+            return mapSlam.setError(err.build()).build();
+        }
+        if (start < 0) start = 0;
+        if (tolerance > 0) {
+            PackedPath slice = new PackedPath(points.size() - start);
+            slice.addAll(points, start);
+            VacuumMap.addPath(mapSlam, slice.simplify(tolerance), 0, version);
+            mapSlam.setSourcePoints(points.size());
+        } else {
+            VacuumMap.addPath(mapSlam, points, start, version);
+        }
+        err.setCode(MapErrorProto.MapError.ErrorCode.NONE);
+        return mapSlam.setError(err.build()).build();
+    }
+}
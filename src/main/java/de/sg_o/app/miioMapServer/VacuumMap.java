@@ -20,13 +20,22 @@ import de.sg_o.proto.MapPackageProto;
 import de.sg_o.proto.MapSlamProto;
 
 import java.io.*;
+import java.lang.ref.SoftReference;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
 import java.util.*;
 import java.util.List;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 import java.util.zip.DataFormatException;
 import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
 import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
 
 /**
  * This class handles the vacuums map. It parses the files stored on the vacuum, creates a bounding box for the area with valid data in the map, allows scaling the map, provides serialization and deserialization.
@@ -41,14 +50,58 @@ public class VacuumMap implements Serializable {
     public static final int GREEN = -16711936;
     public static final int BLUE = -16776961;
 
-    private final static Logger LOGGER = Logger.getLogger(ServerThread.class.getName());
+    /**
+     * The number of fixed point steps per pixel in compact path messages (version 1). At 20 pixels per meter one step is a millimeter.
+     */
+    public static final int SLAM_SCALE = 50;
 
-    private transient int[] map;
-    private transient List<float[]> path = new LinkedList<>();
+    /**
+     * The highest level of reduced map messages, an eighth of the width and height of the map.
+     */
+    public static final int MAX_LEVEL = 3;
+
+    private static final int STREAM_BUFFER_SIZE = 65536;
+    // The formats of the data written after the fields, recorded in the stream as "streamFormat". Streams written before the format was recorded read it as 0.
+    private static final int LEGACY_FORMAT = 0;
+    private static final int PALETTE_FORMAT = 1;
+    private static final int BINARY_FORMAT = 2;
+    // The tags of the sections of binary streams.
+    private static final int END_SECTION = 0;
+    private static final int MAP_SECTION = 1;
+    private static final int PATH_SECTION = 2;
+    private static final int SECTION_HEADER_SIZE = 8;
+    private static final int MAX_SECTION_SIZE = 64 * 1024 * 1024;
+    // Up to this number of colors two pixels are stored in one byte.
+    private static final int PACKED_PALETTE_SIZE = 16;
+    // Enough for a client that alternates between a few views, like the complete map and its bounding box.
+    private static final int MAX_CACHED_FRAMES = 4;
+
+    // Priority classes of the map colors when reducing the resolution: walls and obstacles are dark, the floor is light and markers are colored.
+    private static final int WALL_PRIORITY = 0;
+    private static final int MARKER_PRIORITY = 1;
+    private static final int FLOOR_PRIORITY = 2;
+    private static final int EMPTY_PRIORITY = 3;
+
+    private final static Logger LOGGER = Logger.getLogger(VacuumMap.class.getName());
+
+    private transient PalettedMap map;
+    private transient PackedPath path = new PackedPath();
     private int[] boundingBox;
     private int overSample;
     private int numberOfSlamLines = 0;
     private boolean slamLocked = true;
+    // The format is only a field of the stream, so serializing a map doesn't depend on or change its state.
+    private static final ObjectStreamField[] serialPersistentFields = {
+            new ObjectStreamField("boundingBox", int[].class),
+            new ObjectStreamField("overSample", Integer.TYPE),
+            new ObjectStreamField("numberOfSlamLines", Integer.TYPE),
+            new ObjectStreamField("slamLocked", Boolean.TYPE),
+            new ObjectStreamField("streamFormat", Integer.TYPE)
+    };
+    // Changed whenever the pixels of the map change or the path is replaced, so a cached frame is only reused for the same data.
+    private transient int mapRevision = 0;
+    private transient int pathRevision = 0;
+    private transient List<RenderCache> renderCache;
 
     /**
      * Create a vacuum map object.
@@ -66,7 +119,7 @@ public class VacuumMap implements Serializable {
         if (overSample < 1) overSample = 1;
         this.overSample = overSample;
         LOGGER.fine("Creating empty image");
-        this.map = new int[MAP_WIDTH * MAP_HEIGHT];
+        this.map = new PalettedMap(MAP_WIDTH * MAP_HEIGHT, 0);
         LOGGER.fine("Creating maximum bounding box");
         this.boundingBox = new int[]{0, 0, 1024, 1024};
         try {
@@ -82,13 +135,14 @@ public class VacuumMap implements Serializable {
     public VacuumMap(MapPackageProto.MapPackage image, MapSlamProto.MapSlam slam, int overSample) {
         if (overSample < 1) overSample = 1;
         this.overSample = overSample;
-        this.map = new int[MAP_WIDTH * MAP_HEIGHT];
+        this.map = new PalettedMap(MAP_WIDTH * MAP_HEIGHT, 0);
         this.boundingBox = new int[]{0, 0, 1024, 1024};
         decodeMapPackage(image);
         decodeMapSlam(slam);
     }
 
     private void readMap(BufferedReader image) throws IOException {
+        mapRevision++;
         LOGGER.fine("Initializing bounding box creation");
         int x = 0;
         int y = 0;
@@ -116,7 +170,7 @@ public class VacuumMap implements Serializable {
                 rgb[i] = rgb[i] & 0xFF;
             }
             LOGGER.fine("Setting pixel");
-            map[x + (y * MAP_WIDTH)] = toColorInt(rgb[0], rgb[1], rgb[2], 0xff);
+            map.set(x + (y * MAP_WIDTH), toColorInt(rgb[0], rgb[1], rgb[2], 0xff));
             if (rgb[0] != 125 || rgb[1] != 125 || rgb[2] != 125){
                 LOGGER.fine("Updating bounding box");
                 if (x < left) left = x;
@@ -138,50 +192,23 @@ public class VacuumMap implements Serializable {
 
     private void readSlam(BufferedReader slam) throws IOException {
         String line;
-        float oldX = 100000;
-        float oldY = 100000;
-        while ((line = slam.readLine()) != null){
-            LOGGER.fine("Parsing line: " + line);
-            numberOfSlamLines++;
-            if (line.contains("reset")){
-                LOGGER.fine("Reset");
-                path = new LinkedList<>();
-                oldX = 100000;
-                oldY = 100000;
-            }
-            if (line.contains("lock")) {
-                LOGGER.fine("Lock");
-                slamLocked = true;
-            }
-            if (line.contains("unlock")) {
-                LOGGER.fine("Unlock");
-                slamLocked = false;
-            }
-            if (slamLocked) continue;
-            if (line.contains("estimate")){
-                LOGGER.fine("Parsing estimate");
-                String[] split = line.split("\\s+");
-                if (split.length != 5) {
-                    LOGGER.info("Estimate of wrong length");
-                    continue;
-                }
-                float x;
-                float y;
-                try {
-                    x = Float.valueOf(split[2]) * (20.0f);
-                    y = Float.valueOf(split[3]) * (-20.0f);
-                    if ((Math.abs(x - oldX) > 1.0f) || (Math.abs(y - oldY) > 1.0f)){
-                        oldX = x;
-                        oldY = y;
-                    } else {
-                        continue;
-                    }
-                    path.add(new float[]{x, y});
-                } catch (Exception e){
-                    LOGGER.warning("Parsing coordinates failed: " + e);
+        SlamParser parser = new SlamParser(slamLocked);
+        try {
+            while ((line = slam.readLine()) != null) {
+                LOGGER.fine("Parsing line: " + line);
+                numberOfSlamLines++;
+                switch (parser.parseLine(line)) {
+                    case SlamParser.RESET:
+                        path.clear();
+                        pathRevision++;
+                        break;
+                    case SlamParser.POINT:
+                        path.add(parser.getX(), parser.getY());
+                        break;
                 }
-
             }
+        } finally {
+            slamLocked = parser.isSlamLocked();
         }
     }
 
@@ -203,50 +230,50 @@ public class VacuumMap implements Serializable {
     /**
      * @return The complete map.
      */
-    public synchronized int[] getMap() {
-        int width = MAP_WIDTH * overSample;
-        int height = MAP_HEIGHT * overSample;
-        int[] outMap = new int[width * height];
-
-        for (int y = 0; y < MAP_HEIGHT; y++) {
-            for (int x = 0; x < MAP_WIDTH; x++) {
-                int color = map[x + (y * MAP_WIDTH)];
-                for (int b = 0; b < overSample; b++) {
-                    for (int a = 0; a < overSample; a++) {
-                        int c = (x * overSample) + a;
-                        int d = (y * overSample) + b;
-                        outMap[c + (d * MAP_WIDTH * overSample)] = color;
-                    }
-                }
-            }
-        }
+    public int[] getMap() {
+        return getMap(null);
+    }
 
-        return outMap;
+    /**
+     * @param out An array to render the map into, so it can be reused for the next frame. It is used if it has exactly the size of the map, otherwise a new one is allocated. May be null.
+     * @return The complete map.
+     */
+    public synchronized int[] getMap(int[] out) {
+        return MapRenderer.render(map, MAP_WIDTH, MAP_HEIGHT, overSample, new int[]{0, 0, MAP_WIDTH * overSample, MAP_HEIGHT * overSample}, out);
     }
 
     /**
-     * @return The unscaled complete map.
+     * The map is stored as palette indices, so every call expands it into a new array of 4 MB. Use {@link #getRawMap(int[])} to reuse an array.
+     * @return A copy of the unscaled complete map.
      */
-    public synchronized int[] getRawMap() {
-        return map;
+    public int[] getRawMap() {
+        return getRawMap(null);
+    }
+
+    /**
+     * @param out An array to copy the map into, so it can be reused. It is used if it has exactly the size of the map, otherwise a new one is allocated. May be null.
+     * @return A copy of the unscaled complete map.
+     */
+    public synchronized int[] getRawMap(int[] out) {
+        return map.toArray(out);
     }
 
     /**
      * @return The path the vacuum took.
      */
     public synchronized List<float[]> getPath() {
-        List<float[]> outPath = new LinkedList<>();
-        for (float[] p : path){
-            outPath.add(new float[]{(p[0] + (MAP_WIDTH / 2.0f)) * overSample, (p[1] + (MAP_HEIGHT / 2.0f)) * overSample});
-        }
-        return outPath;
+        return scaledPath().asList();
+    }
+
+    private PackedPath scaledPath() {
+        return path.transform(MAP_WIDTH / 2.0f, MAP_HEIGHT / 2.0f, overSample);
     }
 
     /**
-     * @return The unscaled path the vacuum took.
+     * @return The unscaled path the vacuum took. This is a read only view of the stored path.
      */
     public synchronized List<float[]> getRawPath() {
-        return path;
+        return path.asList();
     }
 
     /**
@@ -331,72 +358,129 @@ public class VacuumMap implements Serializable {
      * @param pathColor The color the path should be drawn with. If null is provided this will fall back to blue.
      */
     public int[] getMapWithPathInBounds(Integer startColor, Integer pathColor){
-        int[] raw = getMapWithPath(startColor, pathColor);
-        int[] tmp = getBoundingBox();
-        int[] out = new int[tmp[2] * tmp[3]];
-        for (int y = 0; y < tmp[3]; y++){
-            for (int x = 0; x < tmp[2]; x++){
-                int a = x + tmp[0];
-                int b = y + tmp[1];
-                out[x + (y * tmp[2])] = raw[a + (b * MAP_WIDTH * overSample)];
-            }
+        int[] region;
+        synchronized (this) {
+            region = getBoundingBox();
         }
-        return out;
+        return getMapWithPathInRegion(region, startColor, pathColor, null);
     }
 
     /**
-     * @return The map with the path drawn into it. Using the color green for the start point and blue for the path.
-     */
-    public int[] getMapWithPath(){
-        return getMapWithPath(null, null);
-    }
-
-    /**
-     * @return The map with the path drawn into it.
+     * Render a part of the map with the path drawn into it. Only the region is rendered, so this is much cheaper than cropping the complete map.
+     * The last frames are kept, if one was rendered with the same region and colors, only the path segments added since then are drawn into it before it is copied.
+     * @return The region of the map with the path drawn into it. Pixels outside of the map are 0.
+     * @param region The region in the scaled coordinates of the map (x, y, width, height), like the bounding box.
      * @param startColor The color the start point should be drawn with. If null is provided this will fall back to green.
      * @param pathColor The color the path should be drawn with. If null is provided this will fall back to blue.
+     * @param out An array to copy the region into, so it can be reused for the next frame. It is used if it has exactly the size of the region, otherwise a new one is allocated. May be null.
      */
-    public synchronized int[] getMapWithPath(Integer startColor, Integer pathColor) {
+    public synchronized int[] getMapWithPathInRegion(int[] region, Integer startColor, Integer pathColor, int[] out) {
+        if (region == null || region.length < 4) throw new IllegalArgumentException("Region invalid");
+        int[] window = new int[]{region[0], region[1], Math.max(0, region[2]), Math.max(0, region[3])};
         if (startColor == null) startColor = GREEN;
         if (pathColor == null) pathColor = BLUE;
 
         int sColor = startColor;
         int pColor = pathColor;
 
-        int[] pathMap = getMap();
-        drawRectangle((MAP_WIDTH * overSample / 2) - 10, (MAP_HEIGHT * overSample / 2) -10, 20, 20, pathMap, MAP_WIDTH * overSample, sColor);
-
-        List<float[]> path = getPath();
-
-        float[] oldP = null;
-        for (float[] p : path) {
-            if (oldP == null) {
-                oldP = p;
-                continue;
+        if (renderCache == null) renderCache = new ArrayList<>(MAX_CACHED_FRAMES);
+        int[] frame = null;
+        Iterator<RenderCache> it = renderCache.iterator();
+        while (it.hasNext()) {
+            RenderCache cache = it.next();
+            if (!cache.matches(window, sColor, pColor, overSample)) continue;
+            it.remove();
+            int[] cached = cache.frame.get();
+            if (cached != null && cache.mapRevision == mapRevision && cache.pathRevision == pathRevision && cache.pathSize <= path.size()) {
+                LOGGER.fine("Drawing new path segments into the cached frame");
+                drawPath(cached, window, cache.pathSize, pColor);
+                frame = cached;
             }
-            int x0 = Math.round(oldP[0]);
-            int y0 = Math.round(oldP[1]);
-            int x1 = Math.round(p[0]);
-            int y1 = Math.round(p[1]);
+            break;
+        }
 
-            drawLine(x0, y0, x1, y1, pathMap, MAP_WIDTH * overSample, pColor);
+        if (frame == null) {
+            LOGGER.fine("Rendering the frame");
+            frame = MapRenderer.render(map, MAP_WIDTH, MAP_HEIGHT, overSample, window, null);
+            drawRectangle((MAP_WIDTH * overSample / 2) - 10, (MAP_HEIGHT * overSample / 2) -10, 20, 20, frame, window, sColor);
+            drawPath(frame, window, 0, pColor);
+        }
+        if (renderCache.size() >= MAX_CACHED_FRAMES) renderCache.remove(0);
+        renderCache.add(new RenderCache(frame, window, sColor, pColor, overSample, mapRevision, pathRevision, path.size()));
 
-            oldP = p;
+        if (out == null || out.length != frame.length) return frame.clone();
+        System.arraycopy(frame, 0, out, 0, frame.length);
+        return out;
+    }
+
+    /**
+     * Draw the segments of the path that end at or after a point into a window of the map.
+     */
+    private void drawPath(int[] frame, int[] window, int from, int color) {
+        // The same arithmetic as scaledPath(), so incremental and complete renders match.
+        float offsetX = MAP_WIDTH / 2.0f;
+        float offsetY = MAP_HEIGHT / 2.0f;
+        float scale = overSample;
+        for (int i = Math.max(1, from); i < path.size(); i++) {
+            int x0 = Math.round((path.getX(i - 1) + offsetX) * scale);
+            int y0 = Math.round((path.getY(i - 1) + offsetY) * scale);
+            int x1 = Math.round((path.getX(i) + offsetX) * scale);
+            int y1 = Math.round((path.getY(i) + offsetY) * scale);
+
+            drawLine(x0, y0, x1, y1, frame, window, color);
         }
+    }
 
-        return pathMap;
+    /**
+     * @return The map with the path drawn into it. Using the color green for the start point and blue for the path.
+     */
+    public int[] getMapWithPath(){
+        return getMapWithPath(null, null);
+    }
+
+    /**
+     * @return The map with the path drawn into it.
+     * @param startColor The color the start point should be drawn with. If null is provided this will fall back to green.
+     * @param pathColor The color the path should be drawn with. If null is provided this will fall back to blue.
+     */
+    public int[] getMapWithPath(Integer startColor, Integer pathColor) {
+        return getMapWithPath(startColor, pathColor, null);
+    }
+
+    /**
+     * @return The map with the path drawn into it.
+     * @param startColor The color the start point should be drawn with. If null is provided this will fall back to green.
+     * @param pathColor The color the path should be drawn with. If null is provided this will fall back to blue.
+     * @param out An array to copy the map into, so it can be reused for the next frame. It is used if it has exactly the size of the map, otherwise a new one is allocated. May be null.
+     */
+    public synchronized int[] getMapWithPath(Integer startColor, Integer pathColor, int[] out) {
+        return getMapWithPathInRegion(new int[]{0, 0, MAP_WIDTH * overSample, MAP_HEIGHT * overSample}, startColor, pathColor, out);
     }
 
     @SuppressWarnings("SameParameterValue")
-    private void drawRectangle(int x0, int y0, int w, int h, int[] map, int mapWidth, int color) {
-        for (int j = y0; j < (y0 + h); j++) {
-            for (int i = x0; i < (x0 + w); i++) {
-                map[i + (j * mapWidth)] = color;
-            }
+    private void drawRectangle(int x0, int y0, int w, int h, int[] map, int[] window, int color) {
+        int left = Math.max(x0, window[0]);
+        int right = Math.min(x0 + w, window[0] + window[2]);
+        if (left >= right) return;
+        int top = Math.max(y0, window[1]);
+        int bottom = Math.min(y0 + h, window[1] + window[3]);
+        for (int j = top; j < bottom; j++) {
+            int row = (j - window[1]) * window[2] - window[0];
+            Arrays.fill(map, row + left, row + right, color);
         }
     }
 
-    private void drawLine(int x0, int y0, int x1, int y1, int[] map, int w, int color) {
+    /**
+     * Draw a line into a window of the map. Lines that can't touch the window are skipped, the others are drawn pixel by pixel only where they are inside of the window, so the pixels are the same as if the line was drawn into the complete map.
+     */
+    private void drawLine(int x0, int y0, int x1, int y1, int[] map, int[] window, int color) {
+        int left = window[0];
+        int top = window[1];
+        int right = left + window[2];
+        int bottom = top + window[3];
+        if (Math.max(x0, x1) < left || Math.min(x0, x1) >= right || Math.max(y0, y1) < top || Math.min(y0, y1) >= bottom) return;
+        int w = window[2];
+
         int dx = Math.abs(x1 - x0);
         int dy = Math.abs(y1 - y0);
 
@@ -407,7 +491,7 @@ public class VacuumMap implements Serializable {
         int e2;
 
         while (true) {
-            map[x0 + (y0 * w)] = color;
+            if (x0 >= left && x0 < right && y0 >= top && y0 < bottom) map[(x0 - left) + ((y0 - top) * w)] = color;
             if (x0 == x1 && y0 == y1) break;
 
             e2 = 2 * err;
@@ -422,17 +506,41 @@ public class VacuumMap implements Serializable {
         }
     }
 
+    /**
+     * A rendered frame and what it was rendered from. The frame belongs to the map and is only handed out as a copy, it is softly referenced so it can be dropped when memory runs low.
+     */
+    private static final class RenderCache {
+        final SoftReference<int[]> frame;
+        final int[] window;
+        final int startColor;
+        final int pathColor;
+        final int overSample;
+        final int mapRevision;
+        final int pathRevision;
+        final int pathSize;
+
+        RenderCache(int[] frame, int[] window, int startColor, int pathColor, int overSample, int mapRevision, int pathRevision, int pathSize) {
+            this.frame = new SoftReference<>(frame);
+            this.window = window;
+            this.startColor = startColor;
+            this.pathColor = pathColor;
+            this.overSample = overSample;
+            this.mapRevision = mapRevision;
+            this.pathRevision = pathRevision;
+            this.pathSize = pathSize;
+        }
+
+        boolean matches(int[] window, int startColor, int pathColor, int overSample) {
+            return Arrays.equals(this.window, window) && this.startColor == startColor && this.pathColor == pathColor && this.overSample == overSample;
+        }
+    }
+
     @Override
     public boolean equals(Object o) {
         if (this == o) return true;
         if (o == null || getClass() != o.getClass()) return false;
         VacuumMap vacuumMap = (VacuumMap) o;
-        if (map.length != vacuumMap.map.length) return false;
-        for (int i = 0; i < map.length; i++){
-            if (map[i] != vacuumMap.map[i]) {
-                return false;
-            }
-        }
+        if (!map.equals(vacuumMap.map)) return false;
         boolean ret;
         synchronized(this) {
             ret =  overSample == vacuumMap.overSample &&
@@ -472,7 +580,7 @@ public class VacuumMap implements Serializable {
             for (int x = 0; x < tmp[2]; x++){
                 int a = x + tmp[0];
                 int b = y + tmp[1];
-                out[x + (y * tmp[2])] = map[a + (b * MAP_WIDTH)];
+                out[x + (y * tmp[2])] = map.get(a + (b * MAP_WIDTH));
             }
         }
         return out;
@@ -485,26 +593,11 @@ public class VacuumMap implements Serializable {
     public synchronized MapPackageProto.MapPackage getMapPackage(){
         LOGGER.info("Getting the map within bounds");
         int[] mapInBounds = getMapInBounds();
-        HashMap<Integer, MapPackageColorProto.MapPackageColor.Builder> colorMap = new HashMap<>();
+        ColorBuckets colorMap = new ColorBuckets();
         LOGGER.info("Creating all colors");
         for (int j = 0; j < boundingBox[3]; j++) {
             for (int i = 0; i < boundingBox[2]; i++) {
-                LOGGER.fine("Getting color for pixel: " + i + "," + j);
-                int color = mapInBounds[i + (j * boundingBox[2])];
-                LOGGER.fine("Checking whether the color is already in the colorMap");
-                MapPackageColorProto.MapPackageColor.Builder builder = colorMap.get(color);
-                if (builder == null){
-                    LOGGER.fine("Adding new color: " + color);
-                    MapPackageColorProto.MapPackageColor.Builder nBuilder = MapPackageColorProto.MapPackageColor.newBuilder();
-                    nBuilder.setColor(color);
-                    int comp = (j << 16) + i;
-                    nBuilder.addCoordinates(comp);
-                    colorMap.put(color, nBuilder);
-                } else {
-                    LOGGER.fine("Adding to existing color");
-                    int comp = (j << 16) + i;
-                    builder.addCoordinates(comp);
-                }
+                colorMap.add(mapInBounds[i + (j * boundingBox[2])], (j << 16) + i);
             }
         }
         MapPackageProto.MapPackage.Builder pack = MapPackageProto.MapPackage.newBuilder();
@@ -516,11 +609,7 @@ public class VacuumMap implements Serializable {
         pack.setActiveW(boundingBox[2]);
         pack.setActiveH(boundingBox[3]);
         LOGGER.info("Adding all colors to output");
-        for (MapPackageColorProto.MapPackageColor.Builder b : colorMap.values()){
-            MapPackageColorProto.MapPackageColor col = b.build();
-            LOGGER.fine("Adding color: " + col.toString());
-            pack.addData(col);
-        }
+        pack.addAllData(colorMap.toMapPackageColors());
         LOGGER.info("Building output");
         return pack.build();
     }
@@ -532,16 +621,32 @@ public class VacuumMap implements Serializable {
         boundingBox[2] = image.getActiveW();
         boundingBox[3] = image.getActiveH();
         synchronized(this) {
-            for (int i = 0; i < map.length; i++){
-                map[i] = toColorInt(125, 125, 125, 0xff);
-            }
+            mapRevision++;
+            map = new PalettedMap(MAP_WIDTH * MAP_HEIGHT, toColorInt(125, 125, 125, 0xff));
 
             switch (image.getVersion()) {
                 case 1:
                     for (MapPackageColorProto.MapPackageColor c : image.getDataList()) {
                         int color = c.getColor();
                         for (int pos : c.getCoordinatesList()) {
-                            map[((pos & 0xFFFF) + ((pos >> 16) & 0xFFFF) * MAP_WIDTH)] = color;
+                            map.set(((pos & 0xFFFF) + ((pos >> 16) & 0xFFFF) * MAP_WIDTH), color);
+                        }
+                    }
+                    break;
+                case 2:
+                    for (MapPackageColorProto.MapPackageColor c : image.getDataList()) {
+                        int color = c.getColor();
+                        int runs = c.getRunsCount() - 2;
+                        for (int i = 0; i < runs; i += 3) {
+                            int row = c.getRuns(i);
+                            int startX = c.getRuns(i + 1);
+                            int length = c.getRuns(i + 2);
+                            if (row < 0 || row >= MAP_HEIGHT || startX < 0 || length < 0 || startX + length > MAP_WIDTH) {
+                                LOGGER.warning("Run out of range: " + row + "," + startX + "," + length);
+                                continue;
+                            }
+                            int offset = startX + (row * MAP_WIDTH);
+                            map.fill(offset, offset + length, color);
                         }
                     }
                     break;
@@ -549,7 +654,7 @@ public class VacuumMap implements Serializable {
                     for (MapPackageColorProto.MapPackageColor c : image.getDataList()) {
                         int color = c.getColor();
                         for (int pos : c.getCoordinatesList()) {
-                            map[(boundingBox[0] + (pos & 0xFFFF)) + ((boundingBox[1] + ((pos >> 16) & 0xFFFF)) * MAP_WIDTH)] = color;
+                            map.set((boundingBox[0] + (pos & 0xFFFF)) + ((boundingBox[1] + ((pos >> 16) & 0xFFFF)) * MAP_WIDTH), color);
                         }
                     }
             }
@@ -570,6 +675,27 @@ public class VacuumMap implements Serializable {
      * @return The path as a proto message.
      */
     public MapSlamProto.MapSlam getMapPath(int start){
+        return getMapPath(start, 0);
+    }
+
+    /**
+     * Get the maps path as a proto message.
+     * @param start The first index of the path pints to get.
+     * @param version The format version of the path message. 1 for the compact delta encoded format, everything else for the default format.
+     * @return The path as a proto message.
+     */
+    public MapSlamProto.MapSlam getMapPath(int start, int version){
+        return getMapPath(start, version, 0);
+    }
+
+    /**
+     * Get the maps path as a proto message.
+     * @param start The first index of the path pints to get.
+     * @param version The format version of the path message. 1 for the compact delta encoded format, everything else for the default format.
+     * @param tolerance The maximum distance in map pixels a point may have from the simplified path. 0 to get every point.
+     * @return The path as a proto message.
+     */
+    public MapSlamProto.MapSlam getMapPath(int start, int version, float tolerance){
         LOGGER.info("Getting path from " + start);
         MapErrorProto.MapError.Builder err = MapErrorProto.MapError.newBuilder();
         MapSlamProto.MapSlam.Builder slam = MapSlamProto.MapSlam.newBuilder();
@@ -579,13 +705,13 @@ public class VacuumMap implements Serializable {
                 err.setCode(MapErrorProto.MapError.ErrorCode.SLAM_OUT_OF_RANGE);
                 return slam.setError(err.build()).build();
             }
-            for (int i = start; i < path.size(); i++) {
-                LOGGER.fine("Adding point: " + i);
-                MapSlamProto.MapSlam.Point.Builder point = MapSlamProto.MapSlam.Point.newBuilder();
-                float[] p = path.get(i);
-                point.setX(p[0]);
-                point.setY(p[1]);
-                slam.addPoints(point.build());
+            if (tolerance > 0) {
+                PackedPath slice = new PackedPath(path.size() - start);
+                slice.addAll(path, start);
+                addPath(slam, slice.simplify(tolerance), 0, version);
+                slam.setSourcePoints(path.size());
+            } else {
+                addPath(slam, path, start, version);
             }
         }
         err.setCode(MapErrorProto.MapError.ErrorCode.NONE);
@@ -596,7 +722,8 @@ public class VacuumMap implements Serializable {
 
     private void decodeMapSlam(MapSlamProto.MapSlam slam) {
         synchronized(this) {
-            path = new LinkedList<>();
+            path = new PackedPath(slam == null ? 1 : Math.max(slam.getPointsCount(), slam.getDeltasCount() / 2));
+            pathRevision++;
         }
         appendMapSlam(slam);
     }
@@ -608,55 +735,323 @@ public class VacuumMap implements Serializable {
     public void appendMapSlam(MapSlamProto.MapSlam slam) {
         if (slam == null) return;
         synchronized(this) {
-            for (MapSlamProto.MapSlam.Point p : slam.getPointsList()) {
-                path.add(new float[]{p.getX(), p.getY()});
+            readPath(path, slam);
+        }
+    }
+
+    private static void readPath(PackedPath path, MapSlamProto.MapSlam slam) {
+        if (slam.getVersion() == 1) {
+            float scale = slam.getScale() > 0 ? slam.getScale() : SLAM_SCALE;
+            int x = 0;
+            int y = 0;
+            int deltas = slam.getDeltasCount() - 1;
+            for (int i = 0; i < deltas; i += 2) {
+                x += slam.getDeltas(i);
+                y += slam.getDeltas(i + 1);
+                path.add(x / scale, y / scale);
             }
+            return;
+        }
+        for (MapSlamProto.MapSlam.Point p : slam.getPointsList()) {
+            path.add(p.getX(), p.getY());
         }
     }
 
-    private byte[] mapToBytes() {
-        byte[] out = new byte[map.length * 4];
-        synchronized(this) {
-            for (int i = 0; i < map.length; i++){
-                out[(i * 4)] = (byte) (map[i] & 0xFF);
-                out[(i * 4) + 1] = (byte) ((map[i] >> 8) & 0xFF);
-                out[(i * 4) + 2] = (byte) ((map[i] >> 16) & 0xFF);
-                out[(i * 4) + 3] = (byte) ((map[i] >> 24) & 0xFF);
+    /**
+     * Add the points of a path to a path message.
+     * @param slam The message to add the points to.
+     * @param path The path to add.
+     * @param start The index of the first point to add.
+     * @param version 1 for the compact delta encoded format, everything else for the default format.
+     */
+    static void addPath(MapSlamProto.MapSlam.Builder slam, PackedPath path, int start, int version) {
+        if (version == 1) {
+            slam.setVersion(1);
+            slam.setScale(SLAM_SCALE);
+            int lastX = 0;
+            int lastY = 0;
+            for (int i = start; i < path.size(); i++) {
+                int x = Math.round(path.getX(i) * SLAM_SCALE);
+                int y = Math.round(path.getY(i) * SLAM_SCALE);
+                slam.addDeltas(x - lastX);
+                slam.addDeltas(y - lastY);
+                lastX = x;
+                lastY = y;
+            }
+            return;
+        }
+        MapSlamProto.MapSlam.Point.Builder point = MapSlamProto.MapSlam.Point.newBuilder();
+        for (int i = start; i < path.size(); i++) {
+            point.setX(path.getX(i));
+            point.setY(path.getY(i));
+            slam.addPoints(point.build());
+        }
+    }
+
+    /**
+     * Convert a path message to the compact delta encoded format (version 1).
+     * The deltas field contains the interleaved x and y differences to the previous point in steps of 1/{@link #SLAM_SCALE} pixels. The first point is relative to (0, 0).
+     * @param slam The path message to convert. Messages that already are of version 1 are returned as they are.
+     * @return The delta encoded path message.
+     */
+    public static MapSlamProto.MapSlam toCompactPath(MapSlamProto.MapSlam slam) {
+        if (slam == null) return null;
+        if (slam.getVersion() == 1) return slam;
+        PackedPath path = new PackedPath(slam.getPointsCount());
+        readPath(path, slam);
+        MapSlamProto.MapSlam.Builder compact = slam.toBuilder();
+        compact.clearPoints();
+        addPath(compact, path, 0, 1);
+        return compact.build();
+    }
+
+    /**
+     * Simplify a path message with the Douglas-Peucker algorithm. The format version of the message is kept.
+     * The sourcePoints field is set to the number of points of the original path, so clients can keep polling from there.
+     * @param slam The path message to simplify.
+     * @param tolerance The maximum distance in map pixels a dropped point may have from the simplified path.
+     * @return The simplified path message. Messages are returned as they are if the tolerance is 0 or less.
+     */
+    public static MapSlamProto.MapSlam simplifyPath(MapSlamProto.MapSlam slam, float tolerance) {
+        if (slam == null) return null;
+        if (!(tolerance > 0)) return slam;
+        PackedPath path = new PackedPath(Math.max(slam.getPointsCount(), slam.getDeltasCount() / 2));
+        readPath(path, slam);
+        MapSlamProto.MapSlam.Builder simplified = slam.toBuilder();
+        simplified.clearPoints();
+        simplified.clearDeltas();
+        addPath(simplified, path.simplify(tolerance), 0, slam.getVersion());
+        if (slam.getSourcePoints() == 0) simplified.setSourcePoints(path.size());
+        return simplified.build();
+    }
+
+    /**
+     * Encode the map as its palette followed by the index of each pixel. Maps with up to 16 colors store two pixels per byte.
+     * A palette size of 0 means the colors follow directly.
+     */
+    private ByteBuffer mapSection() {
+        int[] palette = map.getPalette();
+        ByteBuffer out;
+        if (palette == null) {
+            int[] pixels = map.toArray();
+            out = section(4 + (pixels.length * 4));
+            out.putInt(0);
+            out.asIntBuffer().put(pixels);
+            return out;
+        }
+        byte[] indices = map.getIndices();
+        boolean packed = palette.length <= PACKED_PALETTE_SIZE;
+        out = section(4 + (palette.length * 4) + (packed ? (indices.length + 1) / 2 : indices.length));
+        out.putInt(palette.length);
+        // Views don't move the position of the buffer they were created from.
+        out.asIntBuffer().put(palette);
+        out.position(out.position() + (palette.length * 4));
+        if (packed) {
+            for (int i = 0; i < indices.length; i += 2) {
+                int high = (i + 1 < indices.length) ? indices[i + 1] << 4 : 0;
+                out.put((byte) (indices[i] | high));
+            }
+        } else {
+            out.put(indices);
+        }
+        return out;
+    }
+
+    private static PalettedMap readMapSection(ByteBuffer source) throws IOException {
+        int size = MAP_WIDTH * MAP_HEIGHT;
+        int colors = source.getInt();
+        if (colors < 0 || colors > PalettedMap.MAX_PALETTE_SIZE) throw new IOException("Invalid palette size: " + colors);
+        if (colors == 0) {
+            int[] pixels = new int[size];
+            source.asIntBuffer().get(pixels);
+            if (source.remaining() != size * 4) throw new IOException("Image size does not match");
+            return PalettedMap.fromArray(pixels);
+        }
+        int[] palette = new int[colors];
+        source.asIntBuffer().get(palette);
+        source.position(source.position() + (colors * 4));
+        byte[] indices = new byte[size];
+        if (colors <= PACKED_PALETTE_SIZE) {
+            if (source.remaining() != (size + 1) / 2) throw new IOException("Image size does not match");
+            for (int i = 0; i < size; i += 2) {
+                int b = source.get();
+                indices[i] = (byte) (b & 0x0F);
+                if (i + 1 < size) indices[i + 1] = (byte) ((b >> 4) & 0x0F);
             }
+        } else {
+            if (source.remaining() != size) throw new IOException("Image size does not match");
+            source.get(indices);
+        }
+        try {
+            return new PalettedMap(palette, indices);
+        } catch (IllegalArgumentException e) {
+            throw new IOException("Invalid map: " + e.getMessage());
         }
+    }
+
+    /**
+     * Encode the path as the number of points followed by the interleaved coordinates.
+     */
+    private ByteBuffer pathSection() {
+        float[] coordinates = path.toArray();
+        ByteBuffer out = section(4 + (coordinates.length * 4));
+        out.putInt(path.size());
+        out.asFloatBuffer().put(coordinates);
         return out;
     }
 
-    private void bytesToMap(byte[] source) throws IOException {
-        map = new int[MAP_WIDTH * MAP_HEIGHT];
-        if ((map.length * 4) != source.length) throw new IOException();
+    private static PackedPath readPathSection(ByteBuffer source) throws IOException {
+        int points = source.getInt();
+        if (points < 0 || source.remaining() != points * 8L) throw new IOException("Path size does not match");
+        float[] coordinates = new float[points * 2];
+        source.asFloatBuffer().get(coordinates);
+        return new PackedPath(coordinates);
+    }
+
+    private static ByteBuffer section(int size) {
+        return ByteBuffer.allocate(size).order(ByteOrder.LITTLE_ENDIAN);
+    }
+
+    private static void writeSection(OutputStream out, int tag, ByteBuffer data) throws IOException {
+        ByteBuffer header = section(SECTION_HEADER_SIZE);
+        header.putInt(tag);
+        header.putInt(data.capacity());
+        out.write(header.array());
+        out.write(data.array(), 0, data.capacity());
+    }
+
+    /**
+     * Write the map and the path as deflated sections. Each section starts with its tag and its length, so readers can skip sections they don't know.
+     */
+    private void writeSections(ObjectOutputStream out) throws IOException {
+        ByteBuffer mapSection;
+        ByteBuffer pathSection;
         synchronized(this) {
-            for (int i = 0; i < map.length; i++) {
-                int tmp = 0;
-                tmp |= source[(i * 4) + 3] & 0xFF;
-                tmp = tmp << 8;
-                tmp |= source[(i * 4) + 2] & 0xFF;
-                tmp = tmp << 8;
-                tmp |= source[(i * 4) + 1] & 0xFF;
-                tmp = tmp << 8;
-                tmp |= source[(i * 4)] & 0xFF;
-                this.map[i] = tmp;
+            mapSection = mapSection();
+            pathSection = pathSection();
+        }
+        ByteArrayOutputStream compressed = new ByteArrayOutputStream();
+        Deflater deflater = CompressorPool.acquireDeflater();
+        try {
+            DeflaterOutputStream deflated = new DeflaterOutputStream(compressed, deflater, STREAM_BUFFER_SIZE);
+            writeSection(deflated, MAP_SECTION, mapSection);
+            writeSection(deflated, PATH_SECTION, pathSection);
+            writeSection(deflated, END_SECTION, section(0));
+            deflated.finish();
+        } finally {
+            CompressorPool.release(deflater);
+        }
+        // The length is written first, so the reader doesn't inflate past the end of this object.
+        out.writeInt(compressed.size());
+        compressed.writeTo(out);
+    }
+
+    private void readSections(ObjectInputStream in) throws IOException {
+        int length = in.readInt();
+        if (length < 0) throw new IOException("Invalid length: " + length);
+        byte[] compressed = new byte[length];
+        in.readFully(compressed);
+        PalettedMap restoredMap = null;
+        PackedPath restoredPath = null;
+        Inflater inflater = CompressorPool.acquireInflater();
+        try {
+            DataInputStream data = new DataInputStream(new InflaterInputStream(new ByteArrayInputStream(compressed), inflater, STREAM_BUFFER_SIZE));
+            byte[] header = new byte[SECTION_HEADER_SIZE];
+            while (true) {
+                data.readFully(header);
+                ByteBuffer h = ByteBuffer.wrap(header).order(ByteOrder.LITTLE_ENDIAN);
+                int tag = h.getInt();
+                int size = h.getInt();
+                if (tag == END_SECTION) break;
+                if (size < 0 || size > MAX_SECTION_SIZE) throw new IOException("Invalid section size: " + size);
+                byte[] section = new byte[size];
+                data.readFully(section);
+                ByteBuffer source = ByteBuffer.wrap(section).order(ByteOrder.LITTLE_ENDIAN);
+                switch (tag) {
+                    case MAP_SECTION:
+                        restoredMap = readMapSection(source);
+                        break;
+                    case PATH_SECTION:
+                        restoredPath = readPathSection(source);
+                        break;
+                    default:
+                        LOGGER.fine("Skipping unknown section: " + tag);
+                }
+            }
+        } catch (BufferUnderflowException e) {
+            throw new IOException("Section too short");
+        } finally {
+            CompressorPool.release(inflater);
+        }
+        if (restoredMap == null || restoredPath == null) throw new IOException("Missing section");
+        synchronized(this) {
+            this.map = restoredMap;
+            this.path = restoredPath;
+        }
+    }
+
+    /**
+     * Decode a map stored as its palette and the big endian index plane, the format of {@link #PALETTE_FORMAT} streams.
+     */
+    private void paletteBytesToMap(byte[] source) throws IOException {
+        int size = MAP_WIDTH * MAP_HEIGHT;
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(source));
+        int colors = in.readInt();
+        if (colors < 0 || colors > PalettedMap.MAX_PALETTE_SIZE) throw new IOException("Invalid palette size: " + colors);
+        PalettedMap restored;
+        if (colors == 0) {
+            int[] pixels = new int[size];
+            for (int i = 0; i < size; i++) {
+                pixels[i] = in.readInt();
+            }
+            restored = PalettedMap.fromArray(pixels);
+        } else {
+            int[] palette = new int[colors];
+            for (int i = 0; i < colors; i++) {
+                palette[i] = in.readInt();
+            }
+            byte[] indices = new byte[size];
+            if (colors <= PACKED_PALETTE_SIZE) {
+                byte[] packed = new byte[(size + 1) / 2];
+                in.readFully(packed);
+                for (int i = 0; i < size; i++) {
+                    indices[i] = (byte) ((packed[i >> 1] >> ((i & 1) * 4)) & 0x0F);
+                }
+            } else {
+                in.readFully(indices);
+            }
+            try {
+                restored = new PalettedMap(palette, indices);
+            } catch (IllegalArgumentException e) {
+                throw new IOException("Invalid map: " + e.getMessage());
             }
         }
+        if (in.available() != 0) throw new IOException("Image size does not match");
+        synchronized(this) {
+            this.map = restored;
+        }
     }
 
-    private byte[] pathToBytes() throws IOException {
-        ByteArrayOutputStream baos = new ByteArrayOutputStream();
-        ObjectOutputStream oos = new ObjectOutputStream(baos);
+    /**
+     * Decode a map stored with 4 bytes per pixel, the format of streams written before palettes were introduced.
+     */
+    private void legacyBytesToMap(byte[] source) throws IOException {
+        int[] pixels = new int[MAP_WIDTH * MAP_HEIGHT];
+        if ((pixels.length * 4) != source.length) throw new IOException();
+        for (int i = 0; i < pixels.length; i++) {
+            int tmp = 0;
+            tmp |= source[(i * 4) + 3] & 0xFF;
+            tmp = tmp << 8;
+            tmp |= source[(i * 4) + 2] & 0xFF;
+            tmp = tmp << 8;
+            tmp |= source[(i * 4) + 1] & 0xFF;
+            tmp = tmp << 8;
+            tmp |= source[(i * 4)] & 0xFF;
+            pixels[i] = tmp;
+        }
         synchronized(this) {
-            oos.writeObject(this.path);
+            this.map = PalettedMap.fromArray(pixels);
         }
-        oos.flush();
-        baos.flush();
-        byte[] outputTrimmed = baos.toByteArray();
-        oos.close();
-        baos.close();
-        return outputTrimmed;
     }
 
     private void bytesToPath(byte[] source) throws IOException, ClassNotFoundException {
@@ -665,8 +1060,12 @@ public class VacuumMap implements Serializable {
         Object o = ois.readObject();
         try {
             synchronized(this) {
-                //noinspection unchecked
-                this.path = (List<float[]>) o;
+                if (o instanceof float[]) {
+                    this.path = new PackedPath((float[]) o);
+                } else {
+                    //noinspection unchecked
+                    this.path = PackedPath.fromList((List<float[]>) o);
+                }
             }
         } catch (ClassCastException e){
             throw new IOException("Can't convert to path");
@@ -675,45 +1074,44 @@ public class VacuumMap implements Serializable {
         bais.close();
     }
 
-    private byte[] compress(byte[] data) {
-        byte[] output = new byte[data.length + 1000];
-        Deflater compressor = new Deflater();
-        compressor.setInput(data);
-        compressor.finish();
-
-        byte[] outputTrimmed = new byte[compressor.deflate(output)];
-        System.arraycopy(output, 0, outputTrimmed, 0, outputTrimmed.length);
-        return outputTrimmed;
-    }
-
     private void inflate(byte[] compressed, byte[] restored) throws IOException {
-        Inflater inflate = new Inflater();
-        inflate.setInput(compressed);
-        inflate.finished();
+        Inflater inflate = CompressorPool.acquireInflater();
         try {
+            inflate.setInput(compressed);
             int restoredBytes = inflate.inflate(restored);
             if (restoredBytes != restored.length) throw new IOException("Image size does not match");
         } catch (DataFormatException e) {
             throw new IOException("Inflation failed");
+        } finally {
+            CompressorPool.release(inflate);
         }
     }
 
     private void writeObject(ObjectOutputStream out) throws IOException {
-        out.defaultWriteObject();
-        byte[] imgBytes = mapToBytes();
-        byte[] compressedMap = compress(imgBytes);
-        byte[] pathBytes = pathToBytes();
-        byte[] compressedPath = compress(pathBytes);
-        out.writeInt(compressedMap.length);
-        out.writeInt(imgBytes.length);
-        out.writeInt(compressedPath.length);
-        out.writeInt(pathBytes.length);
-        out.write(compressedMap);
-        out.write(compressedPath);
+        ObjectOutputStream.PutField fields = out.putFields();
+        synchronized(this) {
+            fields.put("boundingBox", boundingBox);
+            fields.put("overSample", overSample);
+            fields.put("numberOfSlamLines", numberOfSlamLines);
+            fields.put("slamLocked", slamLocked);
+        }
+        fields.put("streamFormat", BINARY_FORMAT);
+        out.writeFields();
+        writeSections(out);
     }
 
     private void readObject(ObjectInputStream in) throws IOException, ClassNotFoundException {
-        in.defaultReadObject();
+        ObjectInputStream.GetField fields = in.readFields();
+        boundingBox = (int[]) fields.get("boundingBox", null);
+        overSample = fields.get("overSample", 1);
+        numberOfSlamLines = fields.get("numberOfSlamLines", 0);
+        slamLocked = fields.get("slamLocked", true);
+        int streamFormat = fields.get("streamFormat", LEGACY_FORMAT);
+        if (streamFormat == BINARY_FORMAT) {
+            readSections(in);
+            return;
+        }
+        // Streams of older versions store the map and the path as separately deflated blocks.
         byte[] compressedMap = new byte[in.readInt()];
         byte[] mapBytes = new byte[in.readInt()];
         byte[] compressedPath = new byte[in.readInt()];
@@ -722,10 +1120,210 @@ public class VacuumMap implements Serializable {
         in.readFully(compressedPath);
         inflate(compressedMap, mapBytes);
         inflate(compressedPath, pathBytes);
-        bytesToMap(mapBytes);
+        switch (streamFormat) {
+            case LEGACY_FORMAT:
+                legacyBytesToMap(mapBytes);
+                break;
+            case PALETTE_FORMAT:
+                paletteBytesToMap(mapBytes);
+                break;
+            default:
+                throw new IOException("Unknown format: " + streamFormat);
+        }
         bytesToPath(pathBytes);
     }
 
+    /**
+     * Create a map message directly from a map file.
+     * The file is read in one go and parsed byte wise. This should be preferred over {@link #directToMapPackage(BufferedReader)}.
+     * @param image The path of the map file to parse.
+     * @return The message containing the map.
+     * @throws IOException If the file could not be read or is not a valid map.
+     */
+    public static MapPackageProto.MapPackage directToMapPackage(Path image) throws IOException {
+        if (image == null) throw new IOException("No map file provided");
+        try (FileChannel channel = FileChannel.open(image, StandardOpenOption.READ)) {
+            long size = channel.size();
+            if (size > Integer.MAX_VALUE) throw new IOException("Map file too large");
+            LOGGER.fine("Reading map file to buffer");
+            ByteBuffer buffer = ByteBuffer.allocate((int) size);
+            while (buffer.hasRemaining()) {
+                if (channel.read(buffer) < 0) break;
+            }
+            buffer.flip();
+            return directToMapPackage(buffer);
+        }
+    }
+
+    /**
+     * Create a map message directly from the raw bytes of a map file.
+     * @param image The buffer containing the complete map file. It is read from its current position to its limit.
+     * @return The message containing the map.
+     * @throws IOException If the buffer does not contain a valid map.
+     */
+    public static MapPackageProto.MapPackage directToMapPackage(ByteBuffer image) throws IOException {
+        if (image == null) throw new IOException("No map buffer provided");
+        MapScanner scanner = readMapHeader(image);
+        scanner.scan(image);
+        LOGGER.info("End of map reached");
+        return scanner.toMapPackage();
+    }
+
+    /**
+     * Create a map message directly from a stream of a map file. The stream is parsed byte wise while it is read and is not closed.
+     * @param image The stream of the map file.
+     * @return The message containing the map.
+     * @throws IOException If the stream could not be read or does not contain a valid map.
+     */
+    public static MapPackageProto.MapPackage directToMapPackage(InputStream image) throws IOException {
+        if (image == null) throw new IOException("No map stream provided");
+        ByteBuffer buffer = ByteBuffer.allocate(STREAM_BUFFER_SIZE);
+        boolean eof = fill(image, buffer);
+        buffer.flip();
+        MapScanner scanner = readMapHeader(buffer);
+        while (true) {
+            scanner.scan(buffer);
+            if (eof || scanner.isComplete()) break;
+            buffer.compact();
+            eof = fill(image, buffer);
+            buffer.flip();
+        }
+        LOGGER.info("End of map reached");
+        return scanner.toMapPackage();
+    }
+
+    private static boolean fill(InputStream in, ByteBuffer buffer) throws IOException {
+        byte[] data = buffer.array();
+        while (buffer.hasRemaining()) {
+            int read = in.read(data, buffer.arrayOffset() + buffer.position(), buffer.remaining());
+            if (read < 0) return true;
+            buffer.position(buffer.position() + read);
+        }
+        return false;
+    }
+
+    private static MapScanner readMapHeader(ByteBuffer image) throws IOException {
+        LOGGER.fine("Parsing map header");
+        if (image.remaining() < 2 || image.get() != 'P' || image.get() != '6') {
+            LOGGER.warning("File format invalid");
+            throw new IOException("File format invalid");
+        }
+        int width = readHeaderValue(image);
+        int height = readHeaderValue(image);
+        int maxValue = readHeaderValue(image);
+        if (!image.hasRemaining() || !isHeaderWhitespace(image.get())) {
+            LOGGER.warning("File format invalid");
+            throw new IOException("File format invalid");
+        }
+        if (width < 1 || height < 1 || width > MAP_WIDTH || height > MAP_HEIGHT || maxValue != 255) {
+            LOGGER.warning("Map format not supported: " + width + "x" + height + ", " + maxValue);
+            throw new IOException("Map format not supported");
+        }
+        return new MapScanner(width, height);
+    }
+
+    /**
+     * Collects the colored pixels of a map file and their bounding box. The pixels can be fed in chunks.
+     */
+    private static class MapScanner {
+        private final int width;
+        private int pixels;
+        private int x = 0;
+        private int y = 0;
+        private int top = MAP_HEIGHT;
+        private int bottom = 0;
+        private int left = MAP_WIDTH;
+        private int right = 0;
+        private final ColorBuckets colorMap = new ColorBuckets();
+
+        MapScanner(int width, int height) {
+            LOGGER.fine("Initializing bounding box creation");
+            this.width = width;
+            this.pixels = width * height;
+        }
+
+        /**
+         * Scan all complete pixels in the buffer. Bytes of an incomplete pixel at the end are left in the buffer.
+         * @param image The buffer to scan from its position to its limit.
+         */
+        void scan(ByteBuffer image) {
+            int count = Math.min(image.remaining() / 3, pixels);
+            int pos = image.position();
+            for (int i = 0; i < count; i++) {
+                int r = image.get(pos) & 0xFF;
+                int g = image.get(pos + 1) & 0xFF;
+                int b = image.get(pos + 2) & 0xFF;
+                pos += 3;
+                if (r != 125 || g != 125 || b != 125) {
+                    colorMap.add(toColorInt(r, g, b, 0xff), (y << 16) + x);
+
+                    if (x < left) left = x;
+                    if (x > right) right = x;
+                    if (y < top) top = y;
+                    if (y > bottom) bottom = y;
+                }
+                x++;
+                if (x >= width) {
+                    x = 0;
+                    y++;
+                }
+            }
+            pixels -= count;
+            image.position(pos);
+        }
+
+        boolean isComplete() {
+            return pixels == 0;
+        }
+
+        MapPackageProto.MapPackage toMapPackage() {
+            MapPackageProto.MapPackage.Builder pack = MapPackageProto.MapPackage.newBuilder();
+            pack.setError(MapErrorProto.MapError.newBuilder().setCode(MapErrorProto.MapError.ErrorCode.NONE).build());
+            LOGGER.info("Adding bounding box to output");
+            pack.setVersion(1);
+            pack.setActiveX(left);
+            pack.setActiveY(top);
+            pack.setActiveW((right - left) + 1);
+            pack.setActiveH((bottom - top) + 1);
+            LOGGER.info("Adding all colors to output");
+            pack.addAllData(colorMap.toMapPackageColors());
+            LOGGER.info("Building output");
+            return pack.build();
+        }
+    }
+
+    private static int readHeaderValue(ByteBuffer image) throws IOException {
+        int value = -1;
+        while (image.hasRemaining()) {
+            byte c = image.get();
+            if (c == '#' && value < 0) {
+                LOGGER.fine("Skipping header comment");
+                while (image.hasRemaining()) {
+                    if (image.get() == '\n') break;
+                }
+                continue;
+            }
+            if (c >= '0' && c <= '9') {
+                if (value < 0) value = 0;
+                value = (value * 10) + (c - '0');
+                if (value > 0xFFFF) throw new IOException("File format invalid");
+                continue;
+            }
+            if (isHeaderWhitespace(c)) {
+                if (value < 0) continue;
+                image.position(image.position() - 1);
+                return value;
+            }
+            break;
+        }
+        LOGGER.warning("File format invalid");
+        throw new IOException("File format invalid");
+    }
+
+    private static boolean isHeaderWhitespace(byte c) {
+        return c == ' ' || c == '\n' || c == '\r' || c == '\t';
+    }
+
     /**
      * Create a map message directly from a map file.
      * @param image The map file to parse.
@@ -750,7 +1348,7 @@ public class VacuumMap implements Serializable {
             throw new IOException("File format invalid");
         }
 
-        HashMap<Integer, MapPackageColorProto.MapPackageColor.Builder> colorMap = new HashMap<>();
+        ColorBuckets colorMap = new ColorBuckets();
 
         while (true) {
             int[] rgb = {image.read(), image.read(), image.read()};
@@ -764,21 +1362,7 @@ public class VacuumMap implements Serializable {
             }
             //map[x + (y * MAP_WIDTH)] = toColorInt(rgb[0], rgb[1], rgb[2], 0xff);
             if (rgb[0] != 125 || rgb[1] != 125 || rgb[2] != 125){
-                int color = toColorInt(rgb[0], rgb[1], rgb[2], 0xff);
-
-                MapPackageColorProto.MapPackageColor.Builder builder = colorMap.get(color);
-                if (builder == null){
-                    LOGGER.fine("Adding new color: " + color);
-                    MapPackageColorProto.MapPackageColor.Builder nBuilder = MapPackageColorProto.MapPackageColor.newBuilder();
-                    nBuilder.setColor(color);
-                    int comp = (y << 16) + x;
-                    nBuilder.addCoordinates(comp);
-                    colorMap.put(color, nBuilder);
-                } else {
-                    LOGGER.fine("Adding to existing color");
-                    int comp = (y << 16) + x;
-                    builder.addCoordinates(comp);
-                }
+                colorMap.add(toColorInt(rgb[0], rgb[1], rgb[2], 0xff), (y << 16) + x);
 
                 if (x < left) left = x;
                 if (x > right) right = x;
@@ -805,15 +1389,293 @@ public class VacuumMap implements Serializable {
         pack.setActiveW((right - left) + 1);
         pack.setActiveH((bottom - top) + 1);
         LOGGER.info("Adding all colors to output");
-        for (MapPackageColorProto.MapPackageColor.Builder b : colorMap.values()){
-            MapPackageColorProto.MapPackageColor col = b.build();
-            LOGGER.fine("Adding color: " + col.toString());
-            pack.addData(col);
-        }
+        pack.addAllData(colorMap.toMapPackageColors());
         LOGGER.info("Building output");
         return pack.build();
     }
 
+    /**
+     * Convert a map message to the run length encoded format (version 2).
+     * Each color contains (row, startX, length) triplets of horizontal runs in absolute map coordinates.
+     * @param image The map message to convert. Messages that already are of version 2 are returned as they are.
+     * @return The run length encoded map message.
+     */
+    public static MapPackageProto.MapPackage toRunLengthPackage(MapPackageProto.MapPackage image) {
+        if (image == null) return null;
+        if (image.getVersion() == 2) return image;
+        int offsetX = 0;
+        int offsetY = 0;
+        if (image.getVersion() == 0) {
+            offsetX = image.getActiveX();
+            offsetY = image.getActiveY();
+        }
+        MapPackageProto.MapPackage.Builder pack = image.toBuilder();
+        pack.setVersion(2);
+        pack.clearData();
+        int[] runs = new int[48];
+        for (MapPackageColorProto.MapPackageColor c : image.getDataList()) {
+            int count = 0;
+            int last = -2;
+            int coordinates = c.getCoordinatesCount();
+            for (int i = 0; i < coordinates; i++) {
+                int pos = c.getCoordinates(i);
+                if (pos == last + 1 && count > 0) {
+                    runs[count - 1]++;
+                } else {
+                    if (count + 3 > runs.length) runs = Arrays.copyOf(runs, runs.length * 2);
+                    runs[count] = ((pos >> 16) & 0xFFFF) + offsetY;
+                    runs[count + 1] = (pos & 0xFFFF) + offsetX;
+                    runs[count + 2] = 1;
+                    count += 3;
+                }
+                last = pos;
+            }
+            pack.addData(ColorBuckets.buildColor(c.getColor(), MapPackageColorProto.MapPackageColor.RUNS_FIELD_NUMBER, runs, count));
+        }
+        return pack.build();
+    }
+
+    /**
+     * Create a message with the pixels that differ between two map messages (version 3).
+     * It contains the bounding box of the new map and for each color the absolute coordinates ((y << 16) + x) of the pixels that changed to it.
+     * Pixels that are no longer part of the map are listed under the color 0.
+     * @param from The map message the client already has.
+     * @param to The new map message.
+     * @return The message with the changed pixels.
+     */
+    public static MapPackageProto.MapPackage toDeltaPackage(MapPackageProto.MapPackage from, MapPackageProto.MapPackage to) {
+        if (from == null || to == null) return null;
+        int[] window = union(boundsOf(from), boundsOf(to));
+        int width = window[2] - window[0];
+        int height = window[3] - window[1];
+        int[] before = new int[Math.max(0, width * height)];
+        int[] after = new int[before.length];
+        paint(from, before, window);
+        paint(to, after, window);
+        ColorBuckets changes = new ColorBuckets();
+        for (int y = 0; y < height; y++) {
+            for (int x = 0; x < width; x++) {
+                int i = x + (y * width);
+                if (before[i] != after[i]) changes.add(after[i], ((y + window[1]) << 16) + x + window[0]);
+            }
+        }
+        MapPackageProto.MapPackage.Builder pack = MapPackageProto.MapPackage.newBuilder();
+        pack.setError(to.getError());
+        pack.setVersion(3);
+        pack.setActiveX(to.getActiveX());
+        pack.setActiveY(to.getActiveY());
+        pack.setActiveW(to.getActiveW());
+        pack.setActiveH(to.getActiveH());
+        pack.setRevision(to.getRevision());
+        pack.setBaseRevision(from.getRevision());
+        pack.addAllData(changes.toMapPackageColors());
+        return pack.build();
+    }
+
+    /**
+     * Apply a message with changed pixels (version 3) to the map message it was created for.
+     * @param base The map message the changes are based on.
+     * @param delta The changed pixels.
+     * @return The updated map message with absolute coordinates (version 1).
+     */
+    public static MapPackageProto.MapPackage applyDeltaPackage(MapPackageProto.MapPackage base, MapPackageProto.MapPackage delta) {
+        if (base == null || delta == null) return null;
+        if (delta.getVersion() != 3) return delta;
+        int[] bounds = boundsOf(delta);
+        int[] window = union(boundsOf(base), bounds);
+        int width = window[2] - window[0];
+        int[] grid = new int[Math.max(0, width * (window[3] - window[1]))];
+        paint(base, grid, window);
+        paint(delta, grid, window);
+        ColorBuckets colorMap = new ColorBuckets();
+        for (int y = bounds[1]; y < bounds[3]; y++) {
+            for (int x = bounds[0]; x < bounds[2]; x++) {
+                int color = grid[(x - window[0]) + ((y - window[1]) * width)];
+                if (color != 0) colorMap.add(color, (y << 16) + x);
+            }
+        }
+        MapPackageProto.MapPackage.Builder pack = MapPackageProto.MapPackage.newBuilder();
+        pack.setError(delta.getError());
+        pack.setVersion(1);
+        pack.setActiveX(delta.getActiveX());
+        pack.setActiveY(delta.getActiveY());
+        pack.setActiveW(delta.getActiveW());
+        pack.setActiveH(delta.getActiveH());
+        pack.setRevision(delta.getRevision());
+        pack.addAllData(colorMap.toMapPackageColors());
+        return pack.build();
+    }
+
+    /**
+     * Reduce the resolution of a map message by a power of two, so clients showing the map zoomed out don't have to download and reduce the complete map.
+     * Each block of pixels becomes a single pixel, which takes the color with the highest priority in the block: walls and obstacles first, then markers, then the floor.
+     * Between colors of the same priority the one that is rarer in the whole map wins. That way thin walls stay visible instead of being averaged away.
+     * @param image The map message to reduce.
+     * @param level The level of the reduction. Every level halves the width and the height of the map, up to {@link #MAX_LEVEL}. 0 returns the message as it is.
+     * @return The reduced map message with absolute coordinates (version 1) in the reduced map.
+     */
+    public static MapPackageProto.MapPackage toDownsampledPackage(MapPackageProto.MapPackage image, int level) {
+        if (image == null) return null;
+        level = Math.min(Math.max(level, 0), MAX_LEVEL);
+        if (level == 0 || image.getLevel() != 0 || image.getVersion() == 3) return image;
+        int[] window = boundsOf(image);
+        int width = window[2] - window[0];
+        int height = window[3] - window[1];
+
+        // Order the colors by priority and then by how often they appear, the lowest value wins.
+        int entries = image.getDataCount();
+        long[] order = new long[entries];
+        for (int d = 0; d < entries; d++) {
+            MapPackageColorProto.MapPackageColor c = image.getData(d);
+            long count = c.getCoordinatesCount();
+            for (int i = 2; i < c.getRunsCount(); i += 3) {
+                count += c.getRuns(i);
+            }
+            long priority = downsamplePriority(image.getData(d).getColor());
+            order[d] = (priority << 52) | (count << 20) | d;
+        }
+        Arrays.sort(order);
+        int[] values = new int[entries];
+        int[] colors = new int[entries + 1];
+        for (int rank = 0; rank < entries; rank++) {
+            int d = (int) (order[rank] & 0xFFFFF);
+            int color = image.getData(d).getColor();
+            values[d] = downsamplePriority(color) == EMPTY_PRIORITY ? 0 : rank + 1;
+            colors[rank + 1] = color;
+        }
+        int[] grid = new int[width * height];
+        paint(image, grid, window, values);
+
+        int left = window[0] >> level;
+        int top = window[1] >> level;
+        int right = window[2] == 0 ? 0 : ((window[2] - 1) >> level) + 1;
+        int bottom = window[3] == 0 ? 0 : ((window[3] - 1) >> level) + 1;
+        int minX = Integer.MAX_VALUE;
+        int minY = Integer.MAX_VALUE;
+        int maxX = -1;
+        int maxY = -1;
+        ColorBuckets colorMap = new ColorBuckets();
+        for (int by = top; by < bottom; by++) {
+            int y0 = Math.max(by << level, window[1]) - window[1];
+            int y1 = Math.min((by + 1) << level, window[3]) - window[1];
+            for (int bx = left; bx < right; bx++) {
+                int x0 = Math.max(bx << level, window[0]) - window[0];
+                int x1 = Math.min((bx + 1) << level, window[2]) - window[0];
+                int best = Integer.MAX_VALUE;
+                for (int y = y0; y < y1; y++) {
+                    int row = y * width;
+                    for (int x = x0; x < x1; x++) {
+                        int v = grid[row + x];
+                        if (v != 0 && v < best) best = v;
+                    }
+                }
+                if (best == Integer.MAX_VALUE) continue;
+                colorMap.add(colors[best], (by << 16) + bx);
+                if (bx < minX) minX = bx;
+                if (bx > maxX) maxX = bx;
+                if (by < minY) minY = by;
+                if (by > maxY) maxY = by;
+            }
+        }
+
+        MapPackageProto.MapPackage.Builder pack = MapPackageProto.MapPackage.newBuilder();
+        pack.setError(image.getError());
+        pack.setVersion(1);
+        pack.setLevel(level);
+        pack.setRevision(image.getRevision());
+        if (maxX >= 0) {
+            pack.setActiveX(minX);
+            pack.setActiveY(minY);
+            pack.setActiveW((maxX - minX) + 1);
+            pack.setActiveH((maxY - minY) + 1);
+        }
+        pack.addAllData(colorMap.toMapPackageColors());
+        return pack.build();
+    }
+
+    /**
+     * Sort a map color into the priority classes used when reducing the resolution, lower values win.
+     * Unknown colors count as markers, so nothing but the floor can hide them.
+     * @param color The ARGB color of the map.
+     * @return {@link #WALL_PRIORITY}, {@link #MARKER_PRIORITY}, {@link #FLOOR_PRIORITY} or {@link #EMPTY_PRIORITY}.
+     */
+    private static int downsamplePriority(int color) {
+        if (color == toColorInt(125, 125, 125, 0xff)) return EMPTY_PRIORITY;
+        int r = (color >> 16) & 0xff;
+        int g = (color >> 8) & 0xff;
+        int b = color & 0xff;
+        if (Math.max(r, Math.max(g, b)) < 0x40) return WALL_PRIORITY;
+        if (Math.min(r, Math.min(g, b)) >= 0xc0) return FLOOR_PRIORITY;
+        return MARKER_PRIORITY;
+    }
+
+    /**
+     * @return The bounding box of a map message as {left, top, right, bottom}, right and bottom exclusive. Empty if the message has no valid bounding box.
+     */
+    private static int[] boundsOf(MapPackageProto.MapPackage image) {
+        int left = Math.max(0, image.getActiveX());
+        int top = Math.max(0, image.getActiveY());
+        int right = Math.min(MAP_WIDTH, image.getActiveX() + image.getActiveW());
+        int bottom = Math.min(MAP_HEIGHT, image.getActiveY() + image.getActiveH());
+        if (right <= left || bottom <= top) return new int[]{0, 0, 0, 0};
+        return new int[]{left, top, right, bottom};
+    }
+
+    private static int[] union(int[] a, int[] b) {
+        if (a[2] <= a[0]) return b;
+        if (b[2] <= b[0]) return a;
+        return new int[]{Math.min(a[0], b[0]), Math.min(a[1], b[1]), Math.max(a[2], b[2]), Math.max(a[3], b[3])};
+    }
+
+    /**
+     * Draw the pixels of a map message into a grid covering the window {left, top, right, bottom}.
+     * Pixels outside of the window are skipped, unset and gray pixels are 0.
+     */
+    private static void paint(MapPackageProto.MapPackage image, int[] grid, int[] window) {
+        paint(image, grid, window, null);
+    }
+
+    /**
+     * Draw the pixels of a map message into a grid like {@link #paint(MapPackageProto.MapPackage, int[], int[])}.
+     * @param values The value to draw for each color entry of the message instead of its color. May be null.
+     */
+    private static void paint(MapPackageProto.MapPackage image, int[] grid, int[] window, int[] values) {
+        int width = window[2] - window[0];
+        int empty = toColorInt(125, 125, 125, 0xff);
+        int offsetX = 0;
+        int offsetY = 0;
+        if (image.getVersion() == 0) {
+            offsetX = image.getActiveX();
+            offsetY = image.getActiveY();
+        }
+        for (int d = 0; d < image.getDataCount(); d++) {
+            MapPackageColorProto.MapPackageColor c = image.getData(d);
+            int color = c.getColor() == empty ? 0 : c.getColor();
+            if (values != null) color = values[d];
+            if (image.getVersion() == 2) {
+                int runs = c.getRunsCount() - 2;
+                for (int i = 0; i < runs; i += 3) {
+                    int y = c.getRuns(i);
+                    if (y < window[1] || y >= window[3]) continue;
+                    int start = Math.max(c.getRuns(i + 1), window[0]);
+                    int end = Math.min(c.getRuns(i + 1) + c.getRuns(i + 2), window[2]);
+                    if (start >= end) continue;
+                    int row = (y - window[1]) * width - window[0];
+                    Arrays.fill(grid, row + start, row + end, color);
+                }
+                continue;
+            }
+            int coordinates = c.getCoordinatesCount();
+            for (int i = 0; i < coordinates; i++) {
+                int pos = c.getCoordinates(i);
+                int x = (pos & 0xFFFF) + offsetX;
+                int y = ((pos >> 16) & 0xFFFF) + offsetY;
+                if (x < window[0] || x >= window[2] || y < window[1] || y >= window[3]) continue;
+                grid[(x - window[0]) + ((y - window[1]) * width)] = color;
+            }
+        }
+    }
+
     /**
      * Create a path message directly from a slam file.
      * @param slam The slam file to parse.
@@ -832,69 +1694,91 @@ public class VacuumMap implements Serializable {
      * @throws IOException If the file could not be read.
      */
     public static MapSlamProto.MapSlam directToPath(BufferedReader slam, int start) throws IOException {
+        return directToPath(slam, start, 0);
+    }
+
+    /**
+     * Create a path message directly from a slam file.
+     * @param slam The slam file to parse.
+     * @param start The path point to start reading from.
+     * @param version The format version of the path message. 1 for the compact delta encoded format, everything else for the default format.
+     * @return The message with the path.
+     * @throws IOException If the file could not be read.
+     */
+    public static MapSlamProto.MapSlam directToPath(BufferedReader slam, int start, int version) throws IOException {
         LOGGER.info("Getting path from " + start);
         MapErrorProto.MapError.Builder err = MapErrorProto.MapError.newBuilder();
         MapSlamProto.MapSlam.Builder mapSlam = MapSlamProto.MapSlam.newBuilder();
 
         String line;
-        boolean slamLocked = true;
-        int pos = 0;
-        float oldX = 100000;
-        float oldY = 100000;
-        float x;
-        float y;
+        SlamParser parser = new SlamParser(true);
+        PackedPath points = new PackedPath();
         while ((line = slam.readLine()) != null){
             LOGGER.fine("Parsing line: " + line);
-            if (line.contains("reset")){
-                LOGGER.fine("Reset");
-                pos = 0;
-                mapSlam.clearPoints();
-                oldX = 100000;
-                oldY = 100000;
-            }
-            if (line.contains("lock")) {
-                LOGGER.fine("Lock");
-                slamLocked = true;
-            }
-            if (line.contains("unlock")) {
-                LOGGER.fine("Unlock");
-                slamLocked = false;
-            }
-            if (slamLocked) continue;
-            if (line.contains("estimate")){
-                String[] split = line.split("\\s+");
-                if (split.length != 5) {
-                    LOGGER.info("Estimate of wrong length");
-                    continue;
-                }
-                try {
-                    x = Float.valueOf(split[2]) * (20.0f);
-                    y = Float.valueOf(split[3]) * (-20.0f);
-                    if ((Math.abs(x - oldX) > 1.0f) || (Math.abs(y - oldY) > 1.0f)){
-                        oldX = x;
-                        oldY = y;
-                        if (pos < start) {
-                            pos++;
-                            continue;
-                        }
-                    } else {
-                        continue;
-                    }
-                    MapSlamProto.MapSlam.Point.Builder point = MapSlamProto.MapSlam.Point.newBuilder();
-                    point.setX(x);
-                    point.setY(y);
-                    mapSlam.addPoints(point.build());
-                } catch (Exception e){
-                    LOGGER.warning("Parsing coordinates failed: " + e);
-                }
+            switch (parser.parseLine(line)) {
+                case SlamParser.RESET:
+                    points.clear();
+                    break;
+                case SlamParser.POINT:
+                    points.add(parser.getX(), parser.getY());
+                    break;
+            }
+        }
+        if (points.size() < start) {
+            LOGGER.warning("Path out of range");
+            err.setCode(MapErrorProto.MapError.ErrorCode.SLAM_OUT_OF_RANGE);
+        } else {
+            addPath(mapSlam, points, Math.max(start, 0), version);
+            err.setCode(MapErrorProto.MapError.ErrorCode.NONE);
+        }
+        mapSlam.setError(err.build());
+        LOGGER.info("Building slam message");
+        return mapSlam.build();
+    }
+
+    /**
+     * Create a path message directly from a stream of a slam file. The stream is split into lines and parsed byte wise while it is read and is not closed.
+     * @param slam The stream of the slam file.
+     * @param start The path point to start reading from.
+     * @param version The format version of the path message. 1 for the compact delta encoded format, everything else for the default format.
+     * @return The message with the path.
+     * @throws IOException If the stream could not be read.
+     */
+    public static MapSlamProto.MapSlam directToPath(InputStream slam, int start, int version) throws IOException {
+        if (slam == null) throw new IOException("No slam stream provided");
+        LOGGER.info("Getting path from " + start);
+        MapErrorProto.MapError.Builder err = MapErrorProto.MapError.newBuilder();
+        MapSlamProto.MapSlam.Builder mapSlam = MapSlamProto.MapSlam.newBuilder();
 
+        SlamParser parser = new SlamParser(true);
+        PackedPath points = new PackedPath();
+        byte[] data = new byte[STREAM_BUFFER_SIZE];
+        int end = 0;
+        while (true) {
+            int read = slam.read(data, end, data.length - end);
+            if (read > 0) end += read;
+            int lineStart = 0;
+            for (int i = 0; i < end; i++) {
+                if (data[i] != '\n') continue;
+                parsePathLine(parser, points, data, lineStart, i);
+                lineStart = i + 1;
+            }
+            if (read < 0) {
+                if (lineStart < end) parsePathLine(parser, points, data, lineStart, end);
+                break;
+            }
+            end -= lineStart;
+            System.arraycopy(data, lineStart, data, 0, end);
+            if (end == data.length) {
+                LOGGER.fine("Growing slam line buffer");
+                data = Arrays.copyOf(data, data.length * 2);
             }
         }
-        if (pos < start) {
+        if (points.size() < start) {
             LOGGER.warning("Path out of range");
             err.setCode(MapErrorProto.MapError.ErrorCode.SLAM_OUT_OF_RANGE);
-            mapSlam.clearPoints();
         } else {
+            addPath(mapSlam, points, Math.max(start, 0), version);
             err.setCode(MapErrorProto.MapError.ErrorCode.NONE);
         }
         mapSlam.setError(err.build());
@@ -902,6 +1786,18 @@ public class VacuumMap implements Serializable {
         return mapSlam.build();
     }
 
+    private static void parsePathLine(SlamParser parser, PackedPath points, byte[] data, int start, int end) {
+        if (end > start && data[end - 1] == '\r') end--;
+        switch (parser.parseLine(data, start, end)) {
+            case SlamParser.RESET:
+                points.clear();
+                break;
+            case SlamParser.POINT:
+                points.add(parser.getX(), parser.getY());
+                break;
+        }
+    }
+
     @SuppressWarnings("SameParameterValue")
     private static int toColorInt(int r, int g, int b, int a) {
         return (a & 0xff) << 24 | (r & 0xff) << 16 | (g & 0xff) << 8 | (b & 0xff);
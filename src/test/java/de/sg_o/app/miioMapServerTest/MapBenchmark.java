@@ -0,0 +1,304 @@
+/*
+ * Copyright (c) 2018 Joerg Bayer
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.sg_o.app.miioMapServerTest;
+
+import com.google.protobuf.CodedOutputStream;
+import de.sg_o.app.miio.base.Token;
+import de.sg_o.app.miio.util.ByteArray;
+import de.sg_o.app.miioMapServer.Maps;
+import de.sg_o.app.miioMapServer.Server;
+import de.sg_o.app.miioMapServer.VacuumMap;
+import de.sg_o.proto.MapPackageProto;
+import de.sg_o.proto.MapRequestProto;
+import de.sg_o.proto.MapSlamProto;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.*;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.zip.GZIPInputStream;
+
+import static org.junit.Assert.*;
+
+/**
+ * Simple timing comparisons on the test fixtures. Not part of the default test run, start with "mvn test -Dtest=MapBenchmark".
+ */
+public class MapBenchmark {
+    private static final int WARMUP = 5;
+    private static final int ROUNDS = 20;
+
+    private Map<String, byte[]> navmaps = new LinkedHashMap<>();
+
+    @Before
+    public void setUp() throws Exception {
+        ClassLoader classLoader = getClass().getClassLoader();
+        File active = new File(Objects.requireNonNull(classLoader.getResource("run/shm/navmap0.ppm")).getFile());
+        navmaps.put(active.getName(), readFully(new FileInputStream(active)));
+        File old = new File(Objects.requireNonNull(classLoader.getResource("mnt/data/rockrobo/rrlog/000144.20180604034309095_1387101062713_2018032100REL/navmap65704946.ppm.0005.gz")).getFile());
+        navmaps.put(old.getName(), readFully(new GZIPInputStream(new FileInputStream(old))));
+    }
+
+    private static byte[] readFully(InputStream in) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] buf = new byte[65536];
+        int len;
+        while ((len = in.read(buf)) > 0) {
+            out.write(buf, 0, len);
+        }
+        in.close();
+        return out.toByteArray();
+    }
+
+    private static void report(String name, String variant, long nanos) {
+        System.out.println(String.format("%-32s %-16s %8.3f ms/op", name, variant, nanos / (ROUNDS * 1000000.0)));
+    }
+
+    @Test
+    public void mapPackageBenchmark() throws IOException {
+        for (Map.Entry<String, byte[]> e : navmaps.entrySet()) {
+            byte[] data = e.getValue();
+            for (int i = 0; i < WARMUP; i++) {
+                assertNotNull(VacuumMap.directToMapPackage(new BufferedReader(new InputStreamReader(new ByteArrayInputStream(data)))));
+                assertNotNull(VacuumMap.directToMapPackage(ByteBuffer.wrap(data)));
+            }
+            long start = System.nanoTime();
+            for (int i = 0; i < ROUNDS; i++) {
+                VacuumMap.directToMapPackage(new BufferedReader(new InputStreamReader(new ByteArrayInputStream(data))));
+            }
+            report(e.getKey(), "reader", System.nanoTime() - start);
+            start = System.nanoTime();
+            for (int i = 0; i < ROUNDS; i++) {
+                VacuumMap.directToMapPackage(ByteBuffer.wrap(data));
+            }
+            report(e.getKey(), "bytes", System.nanoTime() - start);
+        }
+    }
+
+    @Test
+    public void renderBenchmark() throws IOException {
+        VacuumMap map = new VacuumMap(VacuumMap.directToMapPackage(ByteBuffer.wrap(navmaps.values().iterator().next())), null, 4);
+        int[] raw = map.getRawMap();
+        int[] out = null;
+        for (int i = 0; i < WARMUP; i++) {
+            assertArrayEquals(renderPerPixel(raw, 4), map.getMap());
+            out = map.getMap(out);
+        }
+        long start = System.nanoTime();
+        for (int i = 0; i < ROUNDS; i++) {
+            renderPerPixel(raw, 4);
+        }
+        report("getMap overSample 4", "per pixel", System.nanoTime() - start);
+        start = System.nanoTime();
+        for (int i = 0; i < ROUNDS; i++) {
+            map.getMap();
+        }
+        report("getMap overSample 4", "rows", System.nanoTime() - start);
+        start = System.nanoTime();
+        for (int i = 0; i < ROUNDS; i++) {
+            out = map.getMap(out);
+        }
+        report("getMap overSample 4", "rows reused", System.nanoTime() - start);
+
+        int[] bounds = map.getBoundingBox();
+        for (int i = 0; i < WARMUP; i++) {
+            assertArrayEquals(cropFull(map, bounds), map.getMapWithPathInBounds());
+        }
+        start = System.nanoTime();
+        for (int i = 0; i < ROUNDS; i++) {
+            cropFull(map, bounds);
+        }
+        report("getMapWithPathInBounds", "crop full", System.nanoTime() - start);
+        start = System.nanoTime();
+        for (int i = 0; i < ROUNDS; i++) {
+            map.getMapWithPathInBounds();
+        }
+        report("getMapWithPathInBounds", "region", System.nanoTime() - start);
+    }
+
+    @Test
+    public void liveRenderBenchmark() throws IOException {
+        ClassLoader classLoader = getClass().getClassLoader();
+        File slam = new File(Objects.requireNonNull(classLoader.getResource("run/shm/SLAM_fprintf.log")).getFile());
+        MapSlamProto.MapSlam path = VacuumMap.directToPath(new BufferedReader(new FileReader(slam)));
+        VacuumMap map = new VacuumMap(VacuumMap.directToMapPackage(ByteBuffer.wrap(navmaps.values().iterator().next())), path, 4);
+        MapSlamProto.MapSlam.Builder next = MapSlamProto.MapSlam.newBuilder();
+        next.addPoints(path.getPoints(path.getPointsCount() - 1));
+        int[] frame = map.getMapWithPath(null, null, null);
+        long start = System.nanoTime();
+        for (int i = 0; i < ROUNDS; i++) {
+            map.appendMapSlam(next.build());
+            map.getMapWithPath();
+        }
+        report("getMapWithPath new point", "complete", System.nanoTime() - start);
+        start = System.nanoTime();
+        for (int i = 0; i < ROUNDS; i++) {
+            map.appendMapSlam(next.build());
+            frame = map.getMapWithPath(null, null, frame);
+        }
+        report("getMapWithPath new point", "incremental", System.nanoTime() - start);
+        assertArrayEquals(map.getMapWithPath(), frame);
+    }
+
+    private static int[] cropFull(VacuumMap map, int[] bounds) {
+        int[] full = map.getMapWithPath();
+        int width = 1024 * map.getOverSample();
+        int[] out = new int[bounds[2] * bounds[3]];
+        for (int y = 0; y < bounds[3]; y++) {
+            System.arraycopy(full, bounds[0] + ((y + bounds[1]) * width), out, y * bounds[2], bounds[2]);
+        }
+        return out;
+    }
+
+    private static int[] renderPerPixel(int[] map, int overSample) {
+        int[] outMap = new int[1024 * overSample * 1024 * overSample];
+        for (int y = 0; y < 1024; y++) {
+            for (int x = 0; x < 1024; x++) {
+                int color = map[x + (y * 1024)];
+                for (int b = 0; b < overSample; b++) {
+                    for (int a = 0; a < overSample; a++) {
+                        outMap[(x * overSample) + a + (((y * overSample) + b) * 1024 * overSample)] = color;
+                    }
+                }
+            }
+        }
+        return outMap;
+    }
+
+    @Test
+    public void activeReadBenchmark() throws Exception {
+        ClassLoader classLoader = getClass().getClassLoader();
+        File currentMap = new File(Objects.requireNonNull(classLoader.getResource("run/shm/")).getFile());
+        File oldMap = new File(Objects.requireNonNull(classLoader.getResource("mnt/data/rockrobo/rrlog")).getFile());
+        final Maps maps = new Maps(currentMap, oldMap, Level.OFF);
+        maps.setCacheSize(0);
+        final String[] names = maps.getPreviousMaps().toArray(new String[0]);
+        final AtomicBoolean done = new AtomicBoolean();
+        final AtomicLong conversions = new AtomicLong();
+        final AtomicLong conversionTime = new AtomicLong();
+        ExecutorService pool = Executors.newFixedThreadPool(3);
+        for (int t = 0; t < 3; t++) {
+            pool.execute(new Runnable() {
+                @Override
+                public void run() {
+                    while (!done.get()) {
+                        for (String name : names) {
+                            long start = System.nanoTime();
+                            maps.getOldMap(name);
+                            maps.getOldPath(name);
+                            conversionTime.addAndGet(System.nanoTime() - start);
+                            conversions.incrementAndGet();
+                        }
+                    }
+                }
+            });
+        }
+        long[] latencies = new long[500];
+        try {
+            while (conversions.get() < 3) Thread.sleep(1);
+            for (int i = 0; i < latencies.length; i++) {
+                long start = System.nanoTime();
+                assertNotNull(maps.getActiveMapBytes(0));
+                assertNotNull(maps.getActiveMap());
+                maps.numberOfPreviousMaps();
+                latencies[i] = System.nanoTime() - start;
+                Thread.sleep(1);
+            }
+        } finally {
+            done.set(true);
+            pool.shutdown();
+        }
+        Arrays.sort(latencies);
+        // Reads of the active map must not wait for the conversions of old maps.
+        System.out.println(String.format("%-32s %-16s %8.3f ms/op", "active read during conversion", "p99", latencies[(latencies.length * 99) / 100] / 1000000.0));
+        System.out.println(String.format("%-32s %-16s %8.3f ms/op", "old map conversion", "mean", conversionTime.get() / (conversions.get() * 1000000.0)));
+    }
+
+    @Test
+    public void loopbackBenchmark() throws Exception {
+        ClassLoader classLoader = getClass().getClassLoader();
+        File currentMap = new File(Objects.requireNonNull(classLoader.getResource("run/shm/")).getFile());
+        File oldMap = new File(Objects.requireNonNull(classLoader.getResource("mnt/data/rockrobo/rrlog")).getFile());
+        File tokenFile = new File(Objects.requireNonNull(classLoader.getResource("mnt/data/miio/device.token")).getFile());
+        Token tk = new Token("abcdefgh1234ABCD".getBytes("ASCII"));
+        Server server = new Server(currentMap, oldMap, null, 0, 5000, 5, tokenFile, Level.OFF, null);
+        server.start();
+        for (int i = 0; i < 100 && server.getLocalPort() < 0; i++) Thread.sleep(50);
+        try (Socket socket = new Socket(InetAddress.getLoopbackAddress(), server.getLocalPort())) {
+            InputStream in = new BufferedInputStream(socket.getInputStream());
+            OutputStream out = socket.getOutputStream();
+            MapRequestProto.MapRequest.newBuilder()
+                    .setCode(MapRequestProto.MapRequest.RequestCode.AUTHENTICATE)
+                    .setOpt(ByteArray.bytesToHex(tk.encrypt("hello".getBytes("ASCII"))))
+                    .build().writeDelimitedTo(out);
+            assertNotNull(MapRequestProto.MapRequest.parseDelimitedFrom(in));
+            byte[] map = MapRequestProto.MapRequest.newBuilder().setCode(MapRequestProto.MapRequest.RequestCode.GET_ACTIVE_MAP).build().toByteArray();
+            byte[] slam = MapRequestProto.MapRequest.newBuilder().setCode(MapRequestProto.MapRequest.RequestCode.GET_ACTIVE_MAP_SLAM).build().toByteArray();
+            ByteArrayOutputStream both = new ByteArrayOutputStream();
+            writeDelimited(map, both);
+            writeDelimited(slam, both);
+            byte[] pipelined = both.toByteArray();
+            for (int i = 0; i < WARMUP; i++) {
+                fetchSequential(map, slam, in, out);
+                fetchPipelined(pipelined, in, out);
+            }
+            long start = System.nanoTime();
+            for (int i = 0; i < ROUNDS; i++) {
+                fetchSequential(map, slam, in, out);
+            }
+            report("loopback map+slam", "sequential", System.nanoTime() - start);
+            start = System.nanoTime();
+            for (int i = 0; i < ROUNDS; i++) {
+                fetchPipelined(pipelined, in, out);
+            }
+            report("loopback map+slam", "pipelined", System.nanoTime() - start);
+        } finally {
+            server.terminate();
+            server.join(5000);
+        }
+    }
+
+    private static void writeDelimited(byte[] request, OutputStream out) throws IOException {
+        CodedOutputStream output = CodedOutputStream.newInstance(out);
+        output.writeUInt32NoTag(request.length);
+        output.writeRawBytes(request);
+        output.flush();
+    }
+
+    private static void fetchSequential(byte[] map, byte[] slam, InputStream in, OutputStream out) throws IOException {
+        writeDelimited(map, out);
+        assertNotNull(MapPackageProto.MapPackage.parseDelimitedFrom(in));
+        writeDelimited(slam, out);
+        assertNotNull(MapSlamProto.MapSlam.parseDelimitedFrom(in));
+    }
+
+    private static void fetchPipelined(byte[] requests, InputStream in, OutputStream out) throws IOException {
+        out.write(requests);
+        assertNotNull(MapPackageProto.MapPackage.parseDelimitedFrom(in));
+        assertNotNull(MapSlamProto.MapSlam.parseDelimitedFrom(in));
+    }
+}
@@ -2,16 +2,37 @@ package de.sg_o.app.miioMapServerTest;
 
 import de.sg_o.app.miioMapServer.Maps;
 import de.sg_o.app.miioMapServer.VacuumMap;
+import de.sg_o.proto.MapErrorProto;
 import de.sg_o.proto.MapPackageProto;
 import de.sg_o.proto.MapSlamProto;
 import org.junit.Before;
 import org.junit.Test;
 
+import javax.crypto.Cipher;
+import javax.crypto.spec.SecretKeySpec;
+
 import java.io.BufferedReader;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.FileReader;
 import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
 import java.util.Objects;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CyclicBarrier;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.logging.Level;
 
 import static org.junit.Assert.*;
@@ -36,12 +57,11 @@ public class MapsTest {
         File activeFileMap = new File(Objects.requireNonNull(classLoader.getResource("run/shm/navmap0.ppm")).getFile());
         File activeFileSlam = new File(Objects.requireNonNull(classLoader.getResource("run/shm/SLAM_fprintf.log")).getFile());
 
-        BufferedReader map = new BufferedReader(new FileReader(activeFileMap));
         BufferedReader slam = new BufferedReader(new FileReader(activeFileSlam));
 
-        m0 = VacuumMap.directToMapPackage(map);
+        // The first version of the active map gets the revision 1.
+        m0 = VacuumMap.directToMapPackage(activeFileMap.toPath()).toBuilder().setRevision(1).build();
         sl0 = VacuumMap.directToPath(slam);
-        map.close();
         slam.close();
     }
 
@@ -49,21 +69,110 @@ public class MapsTest {
     public void activeTest() {
         assertTrue(s0.hasActiveMap());
         assertEquals(m0,s0.getActiveMap());
+        assertEquals(m0,s0.getActiveMap(1));
+        assertEquals(VacuumMap.toRunLengthPackage(m0),s0.getActiveMap(2));
+        assertSame(s0.getActiveMap(2),s0.getActiveMap(2));
         assertEquals(sl0, s0.getActivePathFrom(0));
+        assertEquals(VacuumMap.simplifyPath(sl0, 1.0f), s0.getActivePathFrom(0, 0, 1.1f));
+        // Tolerances of the same bucket share the simplified path until the tail changes.
+        assertSame(s0.getActivePathFrom(0, 0, 1.1f), s0.getActivePathFrom(0, 0, 1.0f));
+        assertEquals(sl0.getPointsCount(), s0.getActivePathFrom(10, 1, 1.0f).getSourcePoints());
         s0.updateActiveMap();
         assertEquals(m0,s0.getActiveMap());
+        assertEquals(1, s0.getActiveRevision());
         assertEquals(sl0, s0.getActivePathFrom(0));
         assertFalse(s1.hasActiveMap());
+        assertEquals(0, s1.getActiveRevision());
         s1.updateActiveMap();
         assertFalse(s1.hasActiveMap());
         assertTrue(s2.hasActiveMap());
     }
 
+    @Test
+    public void activeSlamTailTest() throws IOException {
+        ClassLoader classLoader = getClass().getClassLoader();
+        File oldMap = new File(Objects.requireNonNull(classLoader.getResource("mnt/data/rockrobo/rrlog")).getFile());
+        Path activeFileMap = new File(Objects.requireNonNull(classLoader.getResource("run/shm/navmap0.ppm")).getFile()).toPath();
+        Path activeFileSlam = new File(Objects.requireNonNull(classLoader.getResource("run/shm/SLAM_fprintf.log")).getFile()).toPath();
+        Path dir = Files.createTempDirectory("miioMapServerTest");
+        Path slamFile = dir.resolve("SLAM_fprintf.log");
+        try {
+            Files.copy(activeFileMap, dir.resolve("navmap0.ppm"));
+            Files.copy(activeFileSlam, slamFile);
+            Maps s3 = new Maps(dir.toFile(), oldMap, Level.WARNING);
+            assertEquals(sl0, s3.getActivePathFrom(0));
+            int count = sl0.getPointsCount();
+
+            appendSlam(slamFile, "1400.000 unlock\n1400.100 estimate 5.000 5.000 0.000\n1400.200 estimate 6.0");
+            MapSlamProto.MapSlam tail = s3.getActivePathFrom(count);
+            assertEquals(1, tail.getPointsCount());
+            assertEquals(100.0f, tail.getPoints(0).getX(), 0.0001f);
+            appendSlam(slamFile, "00 6.000 0.000\n");
+            assertEquals(2, s3.getActivePathFrom(count).getPointsCount());
+            MapSlamProto.MapSlam compact = s3.getActivePathFrom(count, 1);
+            assertEquals(4, compact.getDeltasCount());
+            assertEquals(5000, compact.getDeltas(0));
+            assertEquals(1000, compact.getDeltas(2));
+            assertEquals(VacuumMap.toCompactPath(directToPath(slamFile)), s3.getActivePathFrom(0, 1));
+            assertEquals(directToPath(slamFile), s3.getActivePathFrom(0));
+            assertEquals(MapErrorProto.MapError.ErrorCode.SLAM_OUT_OF_RANGE, s3.getActivePathFrom(count + 3).getError().getCode());
+            MapSlamProto.MapSlam simplified = s3.getActivePathFrom(0, 0, 1.0f);
+            assertEquals(VacuumMap.simplifyPath(directToPath(slamFile), 1.0f), simplified);
+            assertSame(simplified, s3.getActivePathFrom(0, 0, 1.0f));
+            appendSlam(slamFile, "1400.250 estimate 9.000 9.000 0.000\n");
+            assertEquals(VacuumMap.simplifyPath(directToPath(slamFile), 1.0f), s3.getActivePathFrom(0, 0, 1.0f));
+            assertEquals(count + 3, s3.getActivePathFrom(0, 0, 1.0f).getSourcePoints());
+
+            appendSlam(slamFile, "1400.300 reset\n1400.400 estimate 1.000 1.000 0.000\n");
+            assertEquals(1, s3.getActivePathFrom(0).getPointsCount());
+            assertEquals(directToPath(slamFile), s3.getActivePathFrom(0));
+
+            List<String> lines = Files.readAllLines(activeFileSlam, StandardCharsets.US_ASCII);
+            Files.write(slamFile, lines.subList(0, 1000), StandardCharsets.US_ASCII);
+            assertEquals(directToPath(slamFile), s3.getActivePathFrom(0));
+
+            Path replacement = dir.resolve("replacement.log");
+            Files.copy(activeFileSlam, replacement);
+            appendSlam(replacement, "1400.000 unlock\n1400.100 estimate 5.000 5.000 0.000\n");
+            Files.move(replacement, slamFile, StandardCopyOption.REPLACE_EXISTING);
+            assertEquals(directToPath(slamFile), s3.getActivePathFrom(0));
+            assertEquals(count + 1, s3.getActivePathFrom(0).getPointsCount());
+        } finally {
+            File[] files = dir.toFile().listFiles();
+            if (files != null) {
+                for (File f : files) {
+                    Files.delete(f.toPath());
+                }
+            }
+            Files.delete(dir);
+        }
+    }
+
+    private static void appendSlam(Path slam, String lines) throws IOException {
+        Files.write(slam, lines.getBytes(StandardCharsets.US_ASCII), StandardOpenOption.APPEND);
+    }
+
+    private static MapSlamProto.MapSlam directToPath(Path slam) throws IOException {
+        try (BufferedReader reader = Files.newBufferedReader(slam, StandardCharsets.US_ASCII)) {
+            return VacuumMap.directToPath(reader);
+        }
+    }
+
     @Test
     public void previousTest() {
         assertEquals(118, s0.getLastMap().getActiveH());
         assertEquals(90, s0.getLastMap().getActiveW());
+        assertEquals(2, s0.getLastMap(2).getVersion());
+        assertEquals(90, s0.getLastMap(2).getActiveW());
         assertEquals(1997, s0.getLastPath().getPointsCount());
+        assertEquals(1997 * 2, s0.getLastPath(1).getDeltasCount());
+        assertSame(s0.getLastPath(1), s0.getLastPath(1));
+        assertEquals(1997, s0.getLastPath(0, 2.0f).getSourcePoints());
+        assertTrue(s0.getLastPath(0, 2.0f).getPointsCount() < 1997);
+        assertSame(s0.getLastPath(1, 2.0f), s0.getLastPath(1, 2.1f));
+        assertSame(s0.getLastPath(1, 2.0f), s0.getOldPath("000144.20180604034309095_1387101062713_2018032100REL", 1, 2.0f));
+        assertEquals(VacuumMap.simplifyPath(s0.getLastPath(), 2.0f), s0.getLastPath(0, 2.0f));
+        assertEquals(VacuumMap.toCompactPath(s0.getLastPath()), s0.getOldPath("000144.20180604034309095_1387101062713_2018032100REL", 1));
     }
 
     @Test
@@ -78,6 +187,8 @@ public class MapsTest {
         assertEquals(133, s0.getOldMap("000143.20180604001001609_1387101062713_2018032100REL").getActiveW());
         assertEquals(118, s0.getOldMap("000144.20180604034309095_1387101062713_2018032100REL").getActiveH());
         assertEquals(90, s0.getOldMap("000144.20180604034309095_1387101062713_2018032100REL").getActiveW());
+        assertEquals(2, s0.getOldMap("000144.20180604034309095_1387101062713_2018032100REL", 2).getVersion());
+        assertEquals(1, s0.getOldMap("000144.20180604034309095_1387101062713_2018032100REL", 0).getVersion());
         assertEquals(1743, s0.getOldPath("000143.20180604001001609_1387101062713_2018032100REL").getPointsCount());
         assertEquals(1997, s0.getOldPath("000144.20180604034309095_1387101062713_2018032100REL").getPointsCount());
         s0.updatePreviousMaps();
@@ -88,6 +199,366 @@ public class MapsTest {
         assertEquals(0, s2.numberOfPreviousMaps());
     }
 
+    @Test
+    public void cacheCountTest() throws IOException {
+        ClassLoader classLoader = getClass().getClassLoader();
+        File currentMap = new File(Objects.requireNonNull(classLoader.getResource("run/shm/")).getFile());
+        File oldMap = new File(Objects.requireNonNull(classLoader.getResource("mnt/data/rockrobo/rrlog")).getFile());
+        Maps s3 = new Maps(currentMap, oldMap, Level.OFF);
+        // Not the latest map, so nothing of it was loaded yet.
+        String name = "000143.20180604001001609_1387101062713_2018032100REL";
+        long misses = s3.getCacheMisses();
+        long hits = s3.getCacheHits();
+        // Formats derived from other formats are counted once per request.
+        assertNotNull(s3.getOldMap(name, 2));
+        assertEquals(misses + 1, s3.getCacheMisses());
+        assertEquals(hits, s3.getCacheHits());
+        assertNotNull(s3.getOldMap(name, 2));
+        assertEquals(misses + 1, s3.getCacheMisses());
+        assertEquals(hits + 1, s3.getCacheHits());
+        assertNotNull(s3.getOldMapBytes(name, 2, 1));
+        assertEquals(misses + 2, s3.getCacheMisses());
+        assertEquals(hits + 1, s3.getCacheHits());
+
+        assertNotNull(s3.getOldPath(name, 1, 1.0f));
+        assertEquals(misses + 3, s3.getCacheMisses());
+        assertEquals(hits + 1, s3.getCacheHits());
+        assertNotNull(s3.getOldPath(name, 1, 1.0f));
+        assertEquals(misses + 3, s3.getCacheMisses());
+        assertEquals(hits + 2, s3.getCacheHits());
+        // The base formats were loaded on the way.
+        assertNotNull(s3.getOldPath(name, 1));
+        assertNotNull(s3.getOldMap(name));
+        assertEquals(misses + 3, s3.getCacheMisses());
+        assertEquals(hits + 4, s3.getCacheHits());
+    }
+
+    @Test
+    public void cacheTest() throws IOException {
+        ClassLoader classLoader = getClass().getClassLoader();
+        File currentMap = new File(Objects.requireNonNull(classLoader.getResource("run/shm/")).getFile());
+        Path oldMap = new File(Objects.requireNonNull(classLoader.getResource("mnt/data/rockrobo/rrlog/000143.20180604001001609_1387101062713_2018032100REL")).getFile()).toPath();
+        Path dir = Files.createTempDirectory("miioMapServerTest");
+        Path copy = dir.resolve(oldMap.getFileName().toString());
+        String name = copy.getFileName().toString();
+        try {
+            Files.createDirectory(copy);
+            File[] files = oldMap.toFile().listFiles();
+            assertNotNull(files);
+            for (File f : files) {
+                Files.copy(f.toPath(), copy.resolve(f.getName()));
+            }
+            Maps s3 = new Maps(currentMap, dir.toFile(), Level.WARNING);
+            long misses = s3.getCacheMisses();
+            long hits = s3.getCacheHits();
+            MapPackageProto.MapPackage map = s3.getOldMap(name);
+            assertSame(map, s3.getOldMap(name));
+            assertSame(s3.getOldPath(name), s3.getOldPath(name));
+            assertEquals(s3.getOldPath(name), s0.getOldPath(name));
+            assertEquals(hits + 5, s3.getCacheHits());
+            assertEquals(misses, s3.getCacheMisses());
+            assertTrue(s3.getCachedBytes() > 0);
+            assertTrue(s3.getCachedBytes() <= s3.getCacheSize());
+
+            File mapFile = Objects.requireNonNull(copy.toFile().listFiles())[0];
+            assertTrue(mapFile.setLastModified(mapFile.lastModified() + 10000));
+            assertNotSame(map, s3.getOldMap(name));
+            assertEquals(map, s3.getOldMap(name));
+
+            s3.setCacheSize(s3.getCachedBytes() - 1);
+            assertTrue(s3.getCacheEvictions() > 0);
+            assertTrue(s3.getCachedBytes() <= s3.getCacheSize());
+            s3.setCacheSize(0);
+            assertEquals(0, s3.getCachedBytes());
+            assertEquals(map, s3.getOldMap(name));
+            assertEquals(0, s3.getCachedBytes());
+        } finally {
+            File[] files = copy.toFile().listFiles();
+            if (files != null) {
+                for (File f : files) {
+                    Files.delete(f.toPath());
+                }
+            }
+            Files.deleteIfExists(copy);
+            Files.delete(dir);
+        }
+    }
+
+    @Test
+    public void encryptedTest() throws Exception {
+        ClassLoader classLoader = getClass().getClassLoader();
+        File currentMap = new File(Objects.requireNonNull(classLoader.getResource("run/shm/")).getFile());
+        Path oldMap = new File(Objects.requireNonNull(classLoader.getResource("mnt/data/rockrobo/rrlog/000143.20180604001001609_1387101062713_2018032100REL")).getFile()).toPath();
+        Path dir = Files.createTempDirectory("miioMapServerTest");
+        Path copy = dir.resolve(oldMap.getFileName().toString());
+        String name = copy.getFileName().toString();
+        Cipher cipher = Cipher.getInstance("AES/ECB/NoPadding");
+        cipher.init(Cipher.ENCRYPT_MODE, new SecretKeySpec("RoCKR0B0@BEIJING".getBytes(StandardCharsets.US_ASCII), "AES"));
+        try {
+            Files.createDirectory(copy);
+            File[] files = oldMap.toFile().listFiles();
+            assertNotNull(files);
+            for (File f : files) {
+                byte[] data = Files.readAllBytes(f.toPath());
+                // Only the map is encrypted, so the check has to look at each file on its own.
+                if (f.getName().startsWith("navmap")) data = cipher.doFinal(Arrays.copyOf(data, ((data.length + 15) / 16) * 16));
+                Files.write(copy.resolve(f.getName()), data);
+            }
+            Maps s3 = new Maps(currentMap, dir.toFile(), Level.WARNING);
+            assertEquals(s0.getOldMap(name), s3.getOldMap(name));
+            assertEquals(s0.getOldPath(name), s3.getOldPath(name));
+        } finally {
+            File[] files = copy.toFile().listFiles();
+            if (files != null) {
+                for (File f : files) {
+                    Files.delete(f.toPath());
+                }
+            }
+            Files.deleteIfExists(copy);
+            Files.delete(dir);
+        }
+    }
+
+    @Test
+    public void diskCacheTest() throws IOException {
+        ClassLoader classLoader = getClass().getClassLoader();
+        File currentMap = new File(Objects.requireNonNull(classLoader.getResource("run/shm/")).getFile());
+        File oldMap = new File(Objects.requireNonNull(classLoader.getResource("mnt/data/rockrobo/rrlog")).getFile());
+        String name = "000143.20180604001001609_1387101062713_2018032100REL";
+        Path dir = Files.createTempDirectory("miioMapServerTest");
+        Path cacheDir = dir.resolve("cache");
+        try {
+            Maps s3 = new Maps(currentMap, oldMap, cacheDir.toFile(), Level.WARNING);
+            assertEquals(s0.getOldMap(name), s3.getOldMap(name));
+            assertEquals(s0.getOldPath(name), s3.getOldPath(name));
+            Path mapCache = cacheDir.resolve(name + ".map.cache");
+            Path slamCache = cacheDir.resolve(name + ".slam.cache");
+            assertTrue(Files.isRegularFile(mapCache));
+            assertTrue(Files.isRegularFile(slamCache));
+
+            Files.write(cacheDir.resolve("leftover.tmp"), new byte[]{1, 2, 3});
+            Maps s4 = new Maps(currentMap, oldMap, cacheDir.toFile(), Level.WARNING);
+            assertFalse(Files.exists(cacheDir.resolve("leftover.tmp")));
+            assertEquals(s0.getOldMap(name), s4.getOldMap(name));
+            // proto3 does not write -0.0, so only the wire format survives the round trip exactly.
+            assertArrayEquals(s0.getOldPath(name).toByteArray(), s4.getOldPath(name).toByteArray());
+
+            byte[] damaged = Files.readAllBytes(mapCache);
+            Files.write(mapCache, Arrays.copyOf(damaged, damaged.length / 2));
+            Files.write(slamCache, new byte[]{1, 2, 3});
+            Maps s5 = new Maps(currentMap, oldMap, cacheDir.toFile(), Level.OFF);
+            assertEquals(s0.getOldMap(name), s5.getOldMap(name));
+            assertEquals(s0.getOldPath(name), s5.getOldPath(name));
+            assertArrayEquals(damaged, Files.readAllBytes(mapCache));
+        } finally {
+            File[] files = cacheDir.toFile().listFiles();
+            if (files != null) {
+                for (File f : files) {
+                    Files.delete(f.toPath());
+                }
+            }
+            Files.deleteIfExists(cacheDir);
+            Files.delete(dir);
+        }
+    }
+
+    @Test
+    public void indexerTest() throws IOException, InterruptedException {
+        ClassLoader classLoader = getClass().getClassLoader();
+        Path activeFileMap = new File(Objects.requireNonNull(classLoader.getResource("run/shm/navmap0.ppm")).getFile()).toPath();
+        Path activeFileSlam = new File(Objects.requireNonNull(classLoader.getResource("run/shm/SLAM_fprintf.log")).getFile()).toPath();
+        Path oldMap = new File(Objects.requireNonNull(classLoader.getResource("mnt/data/rockrobo/rrlog/000143.20180604001001609_1387101062713_2018032100REL")).getFile()).toPath();
+        Path dir = Files.createTempDirectory("miioMapServerTest");
+        Path active = Files.createDirectory(dir.resolve("shm"));
+        Path rrlog = Files.createDirectory(dir.resolve("rrlog"));
+        Path run = rrlog.resolve(oldMap.getFileName().toString());
+        Maps s3 = new Maps(active.toFile(), rrlog.toFile(), Level.WARNING);
+        try {
+            assertFalse(s3.isIndexed());
+            s3.startIndexer();
+            assertTrue(s3.isIndexed());
+            assertFalse(s3.hasActiveMap());
+            assertEquals(0, s3.numberOfPreviousMaps());
+
+            Files.copy(activeFileSlam, active.resolve("SLAM_fprintf.log"));
+            Files.copy(activeFileMap, active.resolve("navmap0.ppm"));
+            for (int i = 0; i < 100 && !s3.hasActiveMap(); i++) Thread.sleep(100);
+            // The map may have been read more than once while it was copied.
+            assertTrue(s3.getActiveRevision() >= 1);
+            assertEquals(m0, s3.getActiveMap().toBuilder().setRevision(1).build());
+
+            Files.createDirectory(run);
+            File[] files = oldMap.toFile().listFiles();
+            assertNotNull(files);
+            for (File f : files) {
+                Files.copy(f.toPath(), run.resolve(f.getName()));
+            }
+            for (int i = 0; i < 100 && s3.getLastMap() == null; i++) Thread.sleep(100);
+            assertEquals(1, s3.numberOfPreviousMaps());
+            assertEquals(s0.getOldMap(run.getFileName().toString()), s3.getLastMap());
+        } finally {
+            s3.stopIndexer();
+            assertFalse(s3.isIndexed());
+            for (Path p : new Path[]{run, active, rrlog}) {
+                File[] files = p.toFile().listFiles();
+                if (files != null) {
+                    for (File f : files) {
+                        Files.delete(f.toPath());
+                    }
+                }
+                Files.deleteIfExists(p);
+            }
+            Files.delete(dir);
+        }
+    }
+
+    @Test
+    public void concurrentAccessTest() throws Exception {
+        ClassLoader classLoader = getClass().getClassLoader();
+        File currentMap = new File(Objects.requireNonNull(classLoader.getResource("run/shm/")).getFile());
+        File oldMap = new File(Objects.requireNonNull(classLoader.getResource("mnt/data/rockrobo/rrlog")).getFile());
+        final Maps s3 = new Maps(currentMap, oldMap, Level.OFF);
+        s3.setCacheSize(0);
+        final String[] names = s3.getPreviousMaps().toArray(new String[0]);
+        final AtomicBoolean done = new AtomicBoolean();
+        final AtomicLong conversions = new AtomicLong();
+        final byte[][] reduced = new byte[2 * VacuumMap.MAX_LEVEL][];
+        for (int level = 1; level <= VacuumMap.MAX_LEVEL; level++) {
+            reduced[level - 1] = delimited(VacuumMap.toDownsampledPackage(m0, level));
+            reduced[VacuumMap.MAX_LEVEL + level - 1] = delimited(VacuumMap.toRunLengthPackage(VacuumMap.toDownsampledPackage(m0, level)));
+        }
+        ExecutorService pool = Executors.newFixedThreadPool(5);
+        List<Future<?>> workers = new ArrayList<>();
+        // Reduced maps are built on their first request while the full map is read.
+        for (int t = 0; t < 2; t++) {
+            workers.add(pool.submit(new Callable<Void>() {
+                @Override
+                public Void call() {
+                    while (!done.get()) {
+                        for (int level = VacuumMap.MAX_LEVEL; level >= 1; level--) {
+                            assertArrayEquals(reduced[VacuumMap.MAX_LEVEL + level - 1], s3.getActiveMapBytes(2, level));
+                            assertArrayEquals(reduced[level - 1], s3.getActiveMapBytes(0, level));
+                        }
+                    }
+                    return null;
+                }
+            }));
+        }
+        for (int t = 0; t < 3; t++) {
+            workers.add(pool.submit(new Callable<Void>() {
+                @Override
+                public Void call() {
+                    while (!done.get()) {
+                        for (String name : names) {
+                            assertNotNull(s3.getOldMap(name));
+                            assertNotNull(s3.getOldPath(name));
+                            conversions.incrementAndGet();
+                        }
+                    }
+                    return null;
+                }
+            }));
+        }
+        try {
+            while (conversions.get() < 3) Thread.sleep(1);
+            // The latency of these reads is measured in MapBenchmark.activeReadBenchmark.
+            for (int i = 0; i < 500; i++) {
+                assertNotNull(s3.getActiveMapBytes(0));
+                assertEquals(m0, s3.getActiveMap());
+                assertEquals(3, s3.numberOfPreviousMaps());
+                Thread.sleep(1);
+            }
+        } finally {
+            done.set(true);
+            pool.shutdown();
+        }
+        for (Future<?> f : workers) {
+            f.get();
+        }
+        assertEquals(0, s3.getCachedBytes());
+    }
+
+    @Test
+    public void singleFlightTest() throws Exception {
+        ClassLoader classLoader = getClass().getClassLoader();
+        File currentMap = new File(Objects.requireNonNull(classLoader.getResource("run/shm/")).getFile());
+        File oldMap = new File(Objects.requireNonNull(classLoader.getResource("mnt/data/rockrobo/rrlog")).getFile());
+        final Maps s3 = new Maps(currentMap, oldMap, Level.OFF);
+        s3.setCacheSize(0);
+        final String name = "000143.20180604001001609_1387101062713_2018032100REL";
+        final int threads = 8;
+        final CyclicBarrier barrier = new CyclicBarrier(threads);
+        long conversions = s3.getConversions();
+        long shared = s3.getSharedConversions();
+        ExecutorService pool = Executors.newFixedThreadPool(threads);
+        List<Future<MapSlamProto.MapSlam>> results = new ArrayList<>();
+        for (int t = 0; t < threads; t++) {
+            results.add(pool.submit(new Callable<MapSlamProto.MapSlam>() {
+                @Override
+                public MapSlamProto.MapSlam call() throws Exception {
+                    barrier.await();
+                    return s3.getOldPath(name);
+                }
+            }));
+        }
+        pool.shutdown();
+        byte[] expected = delimited(results.get(0).get());
+        assertNotNull(expected);
+        for (Future<MapSlamProto.MapSlam> f : results) {
+            assertArrayEquals(expected, delimited(f.get()));
+        }
+        long started = s3.getConversions() - conversions;
+        long waited = s3.getSharedConversions() - shared;
+        assertEquals(threads, started + waited);
+        assertTrue("Started " + started + " conversions for " + threads + " requests", started < threads);
+    }
+
+    @Test
+    public void wireBytesTest() throws IOException {
+        String name = "000143.20180604001001609_1387101062713_2018032100REL";
+        assertArrayEquals(delimited(s0.getActiveMap(2)), s0.getActiveMapBytes(2));
+        assertSame(s0.getActiveMapBytes(0), s0.getActiveMapBytes(0));
+        assertArrayEquals(delimited(s0.getLastMap(0)), s0.getLastMapBytes(0));
+        assertArrayEquals(delimited(s0.getLastPath(1, 1.0f)), s0.getLastPathBytes(1, 1.0f));
+        assertArrayEquals(delimited(s0.getOldMap(name, 2)), s0.getOldMapBytes(name, 2));
+        long cached = s0.getCachedBytes();
+        byte[] path = s0.getOldPathBytes(name, 0, 0);
+        assertArrayEquals(delimited(s0.getOldPath(name)), path);
+        assertTrue(s0.getCachedBytes() >= cached + path.length);
+        assertSame(path, s0.getOldPathBytes(name, 0, 0));
+        assertArrayEquals(path, delimited(MapSlamProto.MapSlam.parseDelimitedFrom(new ByteArrayInputStream(path))));
+        assertNull(s0.getOldMapBytes("notExisting", 0));
+        assertNull(s1.getActiveMapBytes(0));
+    }
+
+    @Test
+    public void levelTest() throws IOException {
+        String name = "000143.20180604001001609_1387101062713_2018032100REL";
+        MapPackageProto.MapPackage active = VacuumMap.toDownsampledPackage(m0, 2);
+        assertEquals(active, s0.getActiveMap(0, 2));
+        assertSame(s0.getActiveMap(0, 2), s0.getActiveMap(0, 2));
+        assertEquals(VacuumMap.toRunLengthPackage(active), s0.getActiveMap(2, 2));
+        assertSame(s0.getActiveMap(0), s0.getActiveMap(0, 0));
+        assertEquals(VacuumMap.toDownsampledPackage(m0, VacuumMap.MAX_LEVEL), s0.getActiveMap(0, 99));
+        assertArrayEquals(delimited(active), s0.getActiveMapBytes(0, 2));
+        assertSame(s0.getActiveMapBytes(2, 1), s0.getActiveMapBytes(2, 1));
+        assertNull(s1.getActiveMap(0, 1));
+
+        MapPackageProto.MapPackage old = VacuumMap.toDownsampledPackage(s0.getOldMap(name), 1);
+        assertEquals(old, s0.getOldMap(name, 0, 1));
+        assertSame(s0.getOldMap(name, 0, 1), s0.getOldMap(name, 0, 1));
+        assertEquals(VacuumMap.toRunLengthPackage(old), s0.getOldMap(name, 2, 1));
+        assertArrayEquals(delimited(s0.getOldMap(name, 2, 1)), s0.getOldMapBytes(name, 2, 1));
+        assertArrayEquals(delimited(VacuumMap.toDownsampledPackage(s0.getLastMap(), 3)), s0.getLastMapBytes(0, 3));
+        assertNull(s0.getOldMap("notExisting", 0, 1));
+    }
+
+    private static byte[] delimited(com.google.protobuf.MessageLite message) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        message.writeDelimitedTo(out);
+        return out.toByteArray();
+    }
+
     @Test
     public void failTest() {
         ClassLoader classLoader = getClass().getClassLoader();
@@ -0,0 +1,384 @@
+/*
+ * Copyright (c) 2018 Joerg Bayer
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.sg_o.app.miioMapServerTest;
+
+import de.sg_o.app.miio.base.Token;
+import de.sg_o.app.miio.util.ByteArray;
+import de.sg_o.app.miioMapServer.Maps;
+import de.sg_o.app.miioMapServer.Server;
+import de.sg_o.app.miioMapServer.VacuumMap;
+import de.sg_o.proto.MapErrorProto;
+import de.sg_o.proto.MapInfoProto;
+import de.sg_o.proto.MapPackageProto;
+import de.sg_o.proto.MapRequestProto;
+import de.sg_o.proto.MapSlamProto;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.*;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Objects;
+import java.util.logging.Level;
+import java.util.zip.GZIPInputStream;
+
+import static org.junit.Assert.*;
+
+public class ServerTest {
+    private static final int TIMEOUT = 500;
+    private static final int NO_MESSAGE = 1;
+
+    private File currentMap;
+    private File oldMap;
+    private File tokenFile;
+    private Token tk;
+    private Server server;
+
+    @Before
+    public void setUp() throws Exception {
+        ClassLoader classLoader = getClass().getClassLoader();
+        currentMap = new File(Objects.requireNonNull(classLoader.getResource("run/shm/")).getFile());
+        oldMap = new File(Objects.requireNonNull(classLoader.getResource("mnt/data/rockrobo/rrlog")).getFile());
+        tokenFile = new File(Objects.requireNonNull(classLoader.getResource("mnt/data/miio/device.token")).getFile());
+        tk = new Token("abcdefgh1234ABCD".getBytes("ASCII"));
+        server = startServer(TIMEOUT);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        stopServer(server);
+    }
+
+    private Server startServer(int timeout) throws Exception {
+        Server s = new Server(currentMap, oldMap, null, 0, timeout, NO_MESSAGE, tokenFile, Level.OFF, null);
+        s.start();
+        for (int i = 0; i < 100 && s.getLocalPort() < 0; i++) Thread.sleep(50);
+        assertTrue(s.getLocalPort() > 0);
+        return s;
+    }
+
+    private static void stopServer(Server s) throws InterruptedException {
+        s.terminate();
+        s.join(5000);
+        assertFalse(s.isAlive());
+    }
+
+    @Test
+    public void requestTest() throws Exception {
+        Maps maps = new Maps(currentMap, oldMap, Level.OFF);
+        try (Socket socket = connect()) {
+            InputStream in = socket.getInputStream();
+            OutputStream out = socket.getOutputStream();
+
+            request(MapRequestProto.MapRequest.RequestCode.GET_ACTIVE_MAP, out);
+            MapPackageProto.MapPackage denied = MapPackageProto.MapPackage.parseDelimitedFrom(in);
+            assertEquals(MapErrorProto.MapError.ErrorCode.NOT_AUTHENTICATED, denied.getError().getCode());
+
+            authenticate(in, out);
+            request(MapRequestProto.MapRequest.RequestCode.MAP_INFO, out);
+            MapInfoProto.MapInfo info = MapInfoProto.MapInfo.parseDelimitedFrom(in);
+            assertTrue(info.getActiveMapAvailable());
+            assertEquals(maps.numberOfPreviousMaps(), info.getOldMapsCount());
+
+            request(MapRequestProto.MapRequest.RequestCode.GET_ACTIVE_MAP, out);
+            assertEquals(maps.getActiveMap(), MapPackageProto.MapPackage.parseDelimitedFrom(in));
+
+            MapRequestProto.MapRequest.newBuilder()
+                    .setCode(MapRequestProto.MapRequest.RequestCode.GET_ACTIVE_MAP)
+                    .setMapVersion(2)
+                    .setLevel(2)
+                    .build().writeDelimitedTo(out);
+            assertEquals(maps.getActiveMap(2, 2), MapPackageProto.MapPackage.parseDelimitedFrom(in));
+
+            request(MapRequestProto.MapRequest.RequestCode.END_COMMUNICATION, out);
+            assertEquals(-1, in.read());
+        }
+    }
+
+    @Test
+    public void pipelineTest() throws Exception {
+        Maps maps = new Maps(currentMap, oldMap, Level.OFF);
+        try (Socket socket = connect()) {
+            InputStream in = socket.getInputStream();
+            ByteArrayOutputStream requests = new ByteArrayOutputStream();
+            MapRequestProto.MapRequest.newBuilder()
+                    .setCode(MapRequestProto.MapRequest.RequestCode.AUTHENTICATE)
+                    .setOpt(ByteArray.bytesToHex(tk.encrypt("hello".getBytes("ASCII"))))
+                    .build().writeDelimitedTo(requests);
+            request(MapRequestProto.MapRequest.RequestCode.MAP_INFO, requests);
+            request(MapRequestProto.MapRequest.RequestCode.GET_ACTIVE_MAP, requests);
+            request(MapRequestProto.MapRequest.RequestCode.GET_ACTIVE_MAP_SLAM, requests);
+            request(MapRequestProto.MapRequest.RequestCode.GET_PREVIOUS_MAP, requests);
+            socket.getOutputStream().write(requests.toByteArray());
+            // The responses have to arrive even though the client won't send anything else.
+            socket.shutdownOutput();
+
+            MapRequestProto.MapRequest auth = MapRequestProto.MapRequest.parseDelimitedFrom(in);
+            assertArrayEquals("ok".getBytes("ASCII"), tk.decrypt(ByteArray.hexToBytes(auth.getOpt())));
+            assertTrue(MapInfoProto.MapInfo.parseDelimitedFrom(in).getActiveMapAvailable());
+            assertEquals(maps.getActiveMap(), MapPackageProto.MapPackage.parseDelimitedFrom(in));
+            // proto3 doesn't send -0.0, so the paths are compared in their wire format.
+            assertArrayEquals(maps.getActivePathFrom(0).toByteArray(), MapSlamProto.MapSlam.parseDelimitedFrom(in).toByteArray());
+            assertEquals(maps.getLastMap(), MapPackageProto.MapPackage.parseDelimitedFrom(in));
+            assertEquals(-1, in.read());
+        }
+    }
+
+    @Test
+    public void idleTest() throws Exception {
+        try (Socket socket = connect()) {
+            InputStream in = socket.getInputStream();
+            authenticate(in, socket.getOutputStream());
+            long start = System.currentTimeMillis();
+            assertEquals(-1, in.read());
+            long idle = System.currentTimeMillis() - start;
+            assertTrue("Closed after " + idle + "ms", idle >= TIMEOUT * (NO_MESSAGE + 1) - 100);
+        }
+    }
+
+    @Test
+    public void manyConnectionsTest() throws Exception {
+        // Without a timeout idle connections stay open as long as the clients want.
+        stopServer(server);
+        server = startServer(0);
+        List<Socket> sockets = new ArrayList<>();
+        try {
+            for (int i = 0; i < 200; i++) {
+                sockets.add(connect());
+            }
+            for (Socket s : sockets) {
+                authenticate(s.getInputStream(), s.getOutputStream());
+            }
+            for (Socket s : sockets) {
+                request(MapRequestProto.MapRequest.RequestCode.MAP_INFO, s.getOutputStream());
+            }
+            for (Socket s : sockets) {
+                MapInfoProto.MapInfo info = MapInfoProto.MapInfo.parseDelimitedFrom(s.getInputStream());
+                assertEquals(MapErrorProto.MapError.ErrorCode.NONE, info.getError().getCode());
+            }
+        } finally {
+            for (Socket s : sockets) {
+                s.close();
+            }
+        }
+    }
+
+    @Test
+    public void subscribeTest() throws Exception {
+        ClassLoader classLoader = getClass().getClassLoader();
+        File nextMap = new File(Objects.requireNonNull(classLoader.getResource("mnt/data/rockrobo/rrlog/000143.20180604001001609_1387101062713_2018032100REL/navmap52875741.ppm.0004.gz")).getFile());
+        Path dir = Files.createTempDirectory("miioMapServerTest");
+        Path active = Files.createDirectory(dir.resolve("shm"));
+        Path next = dir.resolve("navmap0.ppm");
+        for (String name : new String[]{"navmap0.ppm", "SLAM_fprintf.log"}) {
+            Files.copy(currentMap.toPath().resolve(name), active.resolve(name));
+        }
+        stopServer(server);
+        currentMap = active.toFile();
+        server = startServer(TIMEOUT);
+        try (Socket socket = connect()) {
+            InputStream in = socket.getInputStream();
+            OutputStream out = socket.getOutputStream();
+            authenticate(in, out);
+            request(MapRequestProto.MapRequest.RequestCode.SUBSCRIBE_ACTIVE_MAP, out);
+            MapPackageProto.MapPackage first = MapPackageProto.MapPackage.parseDelimitedFrom(in);
+            assertEquals(1, first.getRevision());
+            assertEquals(VacuumMap.directToMapPackage(active.resolve("navmap0.ppm")).toBuilder().setRevision(1).build(), first);
+
+            // Subscribed connections aren't closed when they stay idle.
+            Thread.sleep(TIMEOUT * (NO_MESSAGE + 1) + 200);
+            // Replaced in one step, so the indexer doesn't see a partially written map.
+            try (InputStream map = new GZIPInputStream(new FileInputStream(nextMap))) {
+                Files.copy(map, next);
+            }
+            Files.move(next, active.resolve("navmap0.ppm"), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+
+            MapPackageProto.MapPackage delta = MapPackageProto.MapPackage.parseDelimitedFrom(in);
+            assertEquals(3, delta.getVersion());
+            assertEquals(2, delta.getRevision());
+            assertEquals(1, delta.getBaseRevision());
+            MapPackageProto.MapPackage expected = VacuumMap.directToMapPackage(active.resolve("navmap0.ppm")).toBuilder().setRevision(2).build();
+            assertEquals(expected, VacuumMap.applyDeltaPackage(first, delta));
+        } finally {
+            for (Path p : new Path[]{active.resolve("navmap0.ppm"), active.resolve("SLAM_fprintf.log"), next, active, dir}) {
+                Files.deleteIfExists(p);
+            }
+        }
+    }
+
+    @Test
+    public void largeResponseTest() throws Exception {
+        // The names of this many old maps don't fit into a single pooled response buffer.
+        Path dir = Files.createTempDirectory("miioMapServerTest");
+        char[] padding = new char[200];
+        Arrays.fill(padding, 'x');
+        List<Path> created = new ArrayList<>();
+        for (int i = 0; i < 100; i++) {
+            Path run = Files.createDirectory(dir.resolve(String.format("run%03d", i) + new String(padding)));
+            created.add(Files.createFile(run.resolve("navmap0.ppm.0000.gz")));
+            created.add(Files.createFile(run.resolve("SLAM_fprintf.log.0000.gz")));
+            created.add(run);
+        }
+        created.add(dir);
+        Maps maps = new Maps(currentMap, oldMap, Level.OFF);
+        stopServer(server);
+        oldMap = dir.toFile();
+        server = startServer(TIMEOUT);
+        try (Socket socket = connect()) {
+            InputStream in = socket.getInputStream();
+            authenticate(in, socket.getOutputStream());
+            ByteArrayOutputStream requests = new ByteArrayOutputStream();
+            request(MapRequestProto.MapRequest.RequestCode.MAP_INFO, requests);
+            request(MapRequestProto.MapRequest.RequestCode.GET_ACTIVE_MAP, requests);
+            request(MapRequestProto.MapRequest.RequestCode.MAP_INFO, requests);
+            socket.getOutputStream().write(requests.toByteArray());
+
+            MapInfoProto.MapInfo info = MapInfoProto.MapInfo.parseDelimitedFrom(in);
+            assertEquals(100, info.getOldMapsCount());
+            assertTrue(info.getSerializedSize() > 16384);
+            assertEquals(maps.getActiveMap(), MapPackageProto.MapPackage.parseDelimitedFrom(in));
+            assertEquals(info, MapInfoProto.MapInfo.parseDelimitedFrom(in));
+        } finally {
+            for (Path p : created) {
+                Files.deleteIfExists(p);
+            }
+        }
+    }
+
+    @Test
+    public void partialWriteTest() throws Exception {
+        Maps maps = new Maps(currentMap, oldMap, Level.OFF);
+        MapPackageProto.MapPackage map = maps.getActiveMap();
+        // Far more than the socket buffers hold, so the responses have to be written in several steps.
+        int count = Math.max(32, (4 * 1024 * 1024) / map.getSerializedSize());
+        try (Socket socket = new Socket()) {
+            socket.setReceiveBufferSize(4096);
+            socket.setSoTimeout(10000);
+            socket.connect(new InetSocketAddress(InetAddress.getLoopbackAddress(), server.getLocalPort()));
+            InputStream in = socket.getInputStream();
+            authenticate(in, socket.getOutputStream());
+            ByteArrayOutputStream requests = new ByteArrayOutputStream();
+            for (int i = 0; i < count; i++) {
+                request(MapRequestProto.MapRequest.RequestCode.GET_ACTIVE_MAP, requests);
+                request(MapRequestProto.MapRequest.RequestCode.MAP_INFO, requests);
+            }
+            socket.getOutputStream().write(requests.toByteArray());
+            // Nothing is read for a while, so the server finds the socket buffer full.
+            Thread.sleep(300);
+            InputStream buffered = new BufferedInputStream(in);
+            for (int i = 0; i < count; i++) {
+                assertEquals(map, MapPackageProto.MapPackage.parseDelimitedFrom(buffered));
+                assertEquals(maps.numberOfPreviousMaps(), MapInfoProto.MapInfo.parseDelimitedFrom(buffered).getOldMapsCount());
+            }
+        }
+    }
+
+    @Test
+    public void releaseOnCloseTest() throws Exception {
+        Maps maps = new Maps(currentMap, oldMap, Level.OFF);
+        int count = Math.max(32, (4 * 1024 * 1024) / maps.getActiveMap().getSerializedSize());
+        for (int c = 0; c < 4; c++) {
+            Socket socket = new Socket();
+            socket.setReceiveBufferSize(4096);
+            socket.setSoTimeout(10000);
+            socket.connect(new InetSocketAddress(InetAddress.getLoopbackAddress(), server.getLocalPort()));
+            authenticate(socket.getInputStream(), socket.getOutputStream());
+            ByteArrayOutputStream requests = new ByteArrayOutputStream();
+            for (int i = 0; i < count; i++) {
+                request(MapRequestProto.MapRequest.RequestCode.MAP_INFO, requests);
+                request(MapRequestProto.MapRequest.RequestCode.GET_ACTIVE_MAP, requests);
+            }
+            socket.getOutputStream().write(requests.toByteArray());
+            // The responses stall in the full socket buffer, then the connection is reset.
+            Thread.sleep(100);
+            socket.setSoLinger(true, 0);
+            socket.close();
+        }
+        for (int i = 0; i < 100 && Server.getResponseBuffersInUse() > 0; i++) Thread.sleep(50);
+        assertEquals(0, Server.getResponseBuffersInUse());
+        try (Socket socket = connect()) {
+            authenticate(socket.getInputStream(), socket.getOutputStream());
+        }
+    }
+
+    @Test
+    public void noTokenTest() throws Exception {
+        int indexers = indexers();
+        try {
+            new Server(currentMap, oldMap, null, 0, TIMEOUT, NO_MESSAGE, null, Level.OFF, null);
+            fail("Created a server without a token");
+        } catch (IOException ignored) {
+        }
+        // Nothing may be left running by a server that couldn't be created.
+        assertEquals(indexers, indexers());
+    }
+
+    @Test
+    public void stopIndexerTest() throws Exception {
+        int indexers = indexers();
+        Server other = startServer(TIMEOUT);
+        assertEquals(indexers + 1, indexers());
+        stopServer(other);
+        for (int i = 0; i < 100 && indexers() > indexers; i++) Thread.sleep(50);
+        assertEquals(indexers, indexers());
+    }
+
+    @Test
+    public void invalidRequestTest() throws Exception {
+        try (Socket socket = connect()) {
+            OutputStream out = socket.getOutputStream();
+            out.write(new byte[]{(byte) 0xFF, (byte) 0xFF, (byte) 0xFF, (byte) 0xFF, 0x0F});
+            out.flush();
+            assertEquals(-1, socket.getInputStream().read());
+        }
+    }
+
+    private static int indexers() {
+        int count = 0;
+        for (Thread t : Thread.getAllStackTraces().keySet()) {
+            if (t.isAlive() && "MapIndexer".equals(t.getName())) count++;
+        }
+        return count;
+    }
+
+    private Socket connect() throws IOException {
+        Socket socket = new Socket(InetAddress.getLoopbackAddress(), server.getLocalPort());
+        socket.setSoTimeout(10000);
+        return socket;
+    }
+
+    private void authenticate(InputStream in, OutputStream out) throws IOException {
+        MapRequestProto.MapRequest.newBuilder()
+                .setCode(MapRequestProto.MapRequest.RequestCode.AUTHENTICATE)
+                .setOpt(ByteArray.bytesToHex(tk.encrypt("hello".getBytes("ASCII"))))
+                .build().writeDelimitedTo(out);
+        MapRequestProto.MapRequest resp = MapRequestProto.MapRequest.parseDelimitedFrom(in);
+        assertArrayEquals("ok".getBytes("ASCII"), tk.decrypt(ByteArray.hexToBytes(resp.getOpt())));
+    }
+
+    private static void request(MapRequestProto.MapRequest.RequestCode code, OutputStream out) throws IOException {
+        MapRequestProto.MapRequest.newBuilder().setCode(code).build().writeDelimitedTo(out);
+    }
+}
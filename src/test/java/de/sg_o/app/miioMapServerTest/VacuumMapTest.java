@@ -18,15 +18,26 @@ package de.sg_o.app.miioMapServerTest;
 
 import de.sg_o.app.miioMapServer.VacuumMap;
 import de.sg_o.proto.MapErrorProto;
+import de.sg_o.proto.MapPackageColorProto;
 import de.sg_o.proto.MapPackageProto;
 import de.sg_o.proto.MapSlamProto;
 import org.junit.Before;
 import org.junit.Test;
 
 import java.io.*;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.Objects;
+import java.util.logging.Handler;
+import java.util.logging.Level;
+import java.util.logging.LogRecord;
+import java.util.logging.Logger;
+import java.util.zip.GZIPInputStream;
 
 import static org.junit.Assert.*;
 
@@ -66,6 +77,29 @@ public class VacuumMapTest {
         assertEquals(0, m2.getMap()[0]);
     }
 
+    @Test
+    public void renderTest() {
+        int[] raw = m0.getRawMap();
+        for (int overSample : new int[]{1, 3, 4}) {
+            m0.setOverSample(overSample);
+            int width = 1024 * overSample;
+            int[] expected = new int[width * width];
+            for (int i = 0; i < expected.length; i++) {
+                expected[i] = raw[((i % width) / overSample) + (((i / width) / overSample) * 1024)];
+            }
+            int[] rendered = m0.getMap();
+            assertArrayEquals(expected, rendered);
+            Arrays.fill(rendered, 0);
+            assertSame(rendered, m0.getMap(rendered));
+            assertArrayEquals(expected, rendered);
+            assertNotSame(rendered, m0.getMap(new int[1]));
+
+            int[] withPath = m0.getMapWithPath(null, null, rendered);
+            assertSame(rendered, withPath);
+            assertArrayEquals(m0.getMapWithPath(), withPath);
+        }
+    }
+
     @Test
     public void getPathTest() {
         assertEquals("[2048.0, 2048.0]", Arrays.toString(m0.getPath().get(0)));
@@ -178,14 +212,146 @@ public class VacuumMapTest {
         assertEquals(4194304, m2.getMapWithPath().length);
     }
 
+    @Test
+    public void getMapWithPathInRegionTest() {
+        for (VacuumMap m : new VacuumMap[]{m0, m1}) {
+            int width = 1024 * m.getOverSample();
+            int[] full = m.getMapWithPath();
+            int[] bounds = m.getBoundingBox();
+            assertArrayEquals(crop(full, width, bounds), m.getMapWithPathInBounds());
+            int[][] regions = {{-7, -3, 40, 30}, {width - 20, width / 2, 50, 10}, {width / 2 - 13, width / 2 - 5, 31, 17}, {width, width, 5, 5}, {0, 0, 0, 0}};
+            for (int[] region : regions) {
+                int[] out = new int[region[2] * region[3]];
+                Arrays.fill(out, 12345);
+                assertSame(out, m.getMapWithPathInRegion(region, null, null, out));
+                assertArrayEquals(crop(full, width, region), out);
+            }
+        }
+        m0.setOverSample(3);
+        assertArrayEquals(crop(m0.getMapWithPath(), 3072, m0.getBoundingBox()), m0.getMapWithPathInBounds());
+        try {
+            m0.getMapWithPathInRegion(new int[]{0, 0}, null, null, null);
+            fail();
+        } catch (IllegalArgumentException ignored) {
+        }
+    }
+
+    @Test
+    public void incrementalRenderTest() throws IOException {
+        List<String> lines = new ArrayList<>();
+        try (BufferedReader reader = new BufferedReader(new FileReader(fileSlam))) {
+            String line;
+            while ((line = reader.readLine()) != null) lines.add(line);
+        }
+        MapPackageProto.MapPackage image = VacuumMap.directToMapPackage(fileMap.toPath());
+        VacuumMap live = new VacuumMap(image, null, 2);
+        int[] frame = null;
+        int[] region = null;
+        int[] bounds = live.getBoundingBox();
+        for (int end : new int[]{100, 1000, 1001, 3000, lines.size()}) {
+            live.appendSlam(slamReader(lines, end));
+            VacuumMap fresh = new VacuumMap(image, null, 2);
+            fresh.appendSlam(slamReader(lines, end));
+
+            int[] previous = frame;
+            frame = live.getMapWithPath(null, null, frame);
+            region = live.getMapWithPathInRegion(bounds, null, null, region);
+            if (previous != null) assertSame(previous, frame);
+            assertArrayEquals(fresh.getMapWithPath(), frame);
+            assertArrayEquals(fresh.getMapWithPathInRegion(bounds, null, null, null), region);
+            // Drawing on the returned frame must not show up in the next one.
+            frame[0] = 42;
+        }
+
+        // A different overSample or color needs a complete render.
+        assertEquals(-8553091, live.getMapWithPath(VacuumMap.RED, null, frame)[0]);
+        live.setOverSample(1);
+        assertNotSame(frame, live.getMapWithPath(null, null, frame));
+        live.setOverSample(2);
+        frame[0] = 42;
+        assertEquals(-8553091, live.getMapWithPath(null, null, frame)[0]);
+    }
+
+    @Test
+    public void cachedFrameTest() throws IOException {
+        List<String> lines = new ArrayList<>();
+        try (BufferedReader reader = new BufferedReader(new FileReader(fileSlam))) {
+            String line;
+            while ((line = reader.readLine()) != null) lines.add(line);
+        }
+        final List<String> messages = new ArrayList<>();
+        Handler handler = new Handler() {
+            @Override
+            public void publish(LogRecord record) {
+                if (record.getMessage().endsWith("frame")) messages.add(record.getMessage());
+            }
+
+            @Override
+            public void flush() {
+            }
+
+            @Override
+            public void close() {
+            }
+        };
+        Logger logger = Logger.getLogger(VacuumMap.class.getName());
+        logger.setLevel(Level.FINE);
+        logger.addHandler(handler);
+        try {
+            MapPackageProto.MapPackage image = VacuumMap.directToMapPackage(fileMap.toPath());
+            VacuumMap live = new VacuumMap(image, null, 4);
+            live.appendSlam(slamReader(lines, 3000));
+            int[] first = live.getMapWithPath();
+            assertEquals(Collections.singletonList("Rendering the frame"), messages);
+            messages.clear();
+
+            // The cached frame is only handed out as a copy, drawing on it must not show up in the next one.
+            Arrays.fill(first, 42);
+            live.appendSlam(slamReader(lines, lines.size()));
+            int[] second = live.getMapWithPath();
+            assertEquals(Collections.singletonList("Drawing new path segments into the cached frame"), messages);
+            assertNotSame(first, second);
+            VacuumMap fresh = new VacuumMap(image, null, 4);
+            fresh.appendSlam(slamReader(lines, lines.size()));
+            assertArrayEquals(fresh.getMapWithPath(), second);
+        } finally {
+            logger.removeHandler(handler);
+            logger.setLevel(Level.OFF);
+        }
+    }
+
+    private static BufferedReader slamReader(List<String> lines, int end) {
+        StringBuilder b = new StringBuilder();
+        for (int i = 0; i < end; i++) {
+            b.append(lines.get(i)).append('\n');
+        }
+        return new BufferedReader(new StringReader(b.toString()));
+    }
+
+    private static int[] crop(int[] map, int width, int[] region) {
+        int[] out = new int[region[2] * region[3]];
+        for (int y = 0; y < region[3]; y++) {
+            for (int x = 0; x < region[2]; x++) {
+                int a = x + region[0];
+                int b = y + region[1];
+                if (a >= 0 && a < width && b >= 0 && b < width) out[x + (y * region[2])] = map[a + (b * width)];
+            }
+        }
+        return out;
+    }
+
     @Test
     public void rawTest() {
-        assertEquals(-8553091, m0.getRawMap()[0]);
-        assertEquals(-8553091, m1.getRawMap()[0]);
-        assertEquals(0, m2.getRawMap()[0]);
-        assertEquals(1024 * 1024, m0.getRawMap().length);
-        assertEquals(1024 * 1024, m1.getRawMap().length);
-        assertEquals(1024 * 1024, m2.getRawMap().length);
+        int[] raw = m0.getRawMap();
+        assertEquals(-8553091, raw[0]);
+        assertEquals(1024 * 1024, raw.length);
+        // Copies of the map are made into the provided array.
+        assertSame(raw, m1.getRawMap(raw));
+        assertEquals(-8553091, raw[0]);
+        assertSame(raw, m2.getRawMap(raw));
+        assertEquals(0, raw[0]);
+        assertEquals(1024 * 1024, m2.getRawMap(new int[1]).length);
+        assertNotSame(m0.getRawMap(), m0.getRawMap());
 
         assertEquals("[0.0, -0.0]", Arrays.toString(m0.getRawPath().get(0)));
         assertEquals("[0.28, 3.56]", Arrays.toString(m0.getRawPath().get(500)));
@@ -217,6 +383,88 @@ public class VacuumMapTest {
         ois.close();
         in.close();
         assertEquals(m0, serial);
+        assertArrayEquals(m0.getRawMap(), serial.getRawMap());
+        assertEquals(m0.getPathSize(), serial.getPathSize());
+        assertArrayEquals(m0.getRawPath().get(500), serial.getRawPath().get(500), 0.0f);
+        // The palette indices compress far better than 4 bytes per pixel.
+        InputStream legacy = getClass().getClassLoader().getResourceAsStream("VacuumMap_legacy.ser");
+        int legacySize = 0;
+        while (legacy.read() >= 0) legacySize++;
+        legacy.close();
+        assertTrue(serialized.length + " >= " + legacySize, serialized.length < legacySize);
+    }
+
+    @Test
+    public void manyColorsSerialisationTest() throws IOException, ClassNotFoundException {
+        // More colors than fit into a palette are stored directly.
+        MapPackageProto.MapPackage.Builder pack = MapPackageProto.MapPackage.newBuilder().setVersion(1)
+                .setActiveX(0).setActiveY(0).setActiveW(1024).setActiveH(1);
+        for (int i = 0; i < 300; i++) {
+            pack.addData(MapPackageColorProto.MapPackageColor.newBuilder().setColor(0xFF000000 | i).addCoordinates(i));
+        }
+        VacuumMap colorful = new VacuumMap(pack.build(), null, 1);
+        for (int i = 0; i < 300; i++) {
+            assertEquals(0xFF000000 | i, colorful.getRawMap()[i]);
+        }
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        ObjectOutputStream oos = new ObjectOutputStream(out);
+        oos.writeObject(colorful);
+        oos.close();
+        ObjectInputStream ois = new ObjectInputStream(new ByteArrayInputStream(out.toByteArray()));
+        VacuumMap serial = (VacuumMap) ois.readObject();
+        ois.close();
+        assertEquals(colorful, serial);
+        assertArrayEquals(colorful.getRawMap(), serial.getRawMap());
+    }
+
+    @Test
+    public void streamSerialisationTest() throws IOException, ClassNotFoundException {
+        // Each map has to stop reading at its own end, so the objects after it can be read.
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        ObjectOutputStream oos = new ObjectOutputStream(out);
+        oos.writeObject(m0);
+        oos.writeObject(m2);
+        oos.writeObject(m1);
+        oos.writeInt(42);
+        oos.close();
+        ObjectInputStream ois = new ObjectInputStream(new ByteArrayInputStream(out.toByteArray()));
+        VacuumMap s0 = (VacuumMap) ois.readObject();
+        VacuumMap s2 = (VacuumMap) ois.readObject();
+        VacuumMap s1 = (VacuumMap) ois.readObject();
+        assertEquals(42, ois.readInt());
+        ois.close();
+        assertEquals(m0, s0);
+        assertEquals(m1, s1);
+        assertEquals(m2, s2);
+        assertEquals(0, s2.getPathSize());
+        assertArrayEquals(m1.getMap(), s1.getMap());
+        for (int i = 0; i < m0.getPathSize(); i++) {
+            assertArrayEquals(m0.getRawPath().get(i), s0.getRawPath().get(i), 0.0f);
+        }
+    }
+
+    @Test
+    public void legacySerialisationTest() throws IOException, ClassNotFoundException {
+        assertReadsLikeM0("VacuumMap_legacy.ser");
+    }
+
+    @Test
+    public void paletteSerialisationTest() throws IOException, ClassNotFoundException {
+        assertReadsLikeM0("VacuumMap_palette.ser");
+    }
+
+    private void assertReadsLikeM0(String resource) throws IOException, ClassNotFoundException {
+        ClassLoader classLoader = getClass().getClassLoader();
+        InputStream in = classLoader.getResourceAsStream(resource);
+        ObjectInputStream ois = new ObjectInputStream(in);
+        VacuumMap serial = (VacuumMap) ois.readObject();
+        ois.close();
+        assertEquals(m0, serial);
+        assertArrayEquals(m0.getMap(), serial.getMap());
+        assertEquals(m0.getPathSize(), serial.getPathSize());
+        for (int i = 0; i < m0.getPathSize(); i++) {
+            assertArrayEquals(m0.getRawPath().get(i), serial.getRawPath().get(i), 0.0f);
+        }
     }
 
     @SuppressWarnings({"SimplifiableJUnitAssertion", "ObjectEqualsNull", "ConstantConditions"})
@@ -314,6 +562,383 @@ public class VacuumMapTest {
         slam.close();
     }
 
+    @Test
+    public void directStreamTest() throws IOException {
+        byte[] map = readAllBytes(fileMap);
+        byte[] slam = readAllBytes(fileSlam);
+        assertEquals(VacuumMap.directToMapPackage(ByteBuffer.wrap(map)), VacuumMap.directToMapPackage(new ByteArrayInputStream(map)));
+        assertEquals(VacuumMap.directToMapPackage(ByteBuffer.wrap(map)), VacuumMap.directToMapPackage(new ChunkedInputStream(map, 7)));
+        int[] starts = {0, 1000, 5000};
+        for (int start : starts) {
+            for (int version = 0; version < 2; version++) {
+                BufferedReader reader = new BufferedReader(new FileReader(fileSlam));
+                MapSlamProto.MapSlam expected = VacuumMap.directToPath(reader, start, version);
+                reader.close();
+                assertEquals(expected, VacuumMap.directToPath(new ByteArrayInputStream(slam), start, version));
+                assertEquals(expected, VacuumMap.directToPath(new ChunkedInputStream(slam, 5), start, version));
+            }
+        }
+        try {
+            VacuumMap.directToMapPackage(new ByteArrayInputStream("P5\n1 1\n255\n".getBytes("ASCII")));
+            fail();
+        } catch (IOException ignored) {
+        }
+    }
+
+    private static byte[] readAllBytes(File file) throws IOException {
+        byte[] data = new byte[(int) file.length()];
+        try (DataInputStream in = new DataInputStream(new FileInputStream(file))) {
+            in.readFully(data);
+        }
+        return data;
+    }
+
+    private static class ChunkedInputStream extends ByteArrayInputStream {
+        private final int chunk;
+
+        ChunkedInputStream(byte[] data, int chunk) {
+            super(data);
+            this.chunk = chunk;
+        }
+
+        @Override
+        public synchronized int read(byte[] b, int off, int len) {
+            return super.read(b, off, Math.min(len, chunk));
+        }
+    }
+
+    @Test
+    public void directMapPackageTest() throws IOException {
+        MapPackageProto.MapPackage mp0 = VacuumMap.directToMapPackage(fileMap.toPath());
+        BufferedReader map = new BufferedReader(new FileReader(fileMap));
+        MapPackageProto.MapPackage mp1 = VacuumMap.directToMapPackage(map);
+        map.close();
+        assertEquals(MapErrorProto.MapError.ErrorCode.NONE, mp0.getError().getCode());
+        assertEquals(1, mp0.getVersion());
+        assertEquals(mp1.getActiveX(), mp0.getActiveX());
+        assertEquals(mp1.getActiveY(), mp0.getActiveY());
+        assertEquals(123, mp0.getActiveW());
+        assertEquals(161, mp0.getActiveH());
+        assertEquals(5, mp0.getDataCount());
+        int pixels = 0;
+        boolean white = false;
+        for (MapPackageColorProto.MapPackageColor c : mp0.getDataList()) {
+            pixels += c.getCoordinatesCount();
+            if (c.getColor() == 0xFFFFFFFF) white = true;
+            for (int i = 1; i < c.getCoordinatesCount(); i++) {
+                assertTrue(c.getCoordinates(i - 1) < c.getCoordinates(i));
+            }
+        }
+        assertEquals(3958 + 484 + 26 + 5 + 1, pixels);
+        assertTrue(white);
+
+        byte[] header = "P6\n# comment\n2 1\n255\n".getBytes("ASCII");
+        ByteBuffer small = ByteBuffer.allocate(header.length + 6);
+        small.put(header).put(new byte[]{125, 125, 125, (byte) 0xFF, 0, 0});
+        small.flip();
+        MapPackageProto.MapPackage mp2 = VacuumMap.directToMapPackage(small);
+        assertEquals(1, mp2.getActiveX());
+        assertEquals(1, mp2.getActiveW());
+        assertEquals(VacuumMap.RED, mp2.getData(0).getColor());
+        assertEquals(1, mp2.getData(0).getCoordinates(0));
+
+        try {
+            VacuumMap.directToMapPackage(ByteBuffer.wrap("P5\n1 1\n255\n".getBytes("ASCII")));
+            fail();
+        } catch (IOException e) {
+            assertEquals("File format invalid", e.getMessage());
+        }
+        try {
+            VacuumMap.directToMapPackage(ByteBuffer.wrap("P6\n2048 1 255\n".getBytes("ASCII")));
+            fail();
+        } catch (IOException e) {
+            assertEquals("Map format not supported", e.getMessage());
+        }
+    }
+
+    @Test
+    public void runLengthTest() throws IOException {
+        MapPackageProto.MapPackage mp0 = VacuumMap.directToMapPackage(fileMap.toPath());
+        MapPackageProto.MapPackage mp1 = VacuumMap.toRunLengthPackage(mp0);
+        MapPackageProto.MapPackage mp2 = VacuumMap.toRunLengthPackage(m0.getMapPackage());
+        assertEquals(2, mp1.getVersion());
+        assertEquals(2, mp2.getVersion());
+        assertEquals(mp0.getActiveX(), mp1.getActiveX());
+        assertEquals(mp0.getActiveH(), mp1.getActiveH());
+        assertEquals(mp0.getDataCount(), mp1.getDataCount());
+        assertEquals(0, mp1.getData(0).getCoordinatesCount());
+        assertTrue(mp1.getSerializedSize() < mp0.getSerializedSize());
+        assertSame(mp1, VacuumMap.toRunLengthPackage(mp1));
+        assertNull(VacuumMap.toRunLengthPackage(null));
+
+        assertArrayEquals(new VacuumMap(mp0, null, 1).getRawMap(), new VacuumMap(mp1, null, 1).getRawMap());
+        assertEquals(m0, new VacuumMap(mp2, m0.getMapPath(), m0.getOverSample()));
+    }
+
+    @Test
+    public void downsampleTest() throws IOException {
+        MapPackageProto.MapPackage full = VacuumMap.directToMapPackage(fileMap.toPath());
+        assertSame(full, VacuumMap.toDownsampledPackage(full, 0));
+        assertNull(VacuumMap.toDownsampledPackage(null, 1));
+        int[] raw = new VacuumMap(full, null, 1).getRawMap();
+        int gray = raw[0];
+        Map<Integer, Integer> counts = new HashMap<>();
+        for (int color : raw) {
+            if (color == gray) continue;
+            Integer c = counts.get(color);
+            counts.put(color, c == null ? 1 : c + 1);
+        }
+        // Black walls, blue obstacles and magenta markers are colored, the floor is white.
+        int wall = 0xff000000;
+        Map<Integer, Integer> priorities = new HashMap<>();
+        priorities.put(wall, 0);
+        priorities.put(0xff0000ff, 1);
+        priorities.put(0xffff00ff, 1);
+        priorities.put(0xffffffff, 2);
+        priorities.put(0xfffafafa, 2);
+        assertEquals(priorities.keySet(), counts.keySet());
+        assertTrue(counts.get(0xff0000ff) < counts.get(wall));
+        for (int level = 1; level <= VacuumMap.MAX_LEVEL; level++) {
+            MapPackageProto.MapPackage reduced = VacuumMap.toDownsampledPackage(full, level);
+            assertEquals(1, reduced.getVersion());
+            assertEquals(level, reduced.getLevel());
+            assertEquals(full.getActiveX() >> level, reduced.getActiveX());
+            assertEquals(((full.getActiveX() + full.getActiveW() - 1) >> level) + 1, reduced.getActiveX() + reduced.getActiveW());
+            assertTrue(reduced.getSerializedSize() < full.getSerializedSize());
+
+            // Every block shows its wall, then its marker, then its floor color, the rarer one first between equals.
+            int[] expected = new int[1024 * 1024];
+            Arrays.fill(expected, gray);
+            boolean[] rarer = new boolean[1024 * 1024];
+            int block = 1 << level;
+            for (int y = 0; y < 1024; y++) {
+                for (int x = 0; x < 1024; x++) {
+                    int color = raw[x + (y * 1024)];
+                    if (color == gray) continue;
+                    int i = (x / block) + ((y / block) * 1024);
+                    if (color != wall && counts.get(color) < counts.get(wall)) rarer[i] = true;
+                    if (expected[i] == gray || priorities.get(color) < priorities.get(expected[i]) ||
+                            (priorities.get(color).equals(priorities.get(expected[i])) && counts.get(color) < counts.get(expected[i]))) {
+                        expected[i] = color;
+                    }
+                }
+            }
+            int[] actual = new VacuumMap(reduced, null, 1).getRawMap();
+            assertArrayEquals(expected, actual);
+            int survived = 0;
+            for (int i = 0; i < expected.length; i++) {
+                if (rarer[i] && expected[i] == wall) {
+                    assertEquals(wall, actual[i]);
+                    survived++;
+                }
+            }
+            assertTrue(survived > 0);
+            assertSame(reduced, VacuumMap.toDownsampledPackage(reduced, 1));
+        }
+        assertEquals(VacuumMap.toDownsampledPackage(full, VacuumMap.MAX_LEVEL), VacuumMap.toDownsampledPackage(full, 10));
+        assertEquals(VacuumMap.toDownsampledPackage(full, 2), VacuumMap.toDownsampledPackage(VacuumMap.toRunLengthPackage(full), 2));
+        assertEquals(VacuumMap.toDownsampledPackage(full, 2), VacuumMap.toDownsampledPackage(new VacuumMap(full, null, 1).getMapPackage(), 2));
+    }
+
+    @Test
+    public void deltaTest() throws IOException {
+        ClassLoader classLoader = getClass().getClassLoader();
+        File oldMap = new File(Objects.requireNonNull(classLoader.getResource("mnt/data/rockrobo/rrlog/000143.20180604001001609_1387101062713_2018032100REL/navmap52875741.ppm.0004.gz")).getFile());
+        MapPackageProto.MapPackage from;
+        try (InputStream in = new GZIPInputStream(new FileInputStream(oldMap))) {
+            from = VacuumMap.directToMapPackage(in).toBuilder().setRevision(4).build();
+        }
+        MapPackageProto.MapPackage to = VacuumMap.directToMapPackage(fileMap.toPath()).toBuilder().setRevision(5).build();
+
+        MapPackageProto.MapPackage delta = VacuumMap.toDeltaPackage(from, to);
+        assertEquals(3, delta.getVersion());
+        assertEquals(5, delta.getRevision());
+        assertEquals(4, delta.getBaseRevision());
+        assertEquals(to.getActiveW(), delta.getActiveW());
+        assertEquals(to, VacuumMap.applyDeltaPackage(from, delta));
+        assertEquals(from.toBuilder().setRevision(0).build(), VacuumMap.applyDeltaPackage(to, VacuumMap.toDeltaPackage(to, from)).toBuilder().setRevision(0).build());
+        assertEquals(to, VacuumMap.applyDeltaPackage(VacuumMap.toRunLengthPackage(from), VacuumMap.toDeltaPackage(VacuumMap.toRunLengthPackage(from), to)));
+
+        MapPackageColorProto.MapPackageColor first = to.getData(0);
+        List<Integer> coordinates = new ArrayList<>(first.getCoordinatesList());
+        int removed = coordinates.remove(coordinates.size() / 2);
+        MapPackageProto.MapPackage next = to.toBuilder().setRevision(6)
+                .setData(0, first.toBuilder().clearCoordinates().addAllCoordinates(coordinates)).build();
+        MapPackageProto.MapPackage small = VacuumMap.toDeltaPackage(to, next);
+        assertEquals(1, small.getDataCount());
+        assertEquals(0, small.getData(0).getColor());
+        assertEquals(Collections.singletonList(removed), small.getData(0).getCoordinatesList());
+        assertEquals(next, VacuumMap.applyDeltaPackage(to, small));
+
+        MapPackageProto.MapPackage unchanged = VacuumMap.toDeltaPackage(to, to);
+        assertEquals(0, unchanged.getDataCount());
+        assertEquals(to, VacuumMap.applyDeltaPackage(to, unchanged));
+        assertNull(VacuumMap.toDeltaPackage(null, to));
+    }
+
+    @Test
+    public void compactPathTest() throws IOException {
+        MapSlamProto.MapSlam sl0 = m0.getMapPath();
+        MapSlamProto.MapSlam sl1 = m0.getMapPath(0, 1);
+        assertEquals(1, sl1.getVersion());
+        assertEquals(VacuumMap.SLAM_SCALE, sl1.getScale());
+        assertEquals(0, sl1.getPointsCount());
+        assertEquals(sl0.getPointsCount() * 2, sl1.getDeltasCount());
+        assertTrue(sl1.getSerializedSize() * 3 < sl0.getSerializedSize());
+        assertEquals(sl1, VacuumMap.toCompactPath(sl0));
+        assertSame(sl1, VacuumMap.toCompactPath(sl1));
+        assertNull(VacuumMap.toCompactPath(null));
+        assertEquals(MapErrorProto.MapError.ErrorCode.SLAM_OUT_OF_RANGE, m0.getMapPath(m0.getPathSize(), 1).getError().getCode());
+
+        BufferedReader slam = new BufferedReader(new FileReader(fileSlam));
+        assertEquals(sl1, VacuumMap.directToPath(slam, 0, 1));
+        slam.close();
+        slam = new BufferedReader(new FileReader(fileSlam));
+        MapSlamProto.MapSlam tail = VacuumMap.directToPath(slam, 500, 1);
+        slam.close();
+        assertEquals(m0.getMapPath(500, 1), tail);
+
+        VacuumMap decoded = new VacuumMap(m0.getMapPackage(), sl1, m0.getOverSample());
+        assertEquals(m0.getPathSize(), decoded.getPathSize());
+        decoded.appendMapSlam(tail);
+        assertEquals(m0.getPathSize() * 2 - 500, decoded.getPathSize());
+        List<float[]> expected = m0.getRawPath();
+        List<float[]> actual = decoded.getRawPath();
+        for (int i = 0; i < actual.size(); i++) {
+            float[] e = expected.get(i < expected.size() ? i : i - expected.size() + 500);
+            assertEquals(e[0], actual.get(i)[0], 0.01f);
+            assertEquals(e[1], actual.get(i)[1], 0.01f);
+        }
+    }
+
+    @Test
+    public void simplifyPathTest() {
+        MapSlamProto.MapSlam full = m0.getMapPath();
+        MapSlamProto.MapSlam simplified = VacuumMap.simplifyPath(full, 1.0f);
+        assertEquals(full.getPointsCount(), simplified.getSourcePoints());
+        assertTrue(simplified.getPointsCount() * 2 < full.getPointsCount());
+        assertEquals(full.getPoints(0), simplified.getPoints(0));
+        assertEquals(full.getPoints(full.getPointsCount() - 1), simplified.getPoints(simplified.getPointsCount() - 1));
+        for (MapSlamProto.MapSlam.Point p : full.getPointsList()) {
+            double min = Double.MAX_VALUE;
+            for (int i = 1; i < simplified.getPointsCount(); i++) {
+                min = Math.min(min, segmentDistance(p, simplified.getPoints(i - 1), simplified.getPoints(i)));
+            }
+            assertTrue(min <= 1.0001);
+        }
+        assertEquals(simplified, m0.getMapPath(0, 0, 1.0f));
+        assertEquals(VacuumMap.toCompactPath(simplified), VacuumMap.simplifyPath(VacuumMap.toCompactPath(full), 1.0f));
+        assertEquals(simplified, VacuumMap.simplifyPath(simplified, 1.0f));
+        assertSame(full, VacuumMap.simplifyPath(full, 0));
+        assertNull(VacuumMap.simplifyPath(null, 1.0f));
+        assertTrue(VacuumMap.simplifyPath(full, 10.0f).getPointsCount() < simplified.getPointsCount());
+        assertEquals(full.getPointsCount(), m0.getMapPath(500, 0, 1.0f).getSourcePoints());
+    }
+
+    private static double segmentDistance(MapSlamProto.MapSlam.Point p, MapSlamProto.MapSlam.Point a, MapSlamProto.MapSlam.Point b) {
+        double dx = b.getX() - a.getX();
+        double dy = b.getY() - a.getY();
+        double px = p.getX() - a.getX();
+        double py = p.getY() - a.getY();
+        double length = (dx * dx) + (dy * dy);
+        double t = length == 0 ? 0 : Math.max(0, Math.min(1, ((px * dx) + (py * dy)) / length));
+        return Math.hypot(px - (t * dx), py - (t * dy));
+    }
+
+    @Test
+    public void slamParserTest() throws IOException {
+        ClassLoader classLoader = getClass().getClassLoader();
+        String[] fixtures = {
+                "run/shm/SLAM_fprintf.log",
+                "SLAM_fprintf_bad.log",
+                "mnt/data/rockrobo/rrlog/000143.20180604001001609_1387101062713_2018032100REL/SLAM_fprintf.log.0004.gz",
+                "mnt/data/rockrobo/rrlog/000144.20180604034309095_1387101062713_2018032100REL/SLAM_fprintf.log.0005.gz"};
+        for (String fixture : fixtures) {
+            File f = new File(Objects.requireNonNull(classLoader.getResource(fixture)).getFile());
+            assertSlamEquals(openSlam(f), openSlam(f));
+        }
+        String edgeCases = "1.0 unlock\n" +
+                "1.1 estimate 0.000 0.000 0.000\n" +
+                "1.2 estimate -0.000 -0.000 0.000\n" +
+                "1.3 estimate 1e-1 2.5E0 0.000\n" +
+                "1.4 estimate +1.234 -7.654321 0.000\n" +
+                "1.5\testimate\t3.125\t-4.5\t0.000\r\n" +
+                " 1.6 estimate 9.000 9.000 0.000\n" +
+                "1.7 estimate 12.000 12.000 0.000 \n" +
+                "1.8 estimate 13.000 13.000\n" +
+                "1.9 estimate 14.000 14.000 0.000 1\n" +
+                "2.0 estimate 16777.217 1.0 0.000\n" +
+                "2.1 estimate 0.12345678901 1.0 0.000\n" +
+                "2.2 estimate NaN 1.0 0.000\n" +
+                "2.3 estimate 1.2.3 1.0 0.000\n" +
+                "2.4 estimate - 30.0 0.000\n" +
+                "2.5 estimate .5 31.0 0.000\n" +
+                "2.6 lock\n" +
+                "2.7 estimate 40.000 40.000 0.000\n" +
+                "2.8 unlock\n" +
+                "2.9 reset\n" +
+                "3.0 estimate 41.000 41.000 0.000\n" +
+                "\n" +
+                "3.1 estimate 42.000 42.000 0.000";
+        assertSlamEquals(new BufferedReader(new StringReader(edgeCases)), new BufferedReader(new StringReader(edgeCases)));
+    }
+
+    private static BufferedReader openSlam(File f) throws IOException {
+        InputStream in = new FileInputStream(f);
+        if (f.getName().endsWith(".gz")) in = new GZIPInputStream(in);
+        return new BufferedReader(new InputStreamReader(in, "ASCII"));
+    }
+
+    private static void assertSlamEquals(BufferedReader reference, BufferedReader slam) throws IOException {
+        List<float[]> expected = legacyParseSlam(reference);
+        reference.close();
+        MapSlamProto.MapSlam actual = VacuumMap.directToPath(slam);
+        slam.close();
+        assertEquals(expected.size(), actual.getPointsCount());
+        for (int i = 0; i < expected.size(); i++) {
+            assertEquals(Float.floatToIntBits(expected.get(i)[0]), Float.floatToIntBits(actual.getPoints(i).getX()));
+            assertEquals(Float.floatToIntBits(expected.get(i)[1]), Float.floatToIntBits(actual.getPoints(i).getY()));
+        }
+    }
+
+    /**
+     * The slam parser as it was before it got its own tokenizer. Used as a reference.
+     */
+    private static List<float[]> legacyParseSlam(BufferedReader slam) throws IOException {
+        List<float[]> path = new ArrayList<>();
+        String line;
+        boolean slamLocked = true;
+        float oldX = 100000;
+        float oldY = 100000;
+        while ((line = slam.readLine()) != null) {
+            if (line.contains("reset")) {
+                path.clear();
+                oldX = 100000;
+                oldY = 100000;
+            }
+            if (line.contains("lock")) slamLocked = true;
+            if (line.contains("unlock")) slamLocked = false;
+            if (slamLocked) continue;
+            if (line.contains("estimate")) {
+                String[] split = line.split("\\s+");
+                if (split.length != 5) continue;
+                try {
+                    float x = Float.valueOf(split[2]) * (20.0f);
+                    float y = Float.valueOf(split[3]) * (-20.0f);
+                    if ((Math.abs(x - oldX) > 1.0f) || (Math.abs(y - oldY) > 1.0f)) {
+                        oldX = x;
+                        oldY = y;
+                    } else {
+                        continue;
+                    }
+                    path.add(new float[]{x, y});
+                } catch (Exception ignored) {
+                }
+            }
+        }
+        return path;
+    }
+
     @Test
     public void appendTest() throws Exception {
         ClassLoader classLoader = getClass().getClassLoader();